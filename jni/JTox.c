@@ -64,6 +64,50 @@ void addr_to_hex(uint8_t *addr, char *buf)
 	}
 }
 
+/**
+ * Layout of an Android YV12 frame: the Y plane, followed by the V and the U
+ * plane at half resolution. Rows of the Y plane are aligned to 16 bytes, rows
+ * of the chroma planes to 16 bytes of half the Y stride. Odd heights get
+ * (height + 1) / 2 chroma rows rather than Android's height / 2, see VideoFrame.
+ */
+typedef struct {
+	int stride;
+	int c_stride;
+	int c_width;
+	int c_height;
+	int v_offset;
+	int u_offset;
+	int size;
+} yv12_layout_t;
+
+void yv12_layout(int width, int height, yv12_layout_t *layout)
+{
+	layout->stride = ALIGN(width, 16);
+	layout->c_stride = ALIGN(layout->stride / 2, 16);
+	layout->c_width = (width + 1) / 2;
+	layout->c_height = (height + 1) / 2;
+	layout->v_offset = layout->stride * height;
+	layout->u_offset = layout->v_offset + layout->c_stride * layout->c_height;
+	layout->size = layout->u_offset + layout->c_stride * layout->c_height;
+}
+
+/**
+ * Copy width bytes of each of height rows between planes of different strides
+ */
+void copy_plane(uint8_t *dst, int dst_stride, const uint8_t *src, int src_stride, int width, int height)
+{
+	int row;
+
+	if (dst_stride == width && src_stride == width) {
+		memcpy(dst, src, (size_t) width * height);
+		return;
+	}
+
+	for (row = 0; row < height; ++row) {
+		memcpy(dst + (size_t) row * dst_stride, src + (size_t) row * src_stride, width);
+	}
+}
+
 /**
  * End Utilities section
  */
@@ -91,6 +135,8 @@ jint JNI_OnLoad(JavaVM* jvm, void* aReserved)
     cache->onFileControlMethodId = (*env)->GetMethodID(env, handlerclass, "onFileControl",
                                       "(IIILim/tox/jtoxcore/ToxFileControl;[B)V");
     cache->onFileDataMethodId = (*env)->GetMethodID(env, handlerclass, "onFileData", "(II[B)V");
+    cache->onFileChunkMethodId = (*env)->GetMethodID(env, handlerclass, "onFileChunk", "(IILjava/nio/ByteBuffer;I)V");
+    cache->chunkBufferFieldId = (*env)->GetFieldID(env, handlerclass, "chunkBuffer", "Ljava/nio/ByteBuffer;");
     cache->onFileSendRequestMethodId = (*env)->GetMethodID(env, handlerclass, "onFileSendRequest", "(IIJ[B)V");
     cache->onFriendRequestMethodId = (*env)->GetMethodID(env, handlerclass, "onFriendRequest", "(Ljava/lang/String;[B)V");
     cache->onMessageMethodId = (*env)->GetMethodID(env, handlerclass, "onMessage", "(I[B)V");
@@ -102,10 +148,14 @@ jint JNI_OnLoad(JavaVM* jvm, void* aReserved)
     cache->onReadReceiptMethodId = (*env)->GetMethodID(env, handlerclass, "onReadReceipt", "(II)V");
     cache->onConnectionStatusMethodId = (*env)->GetMethodID(env, handlerclass, "onConnectionStatus", "(IZ)V");
     cache->onTypingChangeMethodId = (*env)->GetMethodID(env, handlerclass, "onTypingChange", "(IZ)V");
-    cache->onAudioDataMethodId = (*env)->GetMethodID(env, handlerclass,
-                                                     "onAudioData", "(I[B)V");
-    cache->onVideoDataMethodId = (*env)->GetMethodID(env, handlerclass,
-                                                     "onVideoData", "(I[BII)V");
+    cache->audioBufferMethodId = (*env)->GetMethodID(env, handlerclass,
+                                                     "audioBuffer", "(II)Ljava/nio/ByteBuffer;");
+    cache->onAudioFrameMethodId = (*env)->GetMethodID(env, handlerclass,
+                                                      "onAudioFrame", "(ILjava/nio/ByteBuffer;I)V");
+    cache->videoBufferMethodId = (*env)->GetMethodID(env, handlerclass,
+                                                     "videoBuffer", "(II)Ljava/nio/ByteBuffer;");
+    cache->onVideoFrameMethodId = (*env)->GetMethodID(env, handlerclass,
+                                                      "onVideoFrame", "(ILjava/nio/ByteBuffer;IIII)V");
     cache->onAvCallbackMethodId = (*env)->GetMethodID(env, handlerclass, "onAvCallback", "(ILim/tox/jtoxcore/ToxAvCallbackID;)V");
 
     return JNI_VERSION_1_6;
@@ -328,31 +378,129 @@ JNIEXPORT jint JNICALL Java_im_tox_jtoxcore_JTox_tox_1send_1message(JNIEnv *env,
 	return mess_id;
 }
 
-JNIEXPORT jboolean JNICALL Java_im_tox_jtoxcore_JTox_tox_1send_1action(JNIEnv *env, jobject obj, jlong messenger,
-		jint friendnumber, jbyteArray action, jint length)
+JNIEXPORT jint JNICALL Java_im_tox_jtoxcore_JTox_tox_1send_1message_1direct(JNIEnv *env, jobject obj,
+		jlong messenger, jint friendnumber, jobject message, jint offset, jint length)
+{
+	uint8_t *_message = (*env)->GetDirectBufferAddress(env, message);
+
+	UNUSED(obj);
+
+	if (_message == 0) {
+		return 0;
+	}
+
+	return tox_send_message(((tox_jni_globals_t *) ((intptr_t) messenger))->tox, friendnumber, _message + offset,
+							length);
+}
+
+JNIEXPORT jintArray JNICALL Java_im_tox_jtoxcore_JTox_tox_1send_1message_1fragments(JNIEnv *env, jobject obj,
+		jlong messenger, jint friendnumber, jbyteArray message, jintArray ends)
+{
+	Tox *tox = ((tox_jni_globals_t *) ((intptr_t) messenger))->tox;
+	jsize count = (*env)->GetArrayLength(env, ends);
+	jintArray result = (*env)->NewIntArray(env, count);
+	jint *ids;
+	jbyte *_message;
+	jint start = 0;
+	jsize i;
+
+	if (result == 0 || count == 0) {
+		return result;
+	}
+
+	ids = malloc(count * sizeof(jint));
+
+	if (ids == 0) {
+		return 0;
+	}
+
+	(*env)->GetIntArrayRegion(env, ends, 0, count, ids);
+	_message = (*env)->GetByteArrayElements(env, message, 0);
+
+	for (i = 0; i < count; ++i) {
+		jint end = ids[i];
+		ids[i] = tox_send_message(tox, friendnumber, (uint8_t *) _message + start, end - start);
+		start = end;
+
+		if (ids[i] == 0) {
+			break;
+		}
+	}
+
+	for (++i; i < count; ++i) {
+		ids[i] = 0;
+	}
+
+	(*env)->ReleaseByteArrayElements(env, message, _message, JNI_ABORT);
+	(*env)->SetIntArrayRegion(env, result, 0, count, ids);
+	free(ids);
+
+	UNUSED(obj);
+	return result;
+}
+
+JNIEXPORT jintArray JNICALL Java_im_tox_jtoxcore_JTox_tox_1send_1message_1to_1many(JNIEnv *env, jobject obj,
+		jlong messenger, jintArray friendnumbers, jbyteArray message, jint length)
 {
-	jbyte *_action = (*env)->GetByteArrayElements(env, action, 0);
+	Tox *tox = ((tox_jni_globals_t *) ((intptr_t) messenger))->tox;
+	jsize count = (*env)->GetArrayLength(env, friendnumbers);
+	jintArray result = (*env)->NewIntArray(env, count);
+	jint *ids;
+	jbyte *_message;
+	jsize i;
 
-	jboolean ret = tox_send_action(((tox_jni_globals_t *) ((intptr_t) messenger))->tox, friendnumber, (uint8_t *) _action,
-								   length);
-	(*env)->ReleaseByteArrayElements(env, action, _action, JNI_ABORT);
+	if (result == 0 || count == 0) {
+		return result;
+	}
+
+	ids = malloc(count * sizeof(jint));
+
+	if (ids == 0) {
+		return 0;
+	}
+
+	(*env)->GetIntArrayRegion(env, friendnumbers, 0, count, ids);
+	_message = (*env)->GetByteArrayElements(env, message, 0);
+
+	for (i = 0; i < count; ++i) {
+		ids[i] = tox_send_message(tox, ids[i], (uint8_t *) _message, length);
+	}
+
+	(*env)->ReleaseByteArrayElements(env, message, _message, JNI_ABORT);
+	(*env)->SetIntArrayRegion(env, result, 0, count, ids);
+	free(ids);
 
 	UNUSED(obj);
-	return ret;
+	return result;
 }
 
-JNIEXPORT jboolean JNICALL Java_im_tox_jtoxcore_JTox_tox_1set_1name(JNIEnv *env, jobject obj, jlong messenger,
-		jbyteArray newname, jint length)
+JNIEXPORT jint JNICALL Java_im_tox_jtoxcore_JTox_tox_1send_1action_1direct(JNIEnv *env, jobject obj,
+		jlong messenger, jint friendnumber, jobject action, jint offset, jint length)
 {
-	jbyte *_newname = (*env)->GetByteArrayElements(env, newname, 0);
+	uint8_t *_action = (*env)->GetDirectBufferAddress(env, action);
+
+	UNUSED(obj);
+
+	if (_action == 0) {
+		return 0;
+	}
 
-	jboolean ret =
-		tox_set_name(((tox_jni_globals_t *) ((intptr_t) messenger))->tox, (uint8_t *) _newname, length) == 0 ?
-		JNI_FALSE : JNI_TRUE;
-	(*env)->ReleaseByteArrayElements(env, newname, _newname, JNI_ABORT);
+	return tox_send_action(((tox_jni_globals_t *) ((intptr_t) messenger))->tox, friendnumber, _action + offset, length);
+}
+
+JNIEXPORT jboolean JNICALL Java_im_tox_jtoxcore_JTox_tox_1set_1name_1direct(JNIEnv *env, jobject obj, jlong messenger,
+		jobject newname, jint offset, jint length)
+{
+	uint8_t *_newname = (*env)->GetDirectBufferAddress(env, newname);
 
 	UNUSED(obj);
-	return ret;
+
+	if (_newname == 0) {
+		return JNI_TRUE;
+	}
+
+	return tox_set_name(((tox_jni_globals_t *) ((intptr_t) messenger))->tox, _newname + offset, length) == 0 ?
+		   JNI_FALSE : JNI_TRUE;
 }
 
 JNIEXPORT jstring JNICALL Java_im_tox_jtoxcore_JTox_tox_1get_1self_1name(JNIEnv *env, jobject obj, jlong messenger)
@@ -373,18 +521,19 @@ JNIEXPORT jstring JNICALL Java_im_tox_jtoxcore_JTox_tox_1get_1self_1name(JNIEnv
 	return _name;
 }
 
-JNIEXPORT jboolean JNICALL Java_im_tox_jtoxcore_JTox_tox_1set_1status_1message(JNIEnv *env, jobject obj,
-		jlong messenger, jbyteArray newstatus, jint length)
+JNIEXPORT jboolean JNICALL Java_im_tox_jtoxcore_JTox_tox_1set_1status_1message_1direct(JNIEnv *env, jobject obj,
+		jlong messenger, jobject newstatus, jint offset, jint length)
 {
-	jbyte *_newstatus = (*env)->GetByteArrayElements(env, newstatus, 0);
-	jboolean ret =
-		tox_set_status_message(((tox_jni_globals_t *) ((intptr_t) messenger))->tox, (uint8_t *) _newstatus, length) == 0 ?
-		JNI_FALSE :
-		JNI_TRUE;
-	(*env)->ReleaseByteArrayElements(env, newstatus, _newstatus, JNI_ABORT);
+	uint8_t *_newstatus = (*env)->GetDirectBufferAddress(env, newstatus);
 
 	UNUSED(obj);
-	return ret;
+
+	if (_newstatus == 0) {
+		return JNI_TRUE;
+	}
+
+	return tox_set_status_message(((tox_jni_globals_t *) ((intptr_t) messenger))->tox, _newstatus + offset, length) == 0 ?
+		   JNI_FALSE : JNI_TRUE;
 }
 
 JNIEXPORT jint JNICALL Java_im_tox_jtoxcore_JTox_tox_1get_1friend_1connection_1status(JNIEnv *env, jobject obj,
@@ -517,6 +666,20 @@ JNIEXPORT jint JNICALL Java_im_tox_jtoxcore_JTox_tox_1file_1send_1data(JNIEnv *e
 	return result;
 }
 
+JNIEXPORT jint JNICALL Java_im_tox_jtoxcore_JTox_tox_1file_1send_1data_1direct(JNIEnv *env, jobject obj,
+		jlong messenger, jint friendnumber, jint filenumber, jobject data, jint offset, jint length)
+{
+	uint8_t *_data = (*env)->GetDirectBufferAddress(env, data);
+	UNUSED(obj);
+
+	if (_data == 0) {
+		return -1;
+	}
+
+	return tox_file_send_data(((tox_jni_globals_t *) ((intptr_t) messenger))->tox, friendnumber, filenumber,
+							  _data + offset, length);
+}
+
 JNIEXPORT jint JNICALL Java_im_tox_jtoxcore_JTox_tox_1file_1data_1size(JNIEnv *env, jobject obj, jlong messenger,
 		jint friendnumber)
 {
@@ -880,39 +1043,37 @@ JNIEXPORT jbyteArray JNICALL Java_im_tox_jtoxcore_JTox_toxav_1prepare_1video_1fr
 {
 	jbyteArray output;
 	vpx_image_t img;
+	yv12_layout_t layout;
 	ToxAv *tox_av = ((tox_av_jni_globals_t *) ((intptr_t) messenger))->toxav;
-	int stride = ALIGN(width, 16);
-	int y_size = stride * height;
-	int c_stride = ALIGN(stride / 2, 16);
-	int c_size = c_stride * height / 2;
-	//int size = y_size + c_size*2;
-	int cr_offset = y_size;
-	int cb_offset = y_size + c_size;
-	uint8_t y;
-	uint8_t v;
-	uint8_t u;
-	jbyte *_data = (*env)->GetByteArrayElements(env, data, 0);
-	vpx_img_alloc(&img, VPX_IMG_FMT_YV12, width, height, 1);
-	unsigned long int y_coord, x_coord;
-
-	for (y_coord = 0; y_coord < img.d_h; ++y_coord) {
-		for (x_coord = 0; x_coord < img.d_w; ++x_coord) {
-			y = *(_data + (y_coord * stride) + x_coord);
-			img.planes[0][y * (img.stride[0] + x_coord)] = y;
-
-			if (x_coord == (x_coord / 2) * 2) {
-				v = *(_data + cr_offset + (y_coord * c_stride) + x_coord / 2);
-				img.planes[1][y * (img.stride[1] + x_coord / 2)] = v;
-				u = *(_data + cb_offset + (y_coord * c_stride) + x_coord / 2);
-				img.planes[2][y * (img.stride[2] + x_coord / 2)] = u;
-			}
-		}
+	yv12_layout(width, height, &layout);
+
+	if (width <= 0 || height <= 0 || (*env)->GetArrayLength(env, data) < layout.size) {
+		return NULL;
+	}
+
+	if (vpx_img_alloc(&img, VPX_IMG_FMT_YV12, width, height, 1) == NULL) {
+		return NULL;
 	}
 
+	jbyte *_data = (*env)->GetByteArrayElements(env, data, 0);
+	uint8_t *src = (uint8_t *) _data;
+	copy_plane(img.planes[VPX_PLANE_Y], img.stride[VPX_PLANE_Y], src, layout.stride, width, height);
+	copy_plane(img.planes[VPX_PLANE_V], img.stride[VPX_PLANE_V], src + layout.v_offset, layout.c_stride,
+			   layout.c_width, layout.c_height);
+	copy_plane(img.planes[VPX_PLANE_U], img.stride[VPX_PLANE_U], src + layout.u_offset, layout.c_stride,
+			   layout.c_width, layout.c_height);
+	(*env)->ReleaseByteArrayElements(env, data, _data, JNI_ABORT);
+
 	jbyte *dest = malloc(sizeof(jbyte) * dest_max);
 	jint res = toxav_prepare_video_frame(tox_av, (int32_t) call_index,
 										 (uint8_t *) dest, dest_max, &img);
-	(*env)->ReleaseByteArrayElements(env, data, _data, JNI_ABORT);
+	vpx_img_free(&img);
+
+	if (res < 0) {
+		free(dest);
+		return NULL;
+	}
+
 	output = (*env)->NewByteArray(env, res);
 	(*env)->SetByteArrayRegion(env, output, 0, res, dest);
 	free(dest);
@@ -922,23 +1083,71 @@ JNIEXPORT jbyteArray JNICALL Java_im_tox_jtoxcore_JTox_toxav_1prepare_1video_1fr
 }
 
 JNIEXPORT jbyteArray JNICALL Java_im_tox_jtoxcore_JTox_toxav_1prepare_1audio_1frame
-(JNIEnv *env, jobject obj, jlong messenger, jint call_index, jint dest_max, jintArray frame, jint frame_size)
+(JNIEnv *env, jobject obj, jlong messenger, jint call_index, jint dest_max, jshortArray frame, jint frame_size,
+ jint channels)
 {
 	jbyteArray output;
-	jbyte *dest = malloc(sizeof(jbyte) * dest_max);
 	ToxAv *tox_av = ((tox_av_jni_globals_t *) ((intptr_t) messenger))->toxav;
-	jint *_frame = (*env)->GetIntArrayElements(env, frame, 0);
+
+	UNUSED(obj);
+
+	if (frame_size < 0 || channels <= 0 || dest_max < 0
+			|| (jlong) frame_size * channels > (*env)->GetArrayLength(env, frame)) {
+		return NULL;
+	}
+
+	jbyte *dest = malloc(sizeof(jbyte) * dest_max);
+	//Encode straight from the array; nothing in between may call back into the VM
+	jshort *_frame = (*env)->GetPrimitiveArrayCritical(env, frame, 0);
+
+	if (_frame == NULL) {
+		free(dest);
+		return NULL;
+	}
+
 	jint res = toxav_prepare_audio_frame(tox_av, (int32_t) call_index,
 										 (uint8_t *) dest, dest_max, (int16_t *) _frame, frame_size);
+	(*env)->ReleasePrimitiveArrayCritical(env, frame, _frame, JNI_ABORT);
+
+	if (res < 0) {
+		free(dest);
+		return NULL;
+	}
+
 	output = (*env)->NewByteArray(env, res);
 	(*env)->SetByteArrayRegion(env, output, 0, res, dest);
 	free(dest);
-	(*env)->ReleaseIntArrayElements(env, frame, _frame, JNI_ABORT);
 
-	UNUSED(obj);
 	return output;
 }
 
+JNIEXPORT jint JNICALL Java_im_tox_jtoxcore_JTox_toxav_1prepare_1audio_1frame_1direct
+(JNIEnv *env, jobject obj, jlong messenger, jint call_index, jobject frame, jint frame_offset, jint frame_size,
+ jint channels, jobject dest, jint dest_offset, jint dest_max)
+{
+	ToxAv *tox_av = ((tox_av_jni_globals_t *) ((intptr_t) messenger))->toxav;
+	int16_t *_frame = (*env)->GetDirectBufferAddress(env, frame);
+	uint8_t *_dest = (*env)->GetDirectBufferAddress(env, dest);
+	UNUSED(obj);
+
+	if (_frame == 0 || _dest == 0) {
+		return -1;
+	}
+
+	//Capacities are in elements, so samples for the frame and bytes for dest
+	if (frame_offset < 0 || frame_size < 0 || channels <= 0
+			|| frame_offset + (jlong) frame_size * channels > (*env)->GetDirectBufferCapacity(env, frame)) {
+		return -1;
+	}
+
+	if (dest_offset < 0 || dest_max < 0 || (jlong) dest_offset + dest_max > (*env)->GetDirectBufferCapacity(env, dest)) {
+		return -1;
+	}
+
+	return toxav_prepare_audio_frame(tox_av, (int32_t) call_index, _dest + dest_offset, dest_max,
+									 _frame + frame_offset, frame_size);
+}
+
 JNIEXPORT jobject JNICALL Java_im_tox_jtoxcore_JTox_toxav_1get_1peer_1csettings
 (JNIEnv *env, jobject obj, jlong messenger, jint call_index, jint peer)
 {
@@ -1103,9 +1312,28 @@ static void callback_filedata(Tox *tox, int32_t friendnumber, uint8_t filenumber
 	tox_jni_globals_t *ptr = (tox_jni_globals_t *) rptr;
 	JNIEnv *env;
 	jbyteArray _data;
+	jobject buffer;
 
     ATTACH_THREAD(ptr, env);
 
+	/* While chunk callbacks are registered, the handler leases a direct buffer to fill */
+	buffer = (*env)->GetObjectField(env, ptr->handler, ptr->cache->chunkBufferFieldId);
+
+	if (buffer != NULL) {
+		void *address = (*env)->GetDirectBufferAddress(env, buffer);
+
+		if (address != NULL && (*env)->GetDirectBufferCapacity(env, buffer) >= length) {
+			memcpy(address, data, length);
+			(*env)->CallVoidMethod(env, ptr->handler, ptr->cache->onFileChunkMethodId, friendnumber, filenumber,
+								   buffer, (jint) length);
+			(*env)->DeleteLocalRef(env, buffer);
+			UNUSED(tox);
+			return;
+		}
+
+		(*env)->DeleteLocalRef(env, buffer);
+	}
+
 	_data = (*env)->NewByteArray(env, length);
 	(*env)->SetByteArrayRegion(env, _data, 0, length, (jbyte *) data);
 
@@ -1361,16 +1589,46 @@ static void avcallback_audio(ToxAv *tox_av, int32_t call_id, int16_t *pcm_data,
 {
 	tox_av_jni_globals_t *globals = (tox_av_jni_globals_t *) user_data;
 	JNIEnv *env;
-	jbyteArray output;
+	jint size = pcm_data_length * 2;
 
 	ATTACH_THREAD(globals, env);
-	
-	//create java byte array from pcm data
-	output = (*env)->NewByteArray(env, pcm_data_length*2);
-	(*env)->SetByteArrayRegion(env, output, 0, pcm_data_length*2, (jbyte*) pcm_data);
 
-	(*env)->CallVoidMethod(env, globals->handler, globals->cache->onAudioDataMethodId, call_id, output);
-	(*env)->DeleteLocalRef(env, output);
+	//copy the pcm data into a pooled direct buffer, keeping the native byte order
+	jobject buffer = (*env)->CallObjectMethod(env, globals->handler, globals->cache->audioBufferMethodId, call_id,
+					 size);
+
+	if ((*env)->ExceptionCheck(env)) {
+		//Do not leave the exception pending on this thread
+		(*env)->ExceptionDescribe(env);
+		(*env)->ExceptionClear(env);
+
+		if (buffer != NULL) {
+			(*env)->DeleteLocalRef(env, buffer);
+		}
+
+		return;
+	}
+
+	if (buffer == NULL) {
+		//Nobody is interested in audio
+		return;
+	}
+
+	uint8_t *dst = (uint8_t *) (*env)->GetDirectBufferAddress(env, buffer);
+
+	if (dst != NULL) {
+		memcpy(dst, pcm_data, size);
+	}
+
+	//Also called without data, with a length of 0, so the buffer goes back to its pool
+	(*env)->CallVoidMethod(env, globals->handler, globals->cache->onAudioFrameMethodId, call_id, buffer,
+						   dst == NULL ? 0 : size);
+	(*env)->DeleteLocalRef(env, buffer);
+
+	if ((*env)->ExceptionCheck(env)) {
+		(*env)->ExceptionDescribe(env);
+		(*env)->ExceptionClear(env);
+	}
 
 	UNUSED(tox_av);
 }
@@ -1382,39 +1640,48 @@ static void avcallback_video(ToxAv *tox_av, int32_t call_id, vpx_image_t *img, v
 
 	ATTACH_THREAD(globals, env);
 
-	//Create Android YV12 byte array from vpx_image
-	jbyteArray output;
-	int stride = ALIGN(img->d_w, 16);
-	int y_size = stride * (img->d_h);
-	int c_stride = ALIGN(stride / 2, 16);
-	int c_size = c_stride * (img->d_h) / 2;
-	int size = y_size + c_size * 2;
-	int cr_offset = y_size;
-	int cb_offset = y_size + c_size;
-	uint8_t y;
-	uint8_t v;
-	uint8_t u;
-	jbyte _output[size];
-	unsigned long int y_coord, x_coord;
-
-	for (y_coord = 0; y_coord < img->d_h; ++y_coord) {
-		for (x_coord = 0; x_coord < img->d_w; ++x_coord) {
-			y = (img->planes[0][((y_coord * img->stride[0]), x_coord)]);
-			_output[(y_coord * stride) + x_coord] = y;
-
-			if (x_coord == (x_coord / 2) * 2) {
-				v = (img->planes[1][((y_coord * (img->stride[1] / 2)), x_coord / 2)]);
-				_output[cr_offset + (y_coord * c_stride) + x_coord / 2] = v;
-				u = (img->planes[2][((y_coord * (img->stride[2] / 2)), x_coord / 2)]);
-				_output[cb_offset + (y_coord * c_stride) + x_coord / 2] = u;
-			}
+	//Convert the vpx_image to Android YV12, straight into a pooled direct buffer
+	yv12_layout_t layout;
+	yv12_layout(img->d_w, img->d_h, &layout);
+	jobject buffer = (*env)->CallObjectMethod(env, globals->handler, globals->cache->videoBufferMethodId, call_id,
+					 layout.size);
+
+	if ((*env)->ExceptionCheck(env)) {
+		//Do not leave the exception pending on this thread
+		(*env)->ExceptionDescribe(env);
+		(*env)->ExceptionClear(env);
+
+		if (buffer != NULL) {
+			(*env)->DeleteLocalRef(env, buffer);
 		}
+
+		return;
+	}
+
+	if (buffer == NULL) {
+		//Nobody is interested in video
+		return;
 	}
 
-	output = (*env)->NewByteArray(env, size);
-	(*env)->SetByteArrayRegion(env, output, 0, size, _output);
+	uint8_t *dst = (uint8_t *) (*env)->GetDirectBufferAddress(env, buffer);
 
-    (*env)->CallVoidMethod(env, globals->handler, globals->cache->onVideoDataMethodId, call_id, output, img->d_w, img->d_h);
+	if (dst != NULL) {
+		copy_plane(dst, layout.stride, img->planes[VPX_PLANE_Y], img->stride[VPX_PLANE_Y], img->d_w, img->d_h);
+		copy_plane(dst + layout.v_offset, layout.c_stride, img->planes[VPX_PLANE_V], img->stride[VPX_PLANE_V],
+				   layout.c_width, layout.c_height);
+		copy_plane(dst + layout.u_offset, layout.c_stride, img->planes[VPX_PLANE_U], img->stride[VPX_PLANE_U],
+				   layout.c_width, layout.c_height);
+	}
+
+	//Also called without data, with an empty frame, so the buffer goes back to its pool
+	(*env)->CallVoidMethod(env, globals->handler, globals->cache->onVideoFrameMethodId, call_id, buffer,
+						   dst == NULL ? 0 : img->d_w, dst == NULL ? 0 : img->d_h, layout.stride, layout.c_stride);
+	(*env)->DeleteLocalRef(env, buffer);
+
+	if ((*env)->ExceptionCheck(env)) {
+		(*env)->ExceptionDescribe(env);
+		(*env)->ExceptionClear(env);
+	}
 
     UNUSED(tox_av);
 }
@@ -1,6 +1,8 @@
 typedef struct {
    jmethodID onFileControlMethodId;
    jmethodID onFileDataMethodId;
+   jmethodID onFileChunkMethodId;
+   jfieldID chunkBufferFieldId;
    jmethodID onFileSendRequestMethodId;
    jmethodID onFriendRequestMethodId;
    jmethodID onMessageMethodId;
@@ -11,8 +13,10 @@ typedef struct {
    jmethodID onReadReceiptMethodId;
    jmethodID onConnectionStatusMethodId;
    jmethodID onTypingChangeMethodId;
-   jmethodID onAudioDataMethodId;
-   jmethodID onVideoDataMethodId;
+   jmethodID audioBufferMethodId;
+   jmethodID onAudioFrameMethodId;
+   jmethodID videoBufferMethodId;
+   jmethodID onVideoFrameMethodId;
    jmethodID onAvCallbackMethodId;
 } cachedId;
 
@@ -0,0 +1,92 @@
+/* AudioFrame.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Decoded 16 bit PCM audio, held in a pooled direct buffer in native byte
+ * order, so it can be handed to audio output without converting it. The frame
+ * is only valid until the callback that got it returns; call
+ * {@link #retain()} to keep it, and {@link #release()} once done with it.
+ */
+public final class AudioFrame {
+
+	private final PooledBuffer lease;
+
+	/**
+	 * Create a frame held in the given lease
+	 *
+	 * @param lease
+	 *            the lease holding the samples between the position and the
+	 *            limit of its buffer. Its reference is owned by the frame.
+	 */
+	public AudioFrame(PooledBuffer lease) {
+		this.lease = lease;
+	}
+
+	/**
+	 * @return the raw sample data, between the position and the limit of the
+	 *         buffer. Holders sharing the frame must not move them; use
+	 *         {@link ByteBuffer#duplicate()} to read at an own position.
+	 */
+	public ByteBuffer buffer() {
+		return this.lease.buffer();
+	}
+
+	/**
+	 * @return a new view of the samples, interleaved if there is more than
+	 *         one channel
+	 */
+	public ShortBuffer samples() {
+		return this.lease.buffer().duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+	}
+
+	/**
+	 * @return the number of samples of all channels together
+	 */
+	public int getSampleCount() {
+		return this.lease.buffer().remaining() / 2;
+	}
+
+	/**
+	 * Add a reference, to keep the frame after the callback that got it
+	 * returned
+	 *
+	 * @return this frame
+	 */
+	public AudioFrame retain() {
+		this.lease.retain();
+		return this;
+	}
+
+	/**
+	 * Remove a reference. The buffer goes back to its pool when the last
+	 * reference is released.
+	 *
+	 * @return true if this was the last reference
+	 */
+	public boolean release() {
+		return this.lease.release();
+	}
+}
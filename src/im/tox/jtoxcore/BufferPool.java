@@ -0,0 +1,97 @@
+/* BufferPool.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct buffers of one size. Allocating direct buffers is expensive,
+ * and their memory is only returned to the system when they are garbage
+ * collected, so buffers used for file data are recycled through a pool.
+ */
+public final class BufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * Create a new, empty pool
+	 *
+	 * @param bufferSize
+	 *            the capacity of every buffer in bytes
+	 * @param maxPooled
+	 *            the maximum number of idle buffers kept
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return the capacity of every buffer in bytes
+	 */
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	/**
+	 * Take a buffer from the pool, or allocate a new one if the pool is empty
+	 *
+	 * @return a cleared direct buffer
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer;
+
+		synchronized (this) {
+			buffer = this.free.poll();
+		}
+
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(this.bufferSize);
+		}
+
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Take a buffer from the pool as a reference counted lease
+	 *
+	 * @return the lease, holding one reference
+	 */
+	public PooledBuffer lease() {
+		return new PooledBuffer(this, acquire());
+	}
+
+	/**
+	 * Return a buffer to the pool. The buffer must not be used afterwards.
+	 *
+	 * @param buffer
+	 *            a buffer obtained from {@link #acquire()}
+	 */
+	public synchronized void release(ByteBuffer buffer) {
+		if (this.free.size() < this.maxPooled) {
+			this.free.push(buffer);
+		}
+	}
+}
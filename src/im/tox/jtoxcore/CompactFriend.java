@@ -0,0 +1,119 @@
+/* CompactFriend.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * Flyweight view of a friend stored in a {@link CompactFriendList}. A view only
+ * holds its list and friendnumber. All getters and setters read from and write
+ * to the arrays of the list.
+ * <p/>
+ * Views of a removed friend must not be used anymore.
+ */
+public final class CompactFriend implements ToxFriend {
+
+	private final CompactFriendList list;
+	private final int friendnumber;
+
+	CompactFriend(CompactFriendList list, int friendnumber) {
+		this.list = list;
+		this.friendnumber = friendnumber;
+	}
+
+	@Override
+	public String getId() {
+		return this.list.getId(this.friendnumber);
+	}
+
+	@Override
+	public String getName() {
+		return this.list.getName(this.friendnumber);
+	}
+
+	@Override
+	public String getStatusMessage() {
+		return this.list.getStatusMessage(this.friendnumber);
+	}
+
+	@Override
+	public ToxUserStatus getStatus() {
+		return this.list.getStatus(this.friendnumber);
+	}
+
+	@Override
+	public boolean isOnline() {
+		return this.list.getFlag(this.friendnumber, CompactFriendList.FLAG_ONLINE);
+	}
+
+	@Override
+	public int getFriendnumber() {
+		return this.friendnumber;
+	}
+
+	@Override
+	public boolean isTyping() {
+		return this.list.getFlag(this.friendnumber, CompactFriendList.FLAG_TYPING);
+	}
+
+	@Override
+	public void setId(String id) {
+		this.list.setId(this.friendnumber, id);
+	}
+
+	@Override
+	public void setName(String name) {
+		this.list.setName(this.friendnumber, name);
+	}
+
+	@Override
+	public void setStatusMessage(String statusMessage) {
+		this.list.setStatusMessage(this.friendnumber, statusMessage);
+	}
+
+	@Override
+	public void setStatus(ToxUserStatus status) {
+		this.list.setStatus(this.friendnumber, status);
+	}
+
+	@Override
+	public void setOnline(boolean online) {
+		this.list.setFlag(this.friendnumber, CompactFriendList.FLAG_ONLINE, online);
+	}
+
+	@Override
+	public void setTyping(boolean typing) {
+		this.list.setFlag(this.friendnumber, CompactFriendList.FLAG_TYPING, typing);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof CompactFriend)) {
+			return false;
+		}
+
+		CompactFriend other = (CompactFriend) obj;
+		return other.list == this.list && other.friendnumber == this.friendnumber;
+	}
+
+	@Override
+	public int hashCode() {
+		return System.identityHashCode(this.list) * 31 + this.friendnumber;
+	}
+}
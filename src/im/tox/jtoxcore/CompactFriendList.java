@@ -0,0 +1,434 @@
+/* CompactFriendList.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Memory efficient {@link FriendList} for very large friend lists. Instead of
+ * one object per friend, all state is kept in primitive arrays indexed by
+ * friendnumber:
+ * <ul>
+ * <li>client ids are stored as raw bytes in a single slab</li>
+ * <li>online, typing and {@link ToxUserStatus} are packed into one byte per
+ * friend</li>
+ * <li>names and status messages are stored UTF-8 encoded in a shared arena,
+ * which is compacted when more than half of it is garbage</li>
+ * </ul>
+ * The {@link CompactFriend} instances handed out by this list are flyweight
+ * views that read from and write to these arrays. They are created on demand,
+ * so two views of the same friend are equal but not necessarily identical.
+ * <p/>
+ * Client ids are stored in binary form, so {@link CompactFriend#getId()}
+ * always returns upper case hexadecimal, as returned by the core. Ids that are
+ * not hexadecimal or have an odd number of digits are rejected with an
+ * {@link IllegalArgumentException}, both when setting them and when looking
+ * friends up by them. Ids longer than a full address can not be set either.
+ * Empty names and status messages are not stored and read back as null.
+ * <p/>
+ * All methods are synchronized on the list instance.
+ */
+public class CompactFriendList implements FriendList<CompactFriend> {
+
+	/**
+	 * Maximum length of a stored client id in bytes. Friends added by address
+	 * carry the full address including nospam and checksum.
+	 */
+	private static final int ID_LENGTH = 38;
+
+	private static final byte FLAG_PRESENT = 1;
+	static final byte FLAG_ONLINE = 2;
+	static final byte FLAG_TYPING = 4;
+	private static final int STATUS_SHIFT = 3;
+	private static final int STATUS_MASK = 7 << STATUS_SHIFT;
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private int capacity;
+	private int size;
+
+	private byte[] flags;
+	private byte[] idSlab;
+	private byte[] idLengths;
+
+	private int[] nameOffsets;
+	private int[] nameLengths;
+	private int[] statusMessageOffsets;
+	private int[] statusMessageLengths;
+
+	private byte[] arena;
+	private int arenaUsed;
+	private int arenaGarbage;
+
+	/**
+	 * Create a new, empty list
+	 */
+	public CompactFriendList() {
+		this(64);
+	}
+
+	/**
+	 * Create a new, empty list with room for the specified number of friends
+	 *
+	 * @param initialCapacity
+	 *            the number of friends to allocate space for
+	 */
+	public CompactFriendList(int initialCapacity) {
+		this.capacity = Math.max(initialCapacity, 1);
+		this.flags = new byte[this.capacity];
+		this.idSlab = new byte[this.capacity * ID_LENGTH];
+		this.idLengths = new byte[this.capacity];
+		this.nameOffsets = new int[this.capacity];
+		this.nameLengths = new int[this.capacity];
+		this.statusMessageOffsets = new int[this.capacity];
+		this.statusMessageLengths = new int[this.capacity];
+		this.arena = new byte[this.capacity * 16];
+	}
+
+	@Override
+	public synchronized CompactFriend getByFriendNumber(int friendnumber) {
+		return exists(friendnumber) ? new CompactFriend(this, friendnumber) : null;
+	}
+
+	@Override
+	public synchronized CompactFriend getById(String id) {
+		byte[] key = parseHex(id);
+
+		for (int i = 0; i < this.capacity; i++) {
+			if (exists(i) && this.idLengths[i] == key.length && regionEquals(this.idSlab, i * ID_LENGTH, key)) {
+				return new CompactFriend(this, i);
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	public synchronized List<CompactFriend> getByName(String name, boolean ignorecase) {
+		List<CompactFriend> result = new ArrayList<CompactFriend>();
+		byte[] encoded = Utf8Codec.encode(name);
+
+		for (int i = 0; i < this.capacity; i++) {
+			if (!exists(i)) {
+				continue;
+			}
+
+			boolean match;
+
+			if (ignorecase) {
+				match = name.equalsIgnoreCase(getName(i));
+			} else {
+				match = this.nameLengths[i] == encoded.length && regionEquals(this.arena, this.nameOffsets[i], encoded);
+			}
+
+			if (match) {
+				result.add(new CompactFriend(this, i));
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public synchronized List<CompactFriend> searchFriend(String partial) {
+		List<CompactFriend> result = new ArrayList<CompactFriend>();
+		String lower = partial.toLowerCase(Locale.ROOT);
+
+		for (int i = 0; i < this.capacity; i++) {
+			if (exists(i) && this.nameLengths[i] > 0 && getName(i).toLowerCase(Locale.ROOT).contains(lower)) {
+				result.add(new CompactFriend(this, i));
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public synchronized List<CompactFriend> getByStatus(ToxUserStatus status) {
+		List<CompactFriend> result = new ArrayList<CompactFriend>();
+		int wanted = FLAG_PRESENT | FLAG_ONLINE | ((status.ordinal() + 1) << STATUS_SHIFT);
+
+		for (int i = 0; i < this.capacity; i++) {
+			if ((this.flags[i] & (FLAG_PRESENT | FLAG_ONLINE | STATUS_MASK)) == wanted) {
+				result.add(new CompactFriend(this, i));
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public synchronized List<CompactFriend> getOnlineFriends() {
+		return byFlags(FLAG_PRESENT | FLAG_ONLINE, FLAG_PRESENT | FLAG_ONLINE);
+	}
+
+	@Override
+	public synchronized List<CompactFriend> getOfflineFriends() {
+		return byFlags(FLAG_PRESENT | FLAG_ONLINE, FLAG_PRESENT);
+	}
+
+	@Override
+	public synchronized List<CompactFriend> all() {
+		return byFlags(FLAG_PRESENT, FLAG_PRESENT);
+	}
+
+	@Override
+	public synchronized CompactFriend addFriend(int friendnumber) throws FriendExistsException {
+		if (exists(friendnumber)) {
+			throw new FriendExistsException(friendnumber);
+		}
+
+		return insert(friendnumber);
+	}
+
+	@Override
+	public synchronized CompactFriend addFriendIfNotExists(int friendnumber) {
+		if (exists(friendnumber)) {
+			return new CompactFriend(this, friendnumber);
+		}
+
+		return insert(friendnumber);
+	}
+
+	@Override
+	public synchronized void removeFriend(int friendnumber) {
+		if (!exists(friendnumber)) {
+			return;
+		}
+
+		this.arenaGarbage += this.nameLengths[friendnumber] + this.statusMessageLengths[friendnumber];
+		this.flags[friendnumber] = 0;
+		this.idLengths[friendnumber] = 0;
+		this.nameLengths[friendnumber] = 0;
+		this.statusMessageLengths[friendnumber] = 0;
+		this.size--;
+	}
+
+	/**
+	 * @return the number of friends in this list
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+
+	synchronized boolean exists(int friendnumber) {
+		return friendnumber >= 0 && friendnumber < this.capacity && (this.flags[friendnumber] & FLAG_PRESENT) != 0;
+	}
+
+	synchronized String getId(int friendnumber) {
+		int length = this.idLengths[friendnumber];
+
+		if (length == 0) {
+			return null;
+		}
+
+		char[] hex = new char[length * 2];
+		int offset = friendnumber * ID_LENGTH;
+
+		for (int i = 0; i < length; i++) {
+			int b = this.idSlab[offset + i] & 0xff;
+			hex[i * 2] = HEX[b >>> 4];
+			hex[i * 2 + 1] = HEX[b & 0xf];
+		}
+
+		return new String(hex);
+	}
+
+	synchronized void setId(int friendnumber, String id) {
+		if (id == null) {
+			this.idLengths[friendnumber] = 0;
+			return;
+		}
+
+		byte[] key = parseHex(id);
+
+		if (key.length > ID_LENGTH) {
+			throw new IllegalArgumentException("id must not be longer than " + ID_LENGTH + " bytes");
+		}
+
+		System.arraycopy(key, 0, this.idSlab, friendnumber * ID_LENGTH, key.length);
+		this.idLengths[friendnumber] = (byte) key.length;
+	}
+
+	synchronized String getName(int friendnumber) {
+		return decode(this.nameOffsets[friendnumber], this.nameLengths[friendnumber]);
+	}
+
+	synchronized void setName(int friendnumber, String name) {
+		this.arenaGarbage += this.nameLengths[friendnumber];
+		byte[] encoded = name == null ? new byte[0] : Utf8Codec.encode(name);
+		this.nameOffsets[friendnumber] = append(encoded);
+		this.nameLengths[friendnumber] = encoded.length;
+	}
+
+	synchronized String getStatusMessage(int friendnumber) {
+		return decode(this.statusMessageOffsets[friendnumber], this.statusMessageLengths[friendnumber]);
+	}
+
+	synchronized void setStatusMessage(int friendnumber, String statusMessage) {
+		this.arenaGarbage += this.statusMessageLengths[friendnumber];
+		byte[] encoded = statusMessage == null ? new byte[0] : Utf8Codec.encode(statusMessage);
+		this.statusMessageOffsets[friendnumber] = append(encoded);
+		this.statusMessageLengths[friendnumber] = encoded.length;
+	}
+
+	synchronized ToxUserStatus getStatus(int friendnumber) {
+		int status = (this.flags[friendnumber] & STATUS_MASK) >>> STATUS_SHIFT;
+		return status == 0 ? null : ToxUserStatus.values()[status - 1];
+	}
+
+	synchronized void setStatus(int friendnumber, ToxUserStatus status) {
+		int value = status == null ? 0 : (status.ordinal() + 1) << STATUS_SHIFT;
+		this.flags[friendnumber] = (byte) ((this.flags[friendnumber] & ~STATUS_MASK) | value);
+	}
+
+	synchronized boolean getFlag(int friendnumber, byte flag) {
+		return (this.flags[friendnumber] & flag) != 0;
+	}
+
+	synchronized void setFlag(int friendnumber, byte flag, boolean value) {
+		if (value) {
+			this.flags[friendnumber] |= flag;
+		} else {
+			this.flags[friendnumber] &= ~flag;
+		}
+	}
+
+	private CompactFriend insert(int friendnumber) {
+		if (friendnumber >= this.capacity) {
+			grow(Math.max(friendnumber + 1, this.capacity * 2));
+		}
+
+		this.flags[friendnumber] = FLAG_PRESENT;
+		this.size++;
+		return new CompactFriend(this, friendnumber);
+	}
+
+	private void grow(int newCapacity) {
+		this.flags = Arrays.copyOf(this.flags, newCapacity);
+		this.idSlab = Arrays.copyOf(this.idSlab, newCapacity * ID_LENGTH);
+		this.idLengths = Arrays.copyOf(this.idLengths, newCapacity);
+		this.nameOffsets = Arrays.copyOf(this.nameOffsets, newCapacity);
+		this.nameLengths = Arrays.copyOf(this.nameLengths, newCapacity);
+		this.statusMessageOffsets = Arrays.copyOf(this.statusMessageOffsets, newCapacity);
+		this.statusMessageLengths = Arrays.copyOf(this.statusMessageLengths, newCapacity);
+		this.capacity = newCapacity;
+	}
+
+	private List<CompactFriend> byFlags(int mask, int wanted) {
+		List<CompactFriend> result = new ArrayList<CompactFriend>();
+
+		for (int i = 0; i < this.capacity; i++) {
+			if ((this.flags[i] & mask) == wanted) {
+				result.add(new CompactFriend(this, i));
+			}
+		}
+
+		return result;
+	}
+
+	private String decode(int offset, int length) {
+		if (length == 0) {
+			return null;
+		}
+
+		return new String(this.arena, offset, length, Utf8Codec.UTF8);
+	}
+
+	/**
+	 * Append the given bytes to the arena, compacting or growing it first if
+	 * necessary
+	 *
+	 * @return the offset of the appended bytes
+	 */
+	private int append(byte[] data) {
+		if (this.arenaUsed + data.length > this.arena.length) {
+			if (this.arenaGarbage > this.arenaUsed / 2) {
+				compact();
+			}
+
+			if (this.arenaUsed + data.length > this.arena.length) {
+				this.arena = Arrays.copyOf(this.arena, Math.max(this.arena.length * 2, this.arenaUsed + data.length));
+			}
+		}
+
+		int offset = this.arenaUsed;
+		System.arraycopy(data, 0, this.arena, offset, data.length);
+		this.arenaUsed += data.length;
+		return offset;
+	}
+
+	private void compact() {
+		byte[] compacted = new byte[this.arena.length];
+		int used = 0;
+
+		for (int i = 0; i < this.capacity; i++) {
+			if (!exists(i)) {
+				continue;
+			}
+
+			System.arraycopy(this.arena, this.nameOffsets[i], compacted, used, this.nameLengths[i]);
+			this.nameOffsets[i] = used;
+			used += this.nameLengths[i];
+			System.arraycopy(this.arena, this.statusMessageOffsets[i], compacted, used, this.statusMessageLengths[i]);
+			this.statusMessageOffsets[i] = used;
+			used += this.statusMessageLengths[i];
+		}
+
+		this.arena = compacted;
+		this.arenaUsed = used;
+		this.arenaGarbage = 0;
+	}
+
+	private static byte[] parseHex(String id) {
+		if (id.length() % 2 != 0) {
+			throw new IllegalArgumentException("id must have an even number of hex digits");
+		}
+
+		byte[] result = new byte[id.length() / 2];
+
+		for (int i = 0; i < result.length; i++) {
+			int high = Character.digit(id.charAt(i * 2), 16);
+			int low = Character.digit(id.charAt(i * 2 + 1), 16);
+
+			if (high < 0 || low < 0) {
+				throw new IllegalArgumentException("id must only contain hex digits");
+			}
+
+			result[i] = (byte) ((high << 4) + low);
+		}
+
+		return result;
+	}
+
+	private static boolean regionEquals(byte[] data, int offset, byte[] other) {
+		for (int i = 0; i < other.length; i++) {
+			if (data[offset + i] != other[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
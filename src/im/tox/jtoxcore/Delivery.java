@@ -0,0 +1,60 @@
+/* Delivery.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * A message that has been confirmed by a read receipt. Returned by the
+ * {@link DeliveryFuture}s of a {@link DeliveryTracker}.
+ */
+public final class Delivery {
+
+	private final int friendnumber;
+	private final int messageId;
+	private final long latency;
+
+	Delivery(int friendnumber, int messageId, long latency) {
+		this.friendnumber = friendnumber;
+		this.messageId = messageId;
+		this.latency = latency;
+	}
+
+	/**
+	 * @return the number of the friend the message was sent to
+	 */
+	public int getFriendnumber() {
+		return this.friendnumber;
+	}
+
+	/**
+	 * @return the message ID returned when sending the message
+	 */
+	public int getMessageId() {
+		return this.messageId;
+	}
+
+	/**
+	 * @return the time between sending the message and receiving the read
+	 *         receipt, in milliseconds
+	 */
+	public long getLatency() {
+		return this.latency;
+	}
+}
@@ -0,0 +1,188 @@
+/* DeliveryFuture.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of {@link DeliveryTracker#sendMessageAsync(ToxFriend, String)}. It
+ * completes with a {@link Delivery} when the read receipt arrives. It fails
+ * with a {@link ToxException} if the message could not be sent, and with a
+ * {@link TimeoutException} if no receipt arrived in time.
+ * <p/>
+ * Listeners added with {@link #addListener(Runnable)} are run on the thread
+ * completing the future, usually the tox thread, so they must not block.
+ */
+public final class DeliveryFuture implements Future<Delivery> {
+
+	private final int friendnumber;
+	private final int messageId;
+	private final DeliveryTracker<?> tracker;
+
+	private Delivery result;
+	private Throwable failure;
+	private boolean cancelled;
+	private List<Runnable> listeners;
+
+	DeliveryFuture(int friendnumber, int messageId, DeliveryTracker<?> tracker) {
+		this.friendnumber = friendnumber;
+		this.messageId = messageId;
+		this.tracker = tracker;
+	}
+
+	/**
+	 * @return the number of the friend the message was sent to
+	 */
+	public int getFriendnumber() {
+		return this.friendnumber;
+	}
+
+	/**
+	 * @return the message ID, or 0 if the message could not be sent
+	 */
+	public int getMessageId() {
+		return this.messageId;
+	}
+
+	/**
+	 * Add a listener that is run once this future is done. If it is done
+	 * already, the listener is run immediately.
+	 *
+	 * @param listener
+	 *            the listener
+	 */
+	public void addListener(Runnable listener) {
+		synchronized (this) {
+			if (!isDone()) {
+				if (this.listeners == null) {
+					this.listeners = new ArrayList<Runnable>(1);
+				}
+
+				this.listeners.add(listener);
+				return;
+			}
+		}
+
+		listener.run();
+	}
+
+	/**
+	 * Cancelling only stops waiting for the receipt. The message has been sent
+	 * already.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (!finish(null, null, true)) {
+			return false;
+		}
+
+		this.tracker.cancelled(this);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return this.cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return this.result != null || this.failure != null || this.cancelled;
+	}
+
+	@Override
+	public synchronized Delivery get() throws InterruptedException, ExecutionException {
+		while (!isDone()) {
+			wait();
+		}
+
+		return report();
+	}
+
+	@Override
+	public synchronized Delivery get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+		TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while (!isDone()) {
+			long remaining = deadline - System.nanoTime();
+
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+
+		return report();
+	}
+
+	boolean complete(Delivery delivery) {
+		return finish(delivery, null, false);
+	}
+
+	boolean fail(Throwable cause) {
+		return finish(null, cause, false);
+	}
+
+	private Delivery report() throws ExecutionException {
+		if (this.cancelled) {
+			throw new CancellationException();
+		}
+
+		if (this.failure != null) {
+			throw new ExecutionException(this.failure);
+		}
+
+		return this.result;
+	}
+
+	private boolean finish(Delivery delivery, Throwable cause, boolean cancel) {
+		List<Runnable> toRun;
+
+		synchronized (this) {
+			if (isDone()) {
+				return false;
+			}
+
+			this.result = delivery;
+			this.failure = cause;
+			this.cancelled = cancel;
+			toRun = this.listeners;
+			this.listeners = null;
+			notifyAll();
+		}
+
+		if (toRun != null) {
+			for (Runnable listener : toRun) {
+				listener.run();
+			}
+		}
+
+		return true;
+	}
+}
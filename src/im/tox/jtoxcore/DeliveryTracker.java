@@ -0,0 +1,342 @@
+/* DeliveryTracker.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import im.tox.jtoxcore.callbacks.CallbackHandler;
+import im.tox.jtoxcore.callbacks.OnReadReceiptCallback;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends messages and correlates them with their read receipts. Every message
+ * sent with {@link #sendMessageAsync(ToxFriend, String)} gets a
+ * {@link DeliveryFuture} that completes when the receipt arrives, or fails once
+ * the timeout has passed.
+ * <p/>
+ * Pending messages are kept in an open addressing map keyed by friendnumber
+ * and message ID packed into a long. Timeouts are kept in a hashed timing
+ * wheel which is advanced on every {@link #tick()}, so the cost per tick does
+ * not depend on the number of pending messages. The latency between sending
+ * and receipt is recorded per friend.
+ *
+ * @param <F>
+ *            Friend type of the JTox instance
+ */
+public class DeliveryTracker<F extends ToxFriend> implements ToxTask, OnReadReceiptCallback<F> {
+
+	private static final int WHEEL_SIZE = 512;
+	private static final long TICK_NANOS = 50L * 1000 * 1000;
+
+	private final JTox<F> tox;
+	private final CallbackHandler<F> handler;
+	private final long timeoutNanos;
+
+	private final LongObjectMap<Pending> pending = new LongObjectMap<Pending>();
+	private final Pending[] wheel = new Pending[WHEEL_SIZE];
+	private final long start = System.nanoTime();
+	private long processedTick;
+
+	private int[] deliveredCounts = new int[16];
+	private int[] timedOutCounts = new int[16];
+	private long[] latencySums = new long[16];
+	private long[] lastLatencies = new long[16];
+
+	/**
+	 * Create a new tracker, and register it with the given instance and
+	 * callback handler
+	 *
+	 * @param tox
+	 *            the instance to send messages with
+	 * @param handler
+	 *            the callback handler of the instance
+	 * @param timeoutMillis
+	 *            time to wait for a read receipt, in milliseconds
+	 */
+	public DeliveryTracker(JTox<F> tox, CallbackHandler<F> handler, long timeoutMillis) {
+		this.tox = tox;
+		this.handler = handler;
+		this.timeoutNanos = timeoutMillis * 1000 * 1000;
+		tox.registerTask(this);
+		handler.registerOnReadReceiptCallback(this);
+	}
+
+	/**
+	 * Unregister this tracker from its instance and callback handler. Pending
+	 * futures do not complete anymore.
+	 */
+	public void close() {
+		this.tox.unregisterTask(this);
+		this.handler.unregisterOnReadReceiptCallback(this);
+	}
+
+	/**
+	 * Send a message, and track its delivery.
+	 *
+	 * @param friend
+	 *            the friend
+	 * @param message
+	 *            the message
+	 * @return a future that completes when the read receipt arrives. If the
+	 *         core refused the message, the future has failed already.
+	 * @throws ToxException
+	 *             if the instance has been killed
+	 */
+	public DeliveryFuture sendMessageAsync(F friend, String message) throws ToxException {
+		return sendMessageAsync(friend.getFriendnumber(), JTox.getStringBytes(message));
+	}
+
+	/**
+	 * Send a UTF-8 encoded message, and track its delivery.
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 * @param payload
+	 *            the UTF-8 encoded message
+	 * @return a future that completes when the read receipt arrives. If the
+	 *         core refused the message, the future has failed already.
+	 * @throws ToxException
+	 *             if the instance has been killed
+	 * @see #sendMessageAsync(ToxFriend, String)
+	 */
+	public DeliveryFuture sendMessageAsync(int friendnumber, byte[] payload) throws ToxException {
+		DeliveryFuture future;
+		Pending replaced = null;
+
+		// Hold the instance lock, so the receipt can not arrive before the
+		// message is registered
+		this.tox.getLock().lock();
+
+		try {
+			int id = this.tox.sendMessageBytes(friendnumber, payload);
+			future = new DeliveryFuture(friendnumber, id, this);
+
+			if (id != 0) {
+				replaced = track(new Pending(friendnumber, id, future, System.nanoTime()));
+			}
+		} finally {
+			this.tox.getLock().unlock();
+		}
+
+		if (future.getMessageId() == 0) {
+			future.fail(new ToxException(ToxError.TOX_SEND_FAILED));
+		}
+
+		if (replaced != null) {
+			replaced.future.fail(new TimeoutException("Message ID reused before the read receipt arrived"));
+		}
+
+		return future;
+	}
+
+	/**
+	 * @return the number of messages waiting for a read receipt
+	 */
+	public synchronized int getPendingCount() {
+		return this.pending.size();
+	}
+
+	/**
+	 * @param friendnumber
+	 *            the friend's number
+	 * @return the number of messages to the friend confirmed by a read receipt
+	 */
+	public synchronized int getDeliveredCount(int friendnumber) {
+		return friendnumber < this.deliveredCounts.length ? this.deliveredCounts[friendnumber] : 0;
+	}
+
+	/**
+	 * @param friendnumber
+	 *            the friend's number
+	 * @return the number of messages to the friend without a read receipt
+	 *         before the timeout
+	 */
+	public synchronized int getTimedOutCount(int friendnumber) {
+		return friendnumber < this.timedOutCounts.length ? this.timedOutCounts[friendnumber] : 0;
+	}
+
+	/**
+	 * @param friendnumber
+	 *            the friend's number
+	 * @return the average time between sending a message to the friend and
+	 *         receiving its read receipt in milliseconds, or -1 if no message
+	 *         was delivered yet
+	 */
+	public synchronized long getAverageLatency(int friendnumber) {
+		int count = getDeliveredCount(friendnumber);
+		return count == 0 ? -1 : this.latencySums[friendnumber] / count;
+	}
+
+	/**
+	 * @param friendnumber
+	 *            the friend's number
+	 * @return the latency of the last delivered message to the friend in
+	 *         milliseconds, or -1 if no message was delivered yet
+	 */
+	public synchronized long getLastLatency(int friendnumber) {
+		return getDeliveredCount(friendnumber) == 0 ? -1 : this.lastLatencies[friendnumber];
+	}
+
+	@Override
+	public void execute(F friend, int receipt) {
+		Pending entry;
+		long latency;
+
+		synchronized (this) {
+			entry = this.pending.remove(key(friend.getFriendnumber(), receipt));
+
+			if (entry == null) {
+				return;
+			}
+
+			unlink(entry);
+			latency = (System.nanoTime() - entry.sent) / (1000 * 1000);
+			ensureCapacity(entry.friendnumber);
+			this.deliveredCounts[entry.friendnumber]++;
+			this.latencySums[entry.friendnumber] += latency;
+			this.lastLatencies[entry.friendnumber] = latency;
+		}
+
+		entry.future.complete(new Delivery(entry.friendnumber, entry.messageId, latency));
+	}
+
+	@Override
+	public void tick() {
+		Pending expired = null;
+
+		synchronized (this) {
+			long now = (System.nanoTime() - this.start) / TICK_NANOS;
+
+			while (this.processedTick < now) {
+				this.processedTick++;
+				int slot = (int) (this.processedTick & (WHEEL_SIZE - 1));
+				Pending entry = this.wheel[slot];
+
+				while (entry != null) {
+					Pending next = entry.next;
+
+					if (entry.deadline <= this.processedTick) {
+						unlink(entry);
+						this.pending.remove(key(entry.friendnumber, entry.messageId));
+						ensureCapacity(entry.friendnumber);
+						this.timedOutCounts[entry.friendnumber]++;
+						entry.next = expired;
+						expired = entry;
+					}
+
+					entry = next;
+				}
+			}
+		}
+
+		for (Pending entry = expired; entry != null; entry = entry.next) {
+			entry.future.fail(new TimeoutException());
+		}
+	}
+
+	/**
+	 * Stop tracking the message of a cancelled future
+	 */
+	synchronized void cancelled(DeliveryFuture future) {
+		long key = key(future.getFriendnumber(), future.getMessageId());
+		Pending entry = this.pending.get(key);
+
+		if (entry != null && entry.future == future) {
+			this.pending.remove(key);
+			unlink(entry);
+		}
+	}
+
+	/**
+	 * Start tracking the given message. A message still pending under the same
+	 * message ID can not be told apart from the new one anymore. It is
+	 * removed, counted as timed out, and returned so the caller can fail its
+	 * future.
+	 */
+	private synchronized Pending track(Pending entry) {
+		long key = key(entry.friendnumber, entry.messageId);
+		Pending replaced = this.pending.remove(key);
+
+		if (replaced != null) {
+			unlink(replaced);
+			ensureCapacity(replaced.friendnumber);
+			this.timedOutCounts[replaced.friendnumber]++;
+		}
+
+		entry.deadline = Math.max((entry.sent + this.timeoutNanos - this.start) / TICK_NANOS, this.processedTick + 1);
+		int slot = (int) (entry.deadline & (WHEEL_SIZE - 1));
+		entry.next = this.wheel[slot];
+
+		if (entry.next != null) {
+			entry.next.prev = entry;
+		}
+
+		this.wheel[slot] = entry;
+		this.pending.put(key, entry);
+		return replaced;
+	}
+
+	private void unlink(Pending entry) {
+		if (entry.prev != null) {
+			entry.prev.next = entry.next;
+		} else {
+			this.wheel[(int) (entry.deadline & (WHEEL_SIZE - 1))] = entry.next;
+		}
+
+		if (entry.next != null) {
+			entry.next.prev = entry.prev;
+		}
+
+		entry.prev = null;
+		entry.next = null;
+	}
+
+	private void ensureCapacity(int friendnumber) {
+		if (friendnumber >= this.deliveredCounts.length) {
+			int capacity = Math.max(friendnumber + 1, this.deliveredCounts.length * 2);
+			this.deliveredCounts = Arrays.copyOf(this.deliveredCounts, capacity);
+			this.timedOutCounts = Arrays.copyOf(this.timedOutCounts, capacity);
+			this.latencySums = Arrays.copyOf(this.latencySums, capacity);
+			this.lastLatencies = Arrays.copyOf(this.lastLatencies, capacity);
+		}
+	}
+
+	private static long key(int friendnumber, int messageId) {
+		return ((long) friendnumber << 32) | (messageId & 0xFFFFFFFFL);
+	}
+
+	private static final class Pending {
+		final int friendnumber;
+		final int messageId;
+		final DeliveryFuture future;
+		final long sent;
+		long deadline;
+		Pending prev;
+		Pending next;
+
+		Pending(int friendnumber, int messageId, DeliveryFuture future, long sent) {
+			this.friendnumber = friendnumber;
+			this.messageId = messageId;
+			this.future = future;
+			this.sent = sent;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/* DirtyFriendTracker.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Keeps track of friend fields that may be out of date with the core. Each
+ * friend has a mask of stale {@link FriendField}s, and a bit set holds the
+ * friends with a non-empty mask, so finding the work for
+ * {@link JTox#refreshDirty()} is proportional to the number of changes, not to
+ * the number of friends.
+ * <p/>
+ * Registered with the {@link im.tox.jtoxcore.callbacks.CallbackHandler},
+ * fields delivered by a callback are marked clean. When a friend comes
+ * online, the fields the core only exchanges while connected are marked
+ * stale.
+ *
+ * @param <F>
+ *            Friend type of the JTox instance
+ */
+class DirtyFriendTracker<F extends ToxFriend> implements FriendChangeListener<F> {
+
+	private static final int REFRESH_ON_CONNECT = FriendField.NAME.mask() | FriendField.STATUS_MESSAGE.mask()
+			| FriendField.USER_STATUS.mask() | FriendField.TYPING.mask();
+
+	private byte[] fields = new byte[64];
+	private final BitSet dirty = new BitSet();
+
+	/**
+	 * Mark the given fields of the specified friend as stale
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 * @param mask
+	 *            the fields to mark
+	 */
+	synchronized void mark(int friendnumber, int mask) {
+		if (friendnumber >= this.fields.length) {
+			this.fields = Arrays.copyOf(this.fields, Math.max(friendnumber + 1, this.fields.length * 2));
+		}
+
+		this.fields[friendnumber] |= mask;
+		this.dirty.set(friendnumber);
+	}
+
+	/**
+	 * Mark the given fields of the specified friend as up to date
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 * @param mask
+	 *            the fields to clear
+	 */
+	synchronized void clear(int friendnumber, int mask) {
+		if (friendnumber >= this.fields.length || !this.dirty.get(friendnumber)) {
+			return;
+		}
+
+		this.fields[friendnumber] &= ~mask;
+
+		if (this.fields[friendnumber] == 0) {
+			this.dirty.clear(friendnumber);
+		}
+	}
+
+	/**
+	 * @return the first friend with stale fields at or after the given
+	 *         friendnumber, or -1 if there is none
+	 */
+	synchronized int nextDirty(int fromIndex) {
+		return this.dirty.nextSetBit(fromIndex);
+	}
+
+	/**
+	 * Retrieve and clear the stale fields of the specified friend
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 * @return the mask of stale fields
+	 */
+	synchronized int take(int friendnumber) {
+		if (friendnumber >= this.fields.length) {
+			return 0;
+		}
+
+		int mask = this.fields[friendnumber];
+		this.fields[friendnumber] = 0;
+		this.dirty.clear(friendnumber);
+		return mask;
+	}
+
+	/**
+	 * @return the number of friends with stale fields
+	 */
+	synchronized int dirtyCount() {
+		return this.dirty.cardinality();
+	}
+
+	@Override
+	public void nameChanged(F friend) {
+		clear(friend.getFriendnumber(), FriendField.NAME.mask());
+	}
+
+	@Override
+	public void statusChanged(F friend) {
+		clear(friend.getFriendnumber(), FriendField.USER_STATUS.mask());
+	}
+
+	@Override
+	public void connectionStatusChanged(F friend) {
+		clear(friend.getFriendnumber(), FriendField.CONNECTION_STATUS.mask());
+
+		if (friend.isOnline()) {
+			mark(friend.getFriendnumber(), REFRESH_ON_CONNECT);
+		}
+	}
+
+	@Override
+	public void idChanged(F friend) {
+		clear(friend.getFriendnumber(), FriendField.ID.mask());
+	}
+
+	@Override
+	public void statusMessageChanged(F friend) {
+		clear(friend.getFriendnumber(), FriendField.STATUS_MESSAGE.mask());
+	}
+
+	@Override
+	public void typingChanged(F friend) {
+		clear(friend.getFriendnumber(), FriendField.TYPING.mask());
+	}
+}
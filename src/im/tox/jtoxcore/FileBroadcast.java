@@ -0,0 +1,153 @@
+/* FileBroadcast.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One file offered to several friends by a {@link FileSendEngine}. The file
+ * is mapped read only once, and every transfer sends straight from the shared
+ * mapping at its own offset, so the file is read from disk once no matter
+ * how many friends receive it. Each transfer keeps its own progress, and is
+ * paused, resumed and cancelled on its own.
+ */
+public final class FileBroadcast {
+
+	/**
+	 * Maximum size of a single mapping
+	 */
+	private static final long SEGMENT_SIZE = 1 << 30;
+
+	private final String filename;
+	private final long size;
+	private final MappedByteBuffer[] segments;
+	private final List<OutgoingFileTransfer> transfers = new ArrayList<OutgoingFileTransfer>();
+	private volatile byte[] digest;
+
+	/**
+	 * SHA-256 of the file up to {@link #digestPosition}, shared by all
+	 * transfers. Only used by the thread running the engine.
+	 */
+	private final MessageDigest hasher;
+	private long digestPosition;
+
+	FileBroadcast(RandomAccessFile file, String filename) throws IOException {
+		try {
+			this.hasher = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+
+		FileChannel channel = file.getChannel();
+		this.filename = filename;
+		this.size = channel.size();
+		this.segments = new MappedByteBuffer[(int) Math.max(1, (this.size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+
+		// The mappings stay valid after the file is closed
+		for (int i = 0; i < this.segments.length; i++) {
+			long start = i * SEGMENT_SIZE;
+			this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+										   Math.min(SEGMENT_SIZE, this.size - start));
+		}
+	}
+
+	/**
+	 * @return the name of the file
+	 */
+	public String getFilename() {
+		return this.filename;
+	}
+
+	/**
+	 * @return the size of the file in bytes
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return the transfers to the friends that the file was offered to
+	 */
+	public List<OutgoingFileTransfer> getTransfers() {
+		return Collections.unmodifiableList(this.transfers);
+	}
+
+	/**
+	 * @return the SHA-256 digest of the file, or null until the first transfer
+	 *         sent all of it
+	 */
+	public byte[] getDigest() {
+		byte[] result = this.digest;
+		return result == null ? null : result.clone();
+	}
+
+	void add(OutgoingFileTransfer transfer) {
+		this.transfers.add(transfer);
+	}
+
+	/**
+	 * @return a buffer sharing the content of the mapping, holding at most
+	 *         max bytes starting at the given file position. The buffer ends
+	 *         early at the end of a mapping, and is empty at the end of the
+	 *         file.
+	 */
+	ByteBuffer view(long position, int max) {
+		// The end of a file filling its last mapping is the end of that
+		// mapping, not the start of another one
+		int index = (int) Math.min(position / SEGMENT_SIZE, this.segments.length - 1);
+		ByteBuffer view = this.segments[index].duplicate();
+		int start = (int) (position - index * SEGMENT_SIZE);
+		view.position(start);
+		view.limit((int) Math.min(view.capacity(), start + (long) max));
+		return view;
+	}
+
+	/**
+	 * Feed the file into the shared digest up to the given position. Only the
+	 * transfer furthest ahead adds data.
+	 *
+	 * @return the digest once the whole file was fed, otherwise null
+	 */
+	byte[] digestTo(long position) {
+		while (this.digestPosition < position) {
+			ByteBuffer data = view(this.digestPosition, (int) Math.min(position - this.digestPosition,
+																		Integer.MAX_VALUE));
+			this.digestPosition += data.remaining();
+			this.hasher.update(data);
+		}
+
+		if (this.digest == null && this.digestPosition == this.size) {
+			this.digest = this.hasher.digest();
+		}
+
+		return this.digest;
+	}
+}
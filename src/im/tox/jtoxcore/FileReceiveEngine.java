@@ -0,0 +1,934 @@
+/* FileReceiveEngine.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import im.tox.jtoxcore.callbacks.CallbackHandler;
+import im.tox.jtoxcore.callbacks.OnConnectionStatusCallback;
+import im.tox.jtoxcore.callbacks.OnFileControlCallback;
+import im.tox.jtoxcore.callbacks.OnFileChunkCallback;
+import im.tox.jtoxcore.callbacks.OnFileSendRequestCallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Receives files straight into memory mapped target files.
+ * <p/>
+ * When a friend offers a file, the {@link FileReceivePolicy} picks the target
+ * file. The engine preallocates it at the announced size, maps it, and
+ * accepts the offer. Chunks arrive in pooled direct buffers, see
+ * {@link OnFileChunkCallback}, and are copied into the mapping at the running
+ * offset, without an allocation or a system call per chunk. Files larger than the mapping
+ * window are mapped one window at a time. When the sender reports the
+ * transfer finished, the mapping is forced to disk and the finish is
+ * confirmed to the sender. Files accepted by a {@link FileStreamPolicy} are
+ * not written to disk, but read from an {@link IncomingFileChannel}. The SHA-256 digest of every file is computed from
+ * the chunks as they arrive, see {@link FileTransfer#getDigest()}.
+ * <p/>
+ * When the friend goes offline, its transfers are
+ * {@link FileTransferState#BROKEN broken}, and resumed with
+ * {@link ToxFileControl#TOX_FILECONTROL_RESUME_BROKEN} at the received offset
+ * once it is back. An engine created with journals enabled also survives
+ * restarts: next to every target file, it keeps a {@link TransferJournal}
+ * of checkpoints. When the same friend offers a file of the same size to
+ * the same target again under the same name, the last checkpoints are
+ * verified against the target file, and the offer is accepted with the
+ * verified offset and the SHA-256 of the data before it as accept data. The
+ * sender skips everything up to the offset, after checking that its file
+ * starts with the same data. This requires a sender that understands the
+ * offset, such as a {@link FileSendEngine}. A sender that kills a resumed
+ * transfer before sending anything rejected the data we have, so the
+ * journal is dropped and the next offer starts over.
+ * <p/>
+ * Offers of a {@link FileSendEngine} that can compress the file are accepted
+ * with a request to do so, unless a journal allows resuming the file. The
+ * chunks are inflated with {@link Inflater} before they are written, and the
+ * filename is passed on without the marker of the offer.
+ *
+ * @param <F>
+ *            Friend type of the JTox instance
+ */
+public class FileReceiveEngine<F extends ToxFriend> implements OnFileSendRequestCallback<F>, OnFileChunkCallback<F>,
+	OnFileControlCallback<F>, OnConnectionStatusCallback<F> {
+
+	/**
+	 * Maximum size of a single mapping. Keeps the address space used per
+	 * transfer small on 32 bit systems.
+	 */
+	private static final long WINDOW_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Bytes received between two journal checkpoints
+	 */
+	private static final long CHECKPOINT_INTERVAL = 4 * 1024 * 1024;
+
+	/**
+	 * Capacity of the buffer of an {@link IncomingFileChannel}
+	 */
+	private static final int PIPE_SIZE = 1024 * 1024;
+
+	/**
+	 * Buffered bytes at which a streamed transfer is paused. The rest of the
+	 * buffer takes the chunks that are underway already.
+	 */
+	private static final int PIPE_HIGH_WATER = PIPE_SIZE / 2;
+
+	/**
+	 * Buffered bytes at which a paused streamed transfer is resumed
+	 */
+	private static final int PIPE_LOW_WATER = PIPE_SIZE / 8;
+
+	private static final byte[] NO_DATA = new byte[0];
+
+	private final JTox<F> tox;
+	private final CallbackHandler<F> handler;
+	private final FileReceivePolicy policy;
+	private final boolean journals;
+	private volatile FileStreamPolicy streamPolicy;
+	private final FileTransferMetrics metrics = new FileTransferMetrics(null);
+	private final List<FileTransferListener> listeners = new CopyOnWriteArrayList<FileTransferListener>();
+
+	private final LongObjectMap<IncomingFileTransfer> transfers = new LongObjectMap<IncomingFileTransfer>();
+	private final List<IncomingFileTransfer> active = new ArrayList<IncomingFileTransfer>();
+
+	/**
+	 * Create a new engine, and register it with the given callback handler
+	 *
+	 * @param tox
+	 *            the instance to receive files with
+	 * @param handler
+	 *            the callback handler of the instance
+	 * @param policy
+	 *            the policy choosing the target files
+	 */
+	public FileReceiveEngine(JTox<F> tox, CallbackHandler<F> handler, FileReceivePolicy policy) {
+		this(tox, handler, policy, false);
+	}
+
+	/**
+	 * Create a new engine, and register it with the given callback handler
+	 *
+	 * @param tox
+	 *            the instance to receive files with
+	 * @param handler
+	 *            the callback handler of the instance
+	 * @param policy
+	 *            the policy choosing the target files
+	 * @param journals
+	 *            whether to keep a journal next to every target file, so
+	 *            interrupted transfers can be resumed after a restart
+	 */
+	public FileReceiveEngine(JTox<F> tox, CallbackHandler<F> handler, FileReceivePolicy policy, boolean journals) {
+		this.tox = tox;
+		this.handler = handler;
+		this.policy = policy;
+		this.journals = journals;
+		handler.registerOnFileSendRequestCallback(this);
+		handler.registerOnFileChunkCallback(this);
+		handler.registerOnFileControlCallback(this);
+		handler.registerOnConnectionStatusCallback(this);
+	}
+
+	/**
+	 * @param target
+	 *            a target file
+	 * @return the journal file kept for the given target file
+	 */
+	public static File getJournalFile(File target) {
+		return new File(target.getPath() + ".journal");
+	}
+
+	/**
+	 * Unregister this engine from its callback handler. Running transfers are
+	 * not continued.
+	 */
+	public void close() {
+		this.handler.unregisterOnFileSendRequestCallback(this);
+		this.handler.unregisterOnFileChunkCallback(this);
+		this.handler.unregisterOnFileControlCallback(this);
+		this.handler.unregisterOnConnectionStatusCallback(this);
+	}
+
+	/**
+	 * Add a listener for state changes of the transfers of this engine
+	 *
+	 * @param listener
+	 *            the listener
+	 */
+	public void addListener(FileTransferListener listener) {
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * Remove the specified listener
+	 *
+	 * @param listener
+	 *            the listener
+	 */
+	public void removeListener(FileTransferListener listener) {
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * @return the performance figures of all transfers of this engine
+	 */
+	public FileTransferMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Set the policy choosing the files received as streams. Files it does
+	 * not accept are left to the {@link FileReceivePolicy}.
+	 *
+	 * @param policy
+	 *            the policy, or null to receive all files into files
+	 */
+	public void setStreamPolicy(FileStreamPolicy policy) {
+		this.streamPolicy = policy;
+	}
+
+	/**
+	 * @return the number of transfers that are not done yet
+	 */
+	public synchronized int getActiveCount() {
+		return this.transfers.size();
+	}
+
+	/**
+	 * Ask the sender to pause the specified transfer
+	 *
+	 * @param transfer
+	 *            the transfer
+	 * @throws ToxException
+	 *             if the instance has been killed, or the pause could not be
+	 *             sent
+	 */
+	public void pause(IncomingFileTransfer transfer) throws ToxException {
+		control(transfer, ToxFileControl.TOX_FILECONTROL_PAUSE, FileTransferState.TRANSFERRING,
+				FileTransferState.PAUSED_BY_US);
+	}
+
+	/**
+	 * Resume a transfer paused with {@link #pause(IncomingFileTransfer)}
+	 *
+	 * @param transfer
+	 *            the transfer
+	 * @throws ToxException
+	 *             if the instance has been killed, or the resume could not be
+	 *             sent
+	 */
+	public void resume(IncomingFileTransfer transfer) throws ToxException {
+		control(transfer, ToxFileControl.TOX_FILECONTROL_ACCEPT, FileTransferState.PAUSED_BY_US,
+				FileTransferState.TRANSFERRING);
+	}
+
+	/**
+	 * Cancel the specified transfer. The partially written target file, and
+	 * its journal, are kept.
+	 *
+	 * @param transfer
+	 *            the transfer
+	 * @throws ToxException
+	 *             if the instance has been killed
+	 */
+	public void cancel(IncomingFileTransfer transfer) throws ToxException {
+		if (transfer.getState().isDone()) {
+			return;
+		}
+
+		this.tox.fileSendControl(transfer.getFriendnumber(), false, transfer.getFilenumber(),
+								 ToxFileControl.TOX_FILECONTROL_KILL.ordinal(), NO_DATA);
+		finish(transfer, FileTransferState.KILLED);
+	}
+
+	private void control(IncomingFileTransfer transfer, ToxFileControl control, FileTransferState from,
+						 FileTransferState to) throws ToxException {
+		if (transfer.getState() != from) {
+			return;
+		}
+
+		if (this.tox.fileSendControl(transfer.getFriendnumber(), false, transfer.getFilenumber(), control.ordinal(),
+									 NO_DATA) != 0) {
+			throw new ToxException(ToxError.TOX_SEND_FAILED);
+		}
+
+		changeState(transfer, from, to);
+	}
+
+	@Override
+	public void execute(F friend, int filenumber, long filesize, byte[] filename) {
+		int friendnumber = friend.getFriendnumber();
+		String name = JTox.getByteString(filename);
+		boolean compressed = name.endsWith(FileTransfer.DEFLATE_MARKER);
+		FileStreamPolicy streams = this.streamPolicy;
+
+		if (compressed) {
+			name = name.substring(0, name.length() - FileTransfer.DEFLATE_MARKER.length());
+		}
+
+		if (streams != null && streams.accept(friendnumber, name, filesize)) {
+			IncomingFileTransfer transfer = new IncomingFileTransfer(friendnumber, filenumber, name, filesize, null,
+					this.metrics);
+			transfer.pipe = new TransferPipe(PIPE_SIZE, 0);
+
+			if (compressed) {
+				enableInflater(transfer);
+			}
+
+			register(transfer);
+			streams.opened(new IncomingFileChannel(this, transfer));
+			accept(transfer, compressed ? FileTransfer.deflateAccept() : NO_DATA);
+			return;
+		}
+
+		File target = this.policy.accept(friendnumber, name, filesize);
+
+		if (target == null) {
+			return;
+		}
+
+		IncomingFileTransfer transfer = new IncomingFileTransfer(friendnumber, filenumber, name, filesize, target,
+				this.metrics);
+		long offset = 0;
+
+		try {
+			transfer.file = new RandomAccessFile(target, "rw");
+
+			if (this.journals) {
+				transfer.journal = TransferJournal.open(getJournalFile(target), friend.getId(), name, filesize);
+				offset = transfer.journal.verify(transfer.file.getChannel());
+
+				// A compressed transfer can not be resumed, so it needs no
+				// journal
+				if (compressed && offset == 0) {
+					transfer.journal.delete();
+					transfer.journal = null;
+				}
+			}
+
+			transfer.file.setLength(filesize);
+			map(transfer, offset);
+			// The digest has to cover the part received in an earlier session
+			transfer.digest(transfer.file.getChannel(), 0, offset);
+		} catch (IOException e) {
+			closeFile(transfer);
+			reject(transfer);
+			return;
+		}
+
+		transfer.setTransferred(offset);
+		transfer.checkpointed = offset;
+		transfer.resumedFrom = offset;
+
+		if (compressed && offset == 0) {
+			enableInflater(transfer);
+		}
+
+		register(transfer);
+		accept(transfer, offset == 0 ? (compressed ? FileTransfer.deflateAccept() : NO_DATA)
+					 : resumeData(transfer, offset));
+	}
+
+	/**
+	 * @return the accept data asking to resume at the given offset, with the
+	 *         digest of the data before it if it can be taken
+	 */
+	private static byte[] resumeData(IncomingFileTransfer transfer, long offset) {
+		byte[] digest = transfer.peekDigest();
+		return digest == null ? FileTransfer.encodePosition(offset) : FileTransfer.encodeResume(offset, digest);
+	}
+
+	private void enableInflater(IncomingFileTransfer transfer) {
+		transfer.inflater = new Inflater();
+		transfer.inflated = ByteBuffer.allocate(16 * 1024);
+	}
+
+	private void register(IncomingFileTransfer transfer) {
+		synchronized (this) {
+			this.transfers.put(FileTransfer.key(transfer.getFriendnumber(), transfer.getFilenumber()), transfer);
+			this.active.add(transfer);
+		}
+	}
+
+	/**
+	 * Accept the offer of a registered transfer
+	 *
+	 * @param data
+	 *            the accept data: empty, the offset to start at for a file
+	 *            received partly in an earlier session, or the request to
+	 *            compress the file
+	 */
+	private void accept(IncomingFileTransfer transfer, byte[] data) {
+		try {
+			if (this.tox.fileSendControl(transfer.getFriendnumber(), false, transfer.getFilenumber(),
+										 ToxFileControl.TOX_FILECONTROL_ACCEPT.ordinal(), data) == 0) {
+				transfer.getMetrics().accepted(System.nanoTime());
+				changeState(transfer, FileTransferState.PENDING, FileTransferState.TRANSFERRING);
+			} else {
+				finish(transfer, FileTransferState.FAILED);
+			}
+		} catch (ToxException e) {
+			finish(transfer, FileTransferState.FAILED);
+		}
+	}
+
+	@Override
+	public void execute(F friend, int filenumber, PooledBuffer chunk) {
+		IncomingFileTransfer transfer = get(friend.getFriendnumber(), filenumber);
+
+		if (transfer == null || transfer.getState().isDone()) {
+			return;
+		}
+
+		ByteBuffer data = chunk.buffer();
+		int length = data.remaining();
+
+		boolean written;
+
+		if (transfer.inflater != null) {
+			written = inflate(transfer, data);
+		} else {
+			written = transfer.pipe == null ? write(transfer, data) : writeStream(transfer, data);
+		}
+
+		if (written) {
+			transfer.getMetrics().transferred(System.nanoTime(), length);
+		} else {
+			fail(transfer);
+		}
+	}
+
+	/**
+	 * Inflate the given chunk of a compressed transfer, and write the output
+	 * like an uncompressed chunk
+	 *
+	 * @return false if the chunk is not valid compressed data, or the output
+	 *         could not be written
+	 */
+	private boolean inflate(IncomingFileTransfer transfer, ByteBuffer data) {
+		// Finishing the transfer from another thread ends the inflater
+		synchronized (transfer) {
+			if (transfer.getState().isDone()) {
+				return true;
+			}
+
+			Inflater inflater = transfer.inflater;
+			ByteBuffer output = transfer.inflated;
+			int size = data.remaining();
+			inflater.setInput(copy(transfer, data), 0, size);
+
+			try {
+				int length;
+
+				while ((length = inflater.inflate(output.array())) > 0) {
+					output.clear();
+					output.limit(length);
+
+					if (!(transfer.pipe == null ? write(transfer, output) : writeStream(transfer, output))) {
+						return false;
+					}
+				}
+			} catch (DataFormatException e) {
+				return false;
+			}
+
+			// Nothing may follow the end of the compressed data
+			return !inflater.needsDictionary() && (!inflater.finished() || inflater.getRemaining() == 0);
+		}
+	}
+
+	/**
+	 * Copy the given chunk into the target file at the running offset
+	 *
+	 * @return false if the chunk did not fit or could not be written
+	 */
+	private boolean write(IncomingFileTransfer transfer, ByteBuffer data) {
+		// Cancelling from another thread closes the file concurrently
+		synchronized (transfer) {
+			long offset = transfer.getTransferred();
+			int size = data.remaining();
+
+			if (transfer.window == null || offset + size > transfer.getSize()) {
+				return false;
+			}
+
+			try {
+				// The chunk is shared with other callbacks, so read it through a
+				// duplicate
+				ByteBuffer source = data.duplicate();
+				int written = 0;
+
+				while (written < size) {
+					if (offset + written >= transfer.windowStart + transfer.window.capacity()) {
+						map(transfer, offset + written);
+					}
+
+					int position = (int) (offset + written - transfer.windowStart);
+					int length = Math.min(size - written, transfer.window.capacity() - position);
+					transfer.window.position(position);
+					source.limit(source.position() + length);
+					transfer.window.put(source);
+					written += length;
+				}
+
+				transfer.hasher.update(data.duplicate());
+
+				transfer.setTransferred(offset + size);
+
+				if (transfer.journal != null) {
+					updateChecksum(transfer, data);
+
+					if (transfer.getTransferred() - transfer.checkpointed >= CHECKPOINT_INTERVAL) {
+						checkpoint(transfer);
+					}
+				}
+			} catch (IOException e) {
+				return false;
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * Append the given chunk to the buffer of a streamed transfer, and pause
+	 * the transfer if the reader falls behind
+	 *
+	 * @return false if the chunk did not fit
+	 */
+	private boolean writeStream(IncomingFileTransfer transfer, ByteBuffer data) {
+		int size = data.remaining();
+
+		if (transfer.getTransferred() + size > transfer.getSize()) {
+			return false;
+		}
+
+		try {
+			if (transfer.pipe.write(data.duplicate(), false) != size) {
+				return false;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+
+		transfer.hasher.update(data.duplicate());
+		transfer.setTransferred(transfer.getTransferred() + size);
+
+		if (transfer.pipe.buffered() >= PIPE_HIGH_WATER && transfer.getState() == FileTransferState.TRANSFERRING) {
+			throttle(transfer);
+		}
+
+		return true;
+	}
+
+	private void throttle(IncomingFileTransfer transfer) {
+		try {
+			pause(transfer);
+		} catch (ToxException e) {
+			return;
+		}
+
+		if (transfer.getState() != FileTransferState.PAUSED_BY_US) {
+			return;
+		}
+
+		// Only set once paused, so a resume can not overtake the pause
+		synchronized (this) {
+			transfer.throttled = true;
+		}
+
+		drained(transfer);
+	}
+
+	/**
+	 * Called by an {@link IncomingFileChannel} after reading. Resumes the
+	 * transfer once enough of the buffer is free again.
+	 */
+	void drained(IncomingFileTransfer transfer) {
+		synchronized (this) {
+			if (!transfer.throttled || transfer.pipe.buffered() > PIPE_LOW_WATER) {
+				return;
+			}
+
+			transfer.throttled = false;
+		}
+
+		try {
+			resume(transfer);
+		} catch (ToxException e) {
+			// Try again after the next read
+			synchronized (this) {
+				transfer.throttled = true;
+			}
+		}
+	}
+
+	private void updateChecksum(IncomingFileTransfer transfer, ByteBuffer data) {
+		if (data.hasArray()) {
+			transfer.checksum.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			return;
+		}
+
+		transfer.checksum.update(copy(transfer, data), 0, data.remaining());
+	}
+
+	/**
+	 * @return the scratch array of the transfer, holding a copy of the given
+	 *         chunk at its start
+	 */
+	private static byte[] copy(IncomingFileTransfer transfer, ByteBuffer data) {
+		if (transfer.scratch == null || transfer.scratch.length < data.remaining()) {
+			transfer.scratch = new byte[data.remaining()];
+		}
+
+		data.duplicate().get(transfer.scratch, 0, data.remaining());
+		return transfer.scratch;
+	}
+
+	/**
+	 * Force the received data to disk, and record it in the journal. Must be
+	 * called while holding the monitor of the transfer.
+	 */
+	private void checkpoint(IncomingFileTransfer transfer) throws IOException {
+		if (transfer.getTransferred() == transfer.checkpointed) {
+			return;
+		}
+
+		transfer.window.force();
+		transfer.journal.append(transfer.getTransferred(), (int) transfer.checksum.getValue());
+		transfer.checksum.reset();
+		transfer.checkpointed = transfer.getTransferred();
+	}
+
+	@Override
+	public void execute(F friend, boolean online) {
+		IncomingFileTransfer[] snapshot;
+
+		synchronized (this) {
+			snapshot = this.active.toArray(new IncomingFileTransfer[this.active.size()]);
+		}
+
+		for (IncomingFileTransfer transfer : snapshot) {
+			if (transfer.getFriendnumber() != friend.getFriendnumber()) {
+				continue;
+			}
+
+			if (online) {
+				resumeBroken(transfer);
+			} else {
+				breakTransfer(transfer);
+			}
+		}
+	}
+
+	private void breakTransfer(IncomingFileTransfer transfer) {
+		FileTransferState state = transfer.getState();
+
+		if (state != FileTransferState.TRANSFERRING && state != FileTransferState.PAUSED_BY_US
+				&& state != FileTransferState.PAUSED_BY_FRIEND) {
+			return;
+		}
+
+		// Make the progress so far survive a restart while the friend is gone
+		synchronized (transfer) {
+			if (transfer.journal != null && transfer.window != null) {
+				try {
+					checkpoint(transfer);
+				} catch (IOException e) {
+					// The next checkpoint tries again
+				}
+			}
+		}
+
+		changeState(transfer, state, FileTransferState.BROKEN);
+	}
+
+	/**
+	 * Ask the sender to continue a broken transfer at the received offset.
+	 * The transfer stays broken until the sender accepts.
+	 */
+	private void resumeBroken(IncomingFileTransfer transfer) {
+		if (transfer.getState() != FileTransferState.BROKEN) {
+			return;
+		}
+
+		// The inflater can not continue in the middle of the compressed data
+		if (transfer.inflater != null) {
+			fail(transfer);
+			return;
+		}
+
+		try {
+			if (this.tox.fileSendControl(transfer.getFriendnumber(), false, transfer.getFilenumber(),
+										 ToxFileControl.TOX_FILECONTROL_RESUME_BROKEN.ordinal(),
+										 FileTransfer.encodePosition(transfer.getTransferred())) == 0) {
+				transfer.getMetrics().controlSent(System.nanoTime());
+			} else {
+				fail(transfer);
+			}
+		} catch (ToxException e) {
+			// Nothing to resume with
+		}
+	}
+
+	@Override
+	public void execute(F friend, boolean sending, int fileNumber, ToxFileControl control_type, byte[] data) {
+		if (sending) {
+			return;
+		}
+
+		IncomingFileTransfer transfer = get(friend.getFriendnumber(), fileNumber);
+
+		if (transfer == null) {
+			return;
+		}
+
+		switch (control_type) {
+			case TOX_FILECONTROL_ACCEPT:
+				if (!changeState(transfer, FileTransferState.PAUSED_BY_FRIEND, FileTransferState.TRANSFERRING)
+						&& changeState(transfer, FileTransferState.BROKEN, FileTransferState.TRANSFERRING)) {
+					transfer.getMetrics().controlAnswered(System.nanoTime());
+				}
+
+				break;
+
+			case TOX_FILECONTROL_PAUSE:
+				changeState(transfer, FileTransferState.TRANSFERRING, FileTransferState.PAUSED_BY_FRIEND);
+				break;
+
+			case TOX_FILECONTROL_KILL:
+				synchronized (transfer) {
+					// The sender checks the resumed data before sending more
+					if (transfer.resumedFrom > 0 && transfer.getTransferred() == transfer.resumedFrom
+							&& transfer.journal != null) {
+						transfer.journal.delete();
+						transfer.journal = null;
+					}
+				}
+
+				finish(transfer, FileTransferState.KILLED);
+				break;
+
+			case TOX_FILECONTROL_FINISHED:
+				complete(transfer);
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	private void complete(IncomingFileTransfer transfer) {
+		if (transfer.inflater != null) {
+			boolean truncated;
+
+			synchronized (transfer) {
+				// Without the end of the compressed data, some was lost
+				truncated = !transfer.getState().isDone() && !transfer.inflater.finished();
+			}
+
+			if (truncated) {
+				fail(transfer);
+				return;
+			}
+		}
+
+		if (transfer.getTransferred() != transfer.getSize()) {
+			// The sender finished before all data arrived. What did arrive is
+			// intact, so the journal is kept to resume from it.
+			reject(transfer);
+			finish(transfer, FileTransferState.FAILED, true);
+			return;
+		}
+
+		if (transfer.pipe != null) {
+			// Readers get the buffered rest, and then the end of stream
+			transfer.pipe.close();
+		} else {
+			try {
+				synchronized (transfer) {
+					if (transfer.window == null) {
+						return;
+					}
+
+					transfer.window.force();
+					transfer.file.getChannel().force(false);
+				}
+			} catch (IOException e) {
+				fail(transfer);
+				return;
+			}
+		}
+
+		transfer.setDigest(transfer.hasher.digest());
+
+		try {
+			this.tox.fileSendControl(transfer.getFriendnumber(), false, transfer.getFilenumber(),
+									 ToxFileControl.TOX_FILECONTROL_FINISHED.ordinal(), NO_DATA);
+		} catch (ToxException e) {
+			// All data was received and written, the confirmation is a courtesy
+		}
+
+		finish(transfer, FileTransferState.FINISHED);
+	}
+
+	/**
+	 * Map the window of the target file starting at the given offset
+	 */
+	private void map(IncomingFileTransfer transfer, long offset) throws IOException {
+		if (transfer.window != null) {
+			transfer.window.force();
+		}
+
+		long length = Math.min(WINDOW_SIZE, transfer.getSize() - offset);
+		transfer.window = transfer.file.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, length);
+		transfer.windowStart = offset;
+	}
+
+	private IncomingFileTransfer get(int friendnumber, int filenumber) {
+		synchronized (this) {
+			return this.transfers.get(FileTransfer.key(friendnumber, filenumber));
+		}
+	}
+
+	private void reject(IncomingFileTransfer transfer) {
+		try {
+			this.tox.fileSendControl(transfer.getFriendnumber(), false, transfer.getFilenumber(),
+									 ToxFileControl.TOX_FILECONTROL_KILL.ordinal(), NO_DATA);
+		} catch (ToxException e) {
+			// Nothing left to tell the friend
+		}
+	}
+
+	private void fail(IncomingFileTransfer transfer) {
+		reject(transfer);
+		finish(transfer, FileTransferState.FAILED);
+	}
+
+	/**
+	 * Move the transfer to a final state, and close the target file. The
+	 * journal is kept if the transfer was killed or never started, so a new
+	 * offer can resume it. After a local failure during the transfer, the
+	 * received data can not be trusted anymore.
+	 */
+	private void finish(IncomingFileTransfer transfer, FileTransferState state) {
+		finish(transfer, state, false);
+	}
+
+	/**
+	 * @param keepJournal
+	 *            whether to keep the journal even after a failure, because
+	 *            the data received so far can be trusted
+	 */
+	private void finish(IncomingFileTransfer transfer, FileTransferState state, boolean keepJournal) {
+		FileTransferState previous;
+
+		synchronized (this) {
+			previous = transfer.getState();
+
+			if (previous.isDone()) {
+				return;
+			}
+
+			transfer.setState(state);
+			this.transfers.remove(FileTransfer.key(transfer.getFriendnumber(), transfer.getFilenumber()));
+			this.active.remove(transfer);
+		}
+
+		synchronized (transfer) {
+			if (transfer.journal != null) {
+				if (keepJournal || state == FileTransferState.KILLED || previous == FileTransferState.PENDING) {
+					try {
+						if (transfer.window != null) {
+							checkpoint(transfer);
+						}
+					} catch (IOException e) {
+						// Resume from the previous checkpoint
+					}
+
+					transfer.journal.close();
+				} else {
+					transfer.journal.delete();
+				}
+
+				transfer.journal = null;
+			}
+		}
+
+		closeFile(transfer);
+
+		if (transfer.pipe != null && state != FileTransferState.FINISHED) {
+			transfer.pipe.abort("Transfer " + state.name().toLowerCase());
+		}
+
+		notifyListeners(transfer, previous);
+	}
+
+	private void closeFile(IncomingFileTransfer transfer) {
+		synchronized (transfer) {
+			transfer.window = null;
+
+			if (transfer.inflater != null) {
+				transfer.inflater.end();
+			}
+
+			if (transfer.journal != null) {
+				transfer.journal.close();
+				transfer.journal = null;
+			}
+
+			if (transfer.file != null) {
+				try {
+					transfer.file.close();
+				} catch (IOException e) {
+					// Nothing to do
+				}
+			}
+		}
+	}
+
+	private boolean changeState(FileTransfer transfer, FileTransferState from, FileTransferState to) {
+		synchronized (this) {
+			if (transfer.getState() != from) {
+				return false;
+			}
+
+			transfer.setState(to);
+		}
+
+		notifyListeners(transfer, from);
+		return true;
+	}
+
+	private void notifyListeners(FileTransfer transfer, FileTransferState previous) {
+		for (FileTransferListener listener : this.listeners) {
+			listener.stateChanged(transfer, previous);
+		}
+	}
+}
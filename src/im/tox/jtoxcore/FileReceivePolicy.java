@@ -0,0 +1,44 @@
+/* FileReceivePolicy.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.io.File;
+
+/**
+ * Decides where a {@link FileReceiveEngine} stores offered files
+ */
+public interface FileReceivePolicy {
+
+	/**
+	 * Called on the tox thread for every file offered by a friend
+	 *
+	 * @param friendnumber
+	 *            the number of the friend offering the file
+	 * @param filename
+	 *            the announced filename. This comes from the friend and must
+	 *            not be trusted as a path.
+	 * @param filesize
+	 *            the announced size in bytes
+	 * @return the file to store the data in, or null to leave the offer to
+	 *         other callbacks
+	 */
+	File accept(int friendnumber, String filename, long filesize);
+}
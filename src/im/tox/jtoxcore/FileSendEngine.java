@@ -0,0 +1,1213 @@
+/* FileSendEngine.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import im.tox.jtoxcore.callbacks.CallbackHandler;
+import im.tox.jtoxcore.callbacks.OnConnectionStatusCallback;
+import im.tox.jtoxcore.callbacks.OnFileControlCallback;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.Deflater;
+
+/**
+ * Sends files without any work from the caller after
+ * {@link #send(int, File)}.
+ * <p/>
+ * File data is read from a {@link FileChannel} in large blocks into pooled
+ * direct buffers, and handed to the core in chunks of
+ * {@link JTox#fileDataSize(int)} bytes straight from those buffers. The
+ * instance lock is only held for each single native call. Every block read is
+ * also fed into the SHA-256 digest of the transfer, see
+ * {@link FileTransfer#getDigest()}.
+ * <p/>
+ * On every tick, the engine schedules all transferring files by deficit round
+ * robin: every round, each transfer may send {@link #QUANTUM} bytes times its
+ * {@link OutgoingFileTransfer#getWeight() weight}. Rounds repeat until no
+ * transfer can send anymore, because the core refused a chunk for its friend,
+ * a rate limit is reached, or the per tick budget is used up. Transfers of a
+ * lower {@link FileTransferPriority} only get the bandwidth that the higher
+ * classes can not use.
+ * <p/>
+ * Accept, pause, kill and finished control messages from the receiver are
+ * handled automatically. Use {@link #pause(OutgoingFileTransfer)},
+ * {@link #resume(OutgoingFileTransfer)} and
+ * {@link #cancel(OutgoingFileTransfer)} to control a transfer from this side.
+ * <p/>
+ * Transfers to a friend that goes offline are {@link FileTransferState#BROKEN
+ * broken}. When the receiver asks to resume one with
+ * {@link ToxFileControl#TOX_FILECONTROL_RESUME_BROKEN}, the engine continues
+ * reading at the requested position. A receiver that still has part of the
+ * file from an earlier session, such as a {@link FileReceiveEngine} keeping
+ * journals, can also accept a new offer with the position to start at as
+ * accept data. If the SHA-256 of the data before the position comes with it,
+ * the engine checks it against the file before sending anything, and kills
+ * the transfer if the receiver has different data.
+ * <p/>
+ * With {@link #setCompressionLevel(int)}, offers announce that the engine can
+ * compress the file. If the receiver is a {@link FileReceiveEngine} and asks
+ * for it in its accept, the file is sent compressed with {@link Deflater};
+ * other receivers get the plain file. The core still counts the size of the
+ * plain file, so compressed transfers can not be resumed once broken.
+ * <p/>
+ * To send the same file to many friends, {@link #broadcast(int[], File)} maps
+ * it once and sends every transfer from the shared mapping, instead of
+ * reading the file once per friend.
+ *
+ * @param <F>
+ *            Friend type of the JTox instance
+ */
+public class FileSendEngine<F extends ToxFriend> implements ToxTask, OnFileControlCallback<F>,
+	OnConnectionStatusCallback<F> {
+
+	/**
+	 * Size of the blocks read from disk
+	 */
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * Bytes a transfer of weight 1 may send per scheduling round
+	 */
+	public static final int QUANTUM = 4 * 1024;
+
+	/**
+	 * Default for {@link #setTickBudget(int)}
+	 */
+	public static final int DEFAULT_TICK_BUDGET = 1024 * 1024;
+
+	/**
+	 * Capacity of the buffer of an {@link OutgoingFileChannel}
+	 */
+	public static final int PIPE_SIZE = 1024 * 1024;
+
+	private static final FileTransferPriority[] PRIORITIES = FileTransferPriority.values();
+
+	/**
+	 * The transfer used its quantum, or is done
+	 */
+	private static final int PUMP_YIELD = 0;
+
+	/**
+	 * Nothing more can be sent to the friend of the transfer in this tick
+	 */
+	private static final int PUMP_FRIEND_BLOCKED = 1;
+
+	/**
+	 * Nothing more can be sent in this tick at all
+	 */
+	private static final int PUMP_STOP = 2;
+
+	private static final byte[] NO_DATA = new byte[0];
+
+	private final JTox<F> tox;
+	private final CallbackHandler<F> handler;
+	private final BufferPool pool;
+	private final FileTransferMetrics metrics = new FileTransferMetrics(null);
+	private final List<FileTransferListener> listeners = new CopyOnWriteArrayList<FileTransferListener>();
+
+	private final LongObjectMap<OutgoingFileTransfer> transfers = new LongObjectMap<OutgoingFileTransfer>();
+	private final List<OutgoingFileTransfer> active = new ArrayList<OutgoingFileTransfer>();
+	private final LongObjectMap<Long> friendRates = new LongObjectMap<Long>();
+	private volatile long defaultFriendRate;
+	private volatile long globalRate;
+	private volatile int tickBudget = DEFAULT_TICK_BUDGET;
+	private volatile int compressionLevel;
+
+	/*
+	 * Scheduler state, only used by the thread running tick()
+	 */
+	private final LongObjectMap<RateLimiter> friendLimiters = new LongObjectMap<RateLimiter>();
+	private final RateLimiter globalLimiter = new RateLimiter(0);
+	private final List<OutgoingFileTransfer> group = new ArrayList<OutgoingFileTransfer>();
+	private final BitSet blockedFriends = new BitSet();
+	private int rotation;
+	private long tickRemaining;
+	private long pumped;
+
+	/**
+	 * Create a new engine, and register it with the given instance and
+	 * callback handler
+	 *
+	 * @param tox
+	 *            the instance to send files with
+	 * @param handler
+	 *            the callback handler of the instance
+	 */
+	public FileSendEngine(JTox<F> tox, CallbackHandler<F> handler) {
+		this.tox = tox;
+		this.handler = handler;
+		this.pool = new BufferPool(BLOCK_SIZE, 16);
+		tox.registerTask(this);
+		handler.registerOnFileControlCallback(this);
+		handler.registerOnConnectionStatusCallback(this);
+	}
+
+	/**
+	 * Unregister this engine from its instance and callback handler. Running
+	 * transfers are not continued.
+	 */
+	public void close() {
+		this.tox.unregisterTask(this);
+		this.handler.unregisterOnFileControlCallback(this);
+		this.handler.unregisterOnConnectionStatusCallback(this);
+	}
+
+	/**
+	 * Add a listener for state changes of the transfers of this engine
+	 *
+	 * @param listener
+	 *            the listener
+	 */
+	public void addListener(FileTransferListener listener) {
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * Remove the specified listener
+	 *
+	 * @param listener
+	 *            the listener
+	 */
+	public void removeListener(FileTransferListener listener) {
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Offer a file to the specified friend. The file is sent once the friend
+	 * accepts it.
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 * @param file
+	 *            the file to send
+	 * @return the transfer
+	 * @throws IOException
+	 *             if the file could not be opened
+	 * @throws ToxException
+	 *             if the instance has been killed, or the core refused the
+	 *             offer
+	 */
+	public OutgoingFileTransfer send(int friendnumber, File file) throws IOException, ToxException {
+		FileChannel channel = new FileInputStream(file).getChannel();
+
+		try {
+			return send(friendnumber, channel, channel.size(), file.getName(), true, null, null);
+		} catch (ToxException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Offer the contents of a channel to the specified friend. The channel is
+	 * read with positional reads, starting at position 0, and is not closed by
+	 * the engine.
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 * @param channel
+	 *            the channel to read the file from
+	 * @param size
+	 *            the number of bytes to send
+	 * @param filename
+	 *            the filename to announce
+	 * @return the transfer
+	 * @throws ToxException
+	 *             if the instance has been killed, or the core refused the
+	 *             offer
+	 */
+	public OutgoingFileTransfer send(int friendnumber, FileChannel channel, long size, String filename)
+	throws ToxException {
+		return send(friendnumber, channel, size, filename, false, null, null);
+	}
+
+	/**
+	 * Offer a file to the specified friend, whose data is written to the
+	 * returned channel while it is sent. This allows sending data generated on
+	 * the fly without storing it first.
+	 * <p/>
+	 * The channel buffers up to {@link #PIPE_SIZE} bytes, half of which keep the
+	 * data sent last. The receiver can only resume a broken transfer as long as
+	 * the data to resume at is still buffered.
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 * @param size
+	 *            the number of bytes that will be written to the channel
+	 * @param filename
+	 *            the filename to announce
+	 * @return the channel to write the data to
+	 * @throws ToxException
+	 *             if the instance has been killed, or the core refused the
+	 *             offer
+	 */
+	public OutgoingFileChannel openChannel(int friendnumber, long size, String filename) throws ToxException {
+		return new OutgoingFileChannel(this, send(friendnumber, null, size, filename, false,
+								   new TransferPipe(PIPE_SIZE, PIPE_SIZE / 2), null));
+	}
+
+	/**
+	 * Offer a file to all of the specified friends. The file is mapped once,
+	 * and all transfers are sent from the shared mapping, so the file is read
+	 * from disk once. Every transfer is accepted, paused, resumed and
+	 * cancelled on its own. Broadcasts are never compressed.
+	 * <p/>
+	 * Friends the core refuses the offer for are left out of the broadcast.
+	 *
+	 * @param friendnumbers
+	 *            the numbers of the friends to send the file to
+	 * @param file
+	 *            the file to send
+	 * @return the broadcast, holding a transfer per friend the file was
+	 *         offered to
+	 * @throws IOException
+	 *             if the file could not be mapped
+	 * @throws ToxException
+	 *             if the instance has been killed. The transfers offered
+	 *             before are killed as well.
+	 */
+	public FileBroadcast broadcast(int[] friendnumbers, File file) throws IOException, ToxException {
+		RandomAccessFile source = new RandomAccessFile(file, "r");
+		FileBroadcast broadcast;
+
+		try {
+			broadcast = new FileBroadcast(source, file.getName());
+		} finally {
+			source.close();
+		}
+
+		for (int friendnumber : friendnumbers) {
+			try {
+				broadcast.add(send(friendnumber, null, broadcast.getSize(), file.getName(), false, null, broadcast));
+			} catch (ToxException e) {
+				if (e.getError() != ToxError.TOX_UNKNOWN) {
+					// The caller never gets the broadcast, so nobody could
+					// control the transfers offered so far
+					for (OutgoingFileTransfer transfer : broadcast.getTransfers()) {
+						fail(transfer);
+					}
+
+					throw e;
+				}
+			}
+		}
+
+		return broadcast;
+	}
+
+	private OutgoingFileTransfer send(int friendnumber, FileChannel channel, long size, String filename,
+									  boolean closeChannel, TransferPipe pipe, FileBroadcast broadcast)
+	throws ToxException {
+		OutgoingFileTransfer transfer;
+
+		// Hold the instance lock, so the accept can not arrive before the
+		// transfer is registered
+		this.tox.getLock().lock();
+
+		try {
+			int level = broadcast == null ? this.compressionLevel : 0;
+			int filenumber = this.tox.newFileSender(friendnumber, size,
+													level == 0 ? filename : filename + FileTransfer.DEFLATE_MARKER);
+
+			if (filenumber == -1) {
+				throw new ToxException(ToxError.TOX_UNKNOWN);
+			}
+
+			transfer = new OutgoingFileTransfer(friendnumber, filenumber, filename, size, channel, closeChannel,
+												this.metrics);
+			transfer.pipe = pipe;
+			transfer.broadcast = broadcast;
+			transfer.compressionLevel = level;
+
+			synchronized (this) {
+				this.transfers.put(FileTransfer.key(friendnumber, filenumber), transfer);
+				this.active.add(transfer);
+			}
+		} finally {
+			this.tox.getLock().unlock();
+		}
+
+		return transfer;
+	}
+
+	/**
+	 * Pause the specified transfer
+	 *
+	 * @param transfer
+	 *            the transfer
+	 * @throws ToxException
+	 *             if the instance has been killed, or the pause could not be
+	 *             sent
+	 */
+	public void pause(OutgoingFileTransfer transfer) throws ToxException {
+		control(transfer, ToxFileControl.TOX_FILECONTROL_PAUSE, FileTransferState.TRANSFERRING,
+				FileTransferState.PAUSED_BY_US);
+	}
+
+	/**
+	 * Resume a transfer paused with {@link #pause(OutgoingFileTransfer)}
+	 *
+	 * @param transfer
+	 *            the transfer
+	 * @throws ToxException
+	 *             if the instance has been killed, or the resume could not be
+	 *             sent
+	 */
+	public void resume(OutgoingFileTransfer transfer) throws ToxException {
+		control(transfer, ToxFileControl.TOX_FILECONTROL_ACCEPT, FileTransferState.PAUSED_BY_US,
+				FileTransferState.TRANSFERRING);
+	}
+
+	/**
+	 * Cancel the specified transfer
+	 *
+	 * @param transfer
+	 *            the transfer
+	 * @throws ToxException
+	 *             if the instance has been killed
+	 */
+	public void cancel(OutgoingFileTransfer transfer) throws ToxException {
+		if (transfer.getState().isDone()) {
+			return;
+		}
+
+		this.tox.fileSendControl(transfer.getFriendnumber(), true, transfer.getFilenumber(),
+								 ToxFileControl.TOX_FILECONTROL_KILL.ordinal(), NO_DATA);
+		finish(transfer, FileTransferState.KILLED);
+	}
+
+	/**
+	 * Cancel all transfers of the specified broadcast that are not done yet
+	 *
+	 * @param broadcast
+	 *            the broadcast
+	 * @throws ToxException
+	 *             if the instance has been killed
+	 */
+	public void cancel(FileBroadcast broadcast) throws ToxException {
+		for (OutgoingFileTransfer transfer : broadcast.getTransfers()) {
+			cancel(transfer);
+		}
+	}
+
+	private void control(OutgoingFileTransfer transfer, ToxFileControl control, FileTransferState from,
+						 FileTransferState to) throws ToxException {
+		if (transfer.getState() != from) {
+			return;
+		}
+
+		if (this.tox.fileSendControl(transfer.getFriendnumber(), true, transfer.getFilenumber(), control.ordinal(),
+									 NO_DATA) != 0) {
+			throw new ToxException(ToxError.TOX_SEND_FAILED);
+		}
+
+		changeState(transfer, from, to);
+	}
+
+	/**
+	 * Limit the combined send rate of all transfers of this engine
+	 *
+	 * @param bytesPerSecond
+	 *            the maximum rate, or 0 for no limit
+	 */
+	public void setGlobalRateLimit(long bytesPerSecond) {
+		this.globalRate = checkRate(bytesPerSecond);
+	}
+
+	/**
+	 * Limit the combined send rate of the transfers to each single friend.
+	 * Friends with a limit set by {@link #setFriendRateLimit(int, long)} are not
+	 * affected.
+	 *
+	 * @param bytesPerSecond
+	 *            the maximum rate per friend, or 0 for no limit
+	 */
+	public void setFriendRateLimit(long bytesPerSecond) {
+		this.defaultFriendRate = checkRate(bytesPerSecond);
+	}
+
+	/**
+	 * Limit the combined send rate of the transfers to the specified friend
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 * @param bytesPerSecond
+	 *            the maximum rate, or 0 for no limit
+	 */
+	public synchronized void setFriendRateLimit(int friendnumber, long bytesPerSecond) {
+		this.friendRates.put(friendnumber, checkRate(bytesPerSecond));
+	}
+
+	/**
+	 * Remove the limit set by {@link #setFriendRateLimit(int, long)}. The
+	 * friend falls back to the limit set by {@link #setFriendRateLimit(long)}.
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 */
+	public synchronized void removeFriendRateLimit(int friendnumber) {
+		this.friendRates.remove(friendnumber);
+	}
+
+	/**
+	 * Set the maximum number of bytes sent per tick, which bounds the time the
+	 * engine adds to each iteration of the tox loop. Defaults to
+	 * {@link #DEFAULT_TICK_BUDGET}.
+	 *
+	 * @param bytes
+	 *            the budget, or 0 for no limit
+	 */
+	public void setTickBudget(int bytes) {
+		this.tickBudget = (int) checkRate(bytes);
+	}
+
+	/**
+	 * Offer to compress files sent from now on. Compression pays off for large
+	 * text-like files on slow links, and costs CPU time on both ends. Only
+	 * receivers using a {@link FileReceiveEngine} take the offer.
+	 *
+	 * @param level
+	 *            the {@link Deflater} compression level from 1 (fastest) to 9
+	 *            (best), or 0 to send all files plain, which is the default
+	 */
+	public void setCompressionLevel(int level) {
+		if (level < 0 || level > 9) {
+			throw new IllegalArgumentException("level must be between 0 and 9");
+		}
+
+		this.compressionLevel = level;
+	}
+
+	private static long checkRate(long value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("limit must not be negative");
+		}
+
+		return value;
+	}
+
+	/**
+	 * @return the performance figures of all transfers of this engine
+	 */
+	public FileTransferMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * @return the number of transfers that are not done yet
+	 */
+	public synchronized int getActiveCount() {
+		return this.active.size();
+	}
+
+	@Override
+	public void execute(F friend, boolean sending, int fileNumber, ToxFileControl control_type, byte[] data) {
+		if (!sending) {
+			return;
+		}
+
+		OutgoingFileTransfer transfer;
+
+		synchronized (this) {
+			transfer = this.transfers.get(FileTransfer.key(friend.getFriendnumber(), fileNumber));
+		}
+
+		if (transfer == null) {
+			return;
+		}
+
+		switch (control_type) {
+			case TOX_FILECONTROL_ACCEPT:
+				if (transfer.compressionLevel != 0 && FileTransfer.isDeflateAccept(data)
+						&& transfer.getState() == FileTransferState.PENDING) {
+					synchronized (this) {
+						transfer.deflater = new Deflater(transfer.compressionLevel);
+					}
+				}
+
+				long position = FileTransfer.decodePosition(data);
+
+				if (position > 0 && transfer.getState() == FileTransferState.PENDING) {
+					// Data written to a channel can not be skipped
+					if (position > transfer.getSize() || transfer.pipe != null) {
+						fail(transfer);
+						break;
+					}
+
+					synchronized (this) {
+						transfer.seekTo = position;
+						transfer.skipped = position;
+						transfer.resumeDigest = FileTransfer.decodeResumeDigest(data);
+					}
+				}
+
+				if (changeState(transfer, FileTransferState.PENDING, FileTransferState.TRANSFERRING)) {
+					transfer.getMetrics().accepted(System.nanoTime());
+				} else if (!changeState(transfer, FileTransferState.PAUSED_BY_FRIEND, FileTransferState.TRANSFERRING)) {
+					changeState(transfer, FileTransferState.BROKEN, FileTransferState.TRANSFERRING);
+				}
+
+				break;
+
+			case TOX_FILECONTROL_RESUME_BROKEN:
+				resumeBroken(transfer, FileTransfer.decodePosition(data));
+				break;
+
+			case TOX_FILECONTROL_PAUSE:
+				if (!changeState(transfer, FileTransferState.TRANSFERRING, FileTransferState.PAUSED_BY_FRIEND)) {
+					changeState(transfer, FileTransferState.PENDING, FileTransferState.PAUSED_BY_FRIEND);
+				}
+
+				break;
+
+			case TOX_FILECONTROL_KILL:
+				finish(transfer, FileTransferState.KILLED);
+				break;
+
+			case TOX_FILECONTROL_FINISHED:
+				transfer.getMetrics().controlAnswered(System.nanoTime());
+				finish(transfer, FileTransferState.FINISHED);
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Continue a transfer at the position the receiver asked for. The core
+	 * keeps the transfer paused until we accept again.
+	 */
+	private void resumeBroken(OutgoingFileTransfer transfer, long position) {
+		// Positions in the compressed data are not known up front
+		if (position < 0 || position > transfer.getSize() || transfer.deflater != null) {
+			fail(transfer);
+			return;
+		}
+
+		FileTransferState previous;
+
+		synchronized (this) {
+			previous = transfer.getState();
+
+			if (previous.isDone() || previous == FileTransferState.PENDING) {
+				return;
+			}
+
+			transfer.seekTo = position;
+			// The core continues counting at the position as well
+			transfer.skipped = 0;
+		}
+
+		try {
+			if (this.tox.fileSendControl(transfer.getFriendnumber(), true, transfer.getFilenumber(),
+										 ToxFileControl.TOX_FILECONTROL_ACCEPT.ordinal(), NO_DATA) != 0) {
+				fail(transfer);
+				return;
+			}
+		} catch (ToxException e) {
+			return;
+		}
+
+		changeState(transfer, previous, FileTransferState.TRANSFERRING);
+	}
+
+	@Override
+	public void execute(F friend, boolean online) {
+		if (online) {
+			return;
+		}
+
+		OutgoingFileTransfer[] snapshot;
+
+		synchronized (this) {
+			snapshot = this.active.toArray(new OutgoingFileTransfer[this.active.size()]);
+		}
+
+		for (OutgoingFileTransfer transfer : snapshot) {
+			if (transfer.getFriendnumber() != friend.getFriendnumber()) {
+				continue;
+			}
+
+			FileTransferState state = transfer.getState();
+
+			if (state == FileTransferState.TRANSFERRING || state == FileTransferState.PAUSED_BY_US
+					|| state == FileTransferState.PAUSED_BY_FRIEND) {
+				changeState(transfer, state, FileTransferState.BROKEN);
+			}
+		}
+	}
+
+	@Override
+	public void tick() {
+		OutgoingFileTransfer[] snapshot;
+
+		synchronized (this) {
+			if (this.active.isEmpty()) {
+				return;
+			}
+
+			snapshot = this.active.toArray(new OutgoingFileTransfer[this.active.size()]);
+		}
+
+		long now = System.nanoTime();
+		this.globalLimiter.setRate(this.globalRate);
+		this.globalLimiter.refill(now);
+		this.tickRemaining = this.tickBudget == 0 ? Long.MAX_VALUE : this.tickBudget;
+		this.blockedFriends.clear();
+		// Rotate the start of every round, so no transfer always gets the
+		// free space in the send queue of its friend first
+		int offset = this.rotation++ & Integer.MAX_VALUE;
+
+		for (FileTransferPriority priority : PRIORITIES) {
+			this.group.clear();
+
+			for (OutgoingFileTransfer transfer : snapshot) {
+				if (transfer.getPriority() == priority && transfer.getState() == FileTransferState.TRANSFERRING) {
+					this.group.add(transfer);
+				}
+			}
+
+			if (!this.group.isEmpty() && !schedule(this.group, offset, now)) {
+				break;
+			}
+		}
+
+		this.group.clear();
+	}
+
+	/**
+	 * Run deficit round robin over the transfers of one priority class, until
+	 * none of them can send anymore.
+	 *
+	 * @return false if nothing more can be sent in this tick
+	 */
+	private boolean schedule(List<OutgoingFileTransfer> transfers, int offset, long now) {
+		int size = transfers.size();
+		boolean progress = true;
+
+		while (progress) {
+			progress = false;
+
+			for (int i = 0; i < size; i++) {
+				OutgoingFileTransfer transfer = transfers.get((offset + i) % size);
+				int friendnumber = transfer.getFriendnumber();
+
+				if (this.blockedFriends.get(friendnumber)) {
+					continue;
+				}
+
+				synchronized (this) {
+					if (transfer.getState() != FileTransferState.TRANSFERRING) {
+						continue;
+					}
+
+					transfer.pumping = true;
+				}
+
+				long quantum = (long) QUANTUM * transfer.getWeight();
+				transfer.deficit = Math.min(transfer.deficit + quantum, 2 * quantum);
+				int result;
+				this.pumped = 0;
+
+				try {
+					result = pump(transfer, limiterFor(friendnumber, now), now);
+				} catch (IOException e) {
+					fail(transfer);
+					result = PUMP_YIELD;
+				} catch (ToxException e) {
+					result = PUMP_STOP;
+				} finally {
+					boolean done;
+
+					synchronized (this) {
+						transfer.pumping = false;
+						done = transfer.getState().isDone();
+					}
+
+					if (done) {
+						releaseBlock(transfer);
+					}
+				}
+
+				if (result == PUMP_STOP) {
+					return false;
+				}
+
+				if (result == PUMP_FRIEND_BLOCKED) {
+					this.blockedFriends.set(friendnumber);
+				}
+
+				if (this.pumped > 0) {
+					transfer.getMetrics().transferred(now, this.pumped);
+					progress = true;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	private RateLimiter limiterFor(int friendnumber, long now) {
+		long rate = this.defaultFriendRate;
+
+		synchronized (this) {
+			Long override = this.friendRates.get(friendnumber);
+
+			if (override != null) {
+				rate = override;
+			}
+		}
+
+		RateLimiter limiter = this.friendLimiters.get(friendnumber);
+
+		if (limiter == null) {
+			limiter = new RateLimiter(rate);
+			this.friendLimiters.put(friendnumber, limiter);
+		} else if (limiter.getRate() != rate) {
+			limiter.setRate(rate);
+		}
+
+		limiter.refill(now);
+		return limiter;
+	}
+
+	/**
+	 * Send chunks of the given transfer until its deficit, a rate limit or the
+	 * tick budget is used up, the core refuses a chunk, the file is complete,
+	 * or the transfer is not transferring anymore.
+	 *
+	 * @return one of the PUMP_ constants
+	 */
+	private int pump(OutgoingFileTransfer transfer, RateLimiter friendLimiter, long now) throws IOException,
+		ToxException {
+		int friendnumber = transfer.getFriendnumber();
+		int chunkSize = this.tox.fileDataSize(friendnumber);
+
+		if (chunkSize <= 0) {
+			return PUMP_FRIEND_BLOCKED;
+		}
+
+		if (transfer.block == null) {
+			transfer.block = transfer.broadcast == null ? this.pool.acquire() : transfer.broadcast.view(0, 0);
+			transfer.block.limit(0);
+		}
+
+		ByteBuffer block = transfer.block;
+		long seek;
+
+		synchronized (this) {
+			seek = transfer.seekTo;
+			transfer.seekTo = -1;
+		}
+
+		if (seek >= 0) {
+			block.limit(0);
+			transfer.readPosition = seek;
+			transfer.eof = false;
+			transfer.setTransferred(seek);
+		}
+
+		while (transfer.getState() == FileTransferState.TRANSFERRING) {
+			if (!block.hasRemaining()) {
+				if (transfer.deflater != null) {
+					if (transfer.deflater.finished()) {
+						return sendFinished(transfer);
+					}
+
+					if (!deflateBlock(transfer) && !transfer.deflater.finished()) {
+						// Waiting for the writer of the channel
+						return PUMP_YIELD;
+					}
+
+					continue;
+				}
+
+				if (transfer.eof) {
+					return sendFinished(transfer);
+				}
+
+				readBlock(transfer);
+				block = transfer.block;
+
+				if (!block.hasRemaining() && !transfer.eof) {
+					// Waiting for the writer of the channel
+					return PUMP_YIELD;
+				}
+
+				continue;
+			}
+
+			int length = Math.min(chunkSize, block.remaining());
+
+			if (transfer.deficit < length) {
+				return PUMP_YIELD;
+			}
+
+			if (this.tickRemaining < length || !this.globalLimiter.allows(length)) {
+				return PUMP_STOP;
+			}
+
+			if (!friendLimiter.allows(length)) {
+				return PUMP_FRIEND_BLOCKED;
+			}
+
+			int limit = block.limit();
+			block.limit(block.position() + length);
+			int result = this.tox.fileSendData(friendnumber, transfer.getFilenumber(), block);
+			block.limit(limit);
+
+			if (result != 0) {
+				transfer.getMetrics().refused(now);
+				return PUMP_FRIEND_BLOCKED;
+			}
+
+			block.position(block.position() + length);
+			this.pumped += length;
+
+			if (transfer.deflater == null) {
+				transfer.setTransferred(transfer.getTransferred() + length);
+			}
+
+			transfer.deficit -= length;
+			this.tickRemaining -= length;
+			this.globalLimiter.consume(length);
+			friendLimiter.consume(length);
+		}
+
+		return PUMP_YIELD;
+	}
+
+	/**
+	 * Tell the receiver that the whole file was sent. The core counts the
+	 * bytes it accepted, so anything but the skipped bytes remaining means
+	 * data got lost on the way, and the transfer fails instead. The count does
+	 * not match the size for compressed files, which the receiver checks
+	 * while inflating.
+	 */
+	private int sendFinished(OutgoingFileTransfer transfer) throws ToxException {
+		int friendnumber = transfer.getFriendnumber();
+
+		if (transfer.deflater == null
+				&& this.tox.fileDataRemaining(friendnumber, transfer.getFilenumber(), true) != transfer.skipped) {
+			fail(transfer);
+			return PUMP_YIELD;
+		}
+
+		if (this.tox.fileSendControl(friendnumber, true, transfer.getFilenumber(),
+									 ToxFileControl.TOX_FILECONTROL_FINISHED.ordinal(), NO_DATA) != 0) {
+			return PUMP_FRIEND_BLOCKED;
+		}
+
+		if (transfer.broadcast != null) {
+			transfer.setDigest(transfer.broadcast.digestTo(transfer.getSize()));
+		} else if (transfer.digestPosition == transfer.getSize()) {
+			transfer.setDigest(transfer.hasher.digest());
+		}
+
+		transfer.getMetrics().controlSent(System.nanoTime());
+		changeState(transfer, FileTransferState.TRANSFERRING, FileTransferState.FINISHING);
+		releaseBlock(transfer);
+		return PUMP_YIELD;
+	}
+
+	private void readBlock(OutgoingFileTransfer transfer) throws IOException {
+		FileBroadcast broadcast = transfer.broadcast;
+
+		if (broadcast == null) {
+			read(transfer, transfer.block);
+			return;
+		}
+
+		if (transfer.resumeDigest != null) {
+			for (long position = 0; position < transfer.skipped;) {
+				ByteBuffer data = broadcast.view(position, (int) Math.min(transfer.skipped - position,
+																		   Integer.MAX_VALUE));
+				position += data.remaining();
+				transfer.hasher.update(data);
+			}
+
+			checkResume(transfer);
+		}
+
+		// Nothing to read, the block is the next part of the shared mapping
+		transfer.block = broadcast.view(transfer.readPosition, BLOCK_SIZE);
+		transfer.readPosition += transfer.block.remaining();
+		transfer.eof = transfer.readPosition >= transfer.getSize();
+		broadcast.digestTo(transfer.readPosition);
+	}
+
+	/**
+	 * Fill the block of a compressed transfer with the output of its deflater,
+	 * reading more of the file as the deflater needs it.
+	 *
+	 * @return false if there is no output, because the data of a channel is
+	 *         not written yet
+	 */
+	private boolean deflateBlock(OutgoingFileTransfer transfer) throws IOException {
+		Deflater deflater = transfer.deflater;
+		ByteBuffer block = transfer.block;
+
+		if (transfer.input == null) {
+			transfer.input = ByteBuffer.allocate(BLOCK_SIZE);
+			transfer.input.limit(0);
+			transfer.output = new byte[16 * 1024];
+		}
+
+		ByteBuffer input = transfer.input;
+		byte[] output = transfer.output;
+		block.clear();
+
+		while (block.hasRemaining() && !deflater.finished()) {
+			int length = deflater.deflate(output, 0, Math.min(output.length, block.remaining()));
+
+			if (length > 0) {
+				block.put(output, 0, length);
+				continue;
+			}
+
+			if (!deflater.needsInput()) {
+				continue;
+			}
+
+			if (transfer.eof) {
+				deflater.finish();
+				continue;
+			}
+
+			read(transfer, input);
+
+			if (!input.hasRemaining()) {
+				if (!transfer.eof) {
+					break;
+				}
+
+				continue;
+			}
+
+			// The deflater keeps the array until it consumed all of it
+			deflater.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining());
+			input.position(input.limit());
+		}
+
+		block.flip();
+		transfer.setTransferred(deflater.getBytesRead());
+		return block.hasRemaining();
+	}
+
+	/**
+	 * Read the next part of the file into the given buffer, and flip it
+	 */
+	private void read(OutgoingFileTransfer transfer, ByteBuffer block) throws IOException {
+		block.clear();
+		long start = transfer.readPosition;
+		long remaining = transfer.getSize() - transfer.readPosition;
+
+		if (remaining < block.capacity()) {
+			block.limit((int) remaining);
+		}
+
+		if (transfer.pipe != null) {
+			int read = transfer.pipe.read(block, transfer.readPosition, false);
+
+			if (read > 0) {
+				transfer.readPosition += read;
+			}
+
+			block.flip();
+			digest(transfer, block, start);
+			transfer.eof = read < 0 || transfer.readPosition >= transfer.getSize();
+			return;
+		}
+
+		while (block.hasRemaining()) {
+			int read = transfer.channel.read(block, transfer.readPosition);
+
+			if (read < 0) {
+				break;
+			}
+
+			transfer.readPosition += read;
+		}
+
+		block.flip();
+		digest(transfer, block, start);
+
+		if (transfer.readPosition >= transfer.getSize() || !block.hasRemaining()) {
+			transfer.eof = true;
+		}
+	}
+
+	/**
+	 * Feed the part of a block read from the given position into the digest,
+	 * that was not fed before. Blocks are hashed as they are read, instead of
+	 * chunk by chunk; data read again after the receiver resumed from an
+	 * earlier position is skipped, and data the receiver already had is read
+	 * once to complete the digest.
+	 */
+	private void digest(OutgoingFileTransfer transfer, ByteBuffer block, long start) throws IOException {
+		if (transfer.digestPosition < start) {
+			transfer.digest(transfer.channel, transfer.digestPosition, start);
+			transfer.digestPosition = start;
+		}
+
+		if (transfer.resumeDigest != null && transfer.digestPosition == transfer.skipped) {
+			checkResume(transfer);
+		}
+
+		long skip = transfer.digestPosition - start;
+
+		if (skip < block.remaining()) {
+			ByteBuffer data = block.duplicate();
+			data.position(data.position() + (int) skip);
+			transfer.hasher.update(data);
+			transfer.digestPosition = start + block.remaining();
+		}
+	}
+
+	/**
+	 * Check the digest the receiver resumed with against the digest of our
+	 * data up to the same position
+	 *
+	 * @throws IOException
+	 *             if the receiver has different data
+	 */
+	private static void checkResume(OutgoingFileTransfer transfer) throws IOException {
+		byte[] expected = transfer.resumeDigest;
+		transfer.resumeDigest = null;
+		byte[] actual = transfer.peekDigest();
+
+		if (actual != null && !Arrays.equals(expected, actual)) {
+			throw new IOException("Receiver resumed with different data");
+		}
+	}
+
+	private void fail(OutgoingFileTransfer transfer) {
+		try {
+			this.tox.fileSendControl(transfer.getFriendnumber(), true, transfer.getFilenumber(),
+									 ToxFileControl.TOX_FILECONTROL_KILL.ordinal(), NO_DATA);
+		} catch (ToxException e) {
+			// Nothing left to tell the friend
+		}
+
+		finish(transfer, FileTransferState.FAILED);
+	}
+
+	/**
+	 * Move the transfer to a final state, and release its resources
+	 */
+	private void finish(OutgoingFileTransfer transfer, FileTransferState state) {
+		FileTransferState previous;
+
+		boolean pumping;
+
+		synchronized (this) {
+			previous = transfer.getState();
+
+			if (previous.isDone()) {
+				return;
+			}
+
+			transfer.setState(state);
+			this.transfers.remove(FileTransfer.key(transfer.getFriendnumber(), transfer.getFilenumber()));
+			this.active.remove(transfer);
+			pumping = transfer.pumping;
+		}
+
+		transfer.getMetrics().idle(System.nanoTime());
+
+		// A transfer pumped right now releases its block when the pump returns
+		if (!pumping) {
+			releaseBlock(transfer);
+		}
+
+		if (transfer.closeChannel) {
+			try {
+				transfer.channel.close();
+			} catch (IOException e) {
+				// Nothing to do
+			}
+		}
+
+		if (transfer.pipe != null && state != FileTransferState.FINISHED) {
+			transfer.pipe.abort("Transfer " + state.name().toLowerCase());
+		}
+
+		notifyListeners(transfer, previous);
+	}
+
+	/**
+	 * Return the block of a transfer to the pool, and free the native memory
+	 * of its deflater
+	 */
+	private void releaseBlock(OutgoingFileTransfer transfer) {
+		ByteBuffer block;
+		Deflater deflater;
+
+		synchronized (this) {
+			block = transfer.block;
+			transfer.block = null;
+			deflater = transfer.deflater;
+			transfer.input = null;
+			transfer.output = null;
+		}
+
+		if (block != null && transfer.broadcast == null) {
+			this.pool.release(block);
+		}
+
+		if (deflater != null) {
+			deflater.end();
+		}
+	}
+
+	private boolean changeState(FileTransfer transfer, FileTransferState from, FileTransferState to) {
+		synchronized (this) {
+			if (transfer.getState() != from) {
+				return false;
+			}
+
+			transfer.setState(to);
+		}
+
+		if (from == FileTransferState.TRANSFERRING) {
+			transfer.getMetrics().idle(System.nanoTime());
+		}
+
+		notifyListeners(transfer, from);
+		return true;
+	}
+
+	private void notifyListeners(FileTransfer transfer, FileTransferState previous) {
+		for (FileTransferListener listener : this.listeners) {
+			listener.stateChanged(transfer, previous);
+		}
+	}
+}
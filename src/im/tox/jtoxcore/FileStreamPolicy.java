@@ -0,0 +1,51 @@
+/* FileStreamPolicy.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * Decides which offered files a {@link FileReceiveEngine} receives as a stream
+ * instead of into a file
+ */
+public interface FileStreamPolicy {
+
+	/**
+	 * Called on the tox thread for every file offered by a friend, before the
+	 * {@link FileReceivePolicy} is asked
+	 *
+	 * @param friendnumber
+	 *            the number of the friend offering the file
+	 * @param filename
+	 *            the announced filename
+	 * @param filesize
+	 *            the announced size in bytes
+	 * @return true to receive the file as a stream
+	 */
+	boolean accept(int friendnumber, String filename, long filesize);
+
+	/**
+	 * Called on the tox thread with the channel of an accepted file, before
+	 * any data arrives. Reading must happen on another thread.
+	 *
+	 * @param channel
+	 *            the channel to read the file from
+	 */
+	void opened(IncomingFileChannel channel);
+}
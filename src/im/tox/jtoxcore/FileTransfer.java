@@ -0,0 +1,275 @@
+/* FileTransfer.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A file transfer managed by one of the file engines. Transfers are identified
+ * by friendnumber and filenumber; the same filenumber can be in use for a
+ * file we send and a file we receive at the same time.
+ */
+public abstract class FileTransfer {
+
+	/**
+	 * Appended to the filename of an offer by a {@link FileSendEngine} that
+	 * can compress the file. The core does not care about the content of
+	 * filenames, and clients written in C stop reading the name at the NUL, so
+	 * peers not knowing the marker only see the real filename.
+	 */
+	static final String DEFLATE_MARKER = "\u0000jtox-deflate";
+
+	/**
+	 * Accept data asking the sender to compress the file
+	 */
+	private static final byte[] DEFLATE_ACCEPT = { 'd', 'e', 'f', 'l', 'a', 't', 'e' };
+
+	private final int friendnumber;
+	private final int filenumber;
+	private final String filename;
+	private final long size;
+	private volatile FileTransferState state;
+	private volatile long transferred;
+	private final FileTransferMetrics metrics;
+	private volatile byte[] digest;
+
+	/**
+	 * SHA-256 of the data passed so far, fed by the engine
+	 */
+	final MessageDigest hasher;
+
+	FileTransfer(int friendnumber, int filenumber, String filename, long size, FileTransferState state,
+				 FileTransferMetrics engineMetrics) {
+		this.metrics = new FileTransferMetrics(engineMetrics);
+
+		try {
+			this.hasher = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+
+		this.friendnumber = friendnumber;
+		this.filenumber = filenumber;
+		this.filename = filename;
+		this.size = size;
+		this.state = state;
+	}
+
+	/**
+	 * @return the number of the friend on the other end of this transfer
+	 */
+	public int getFriendnumber() {
+		return this.friendnumber;
+	}
+
+	/**
+	 * @return the filenumber assigned by the core
+	 */
+	public int getFilenumber() {
+		return this.filenumber;
+	}
+
+	/**
+	 * @return the name of the file
+	 */
+	public String getFilename() {
+		return this.filename;
+	}
+
+	/**
+	 * @return the size of the file in bytes
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return the number of bytes transferred so far
+	 */
+	public long getTransferred() {
+		return this.transferred;
+	}
+
+	/**
+	 * @return the current state
+	 */
+	public FileTransferState getState() {
+		return this.state;
+	}
+
+	/**
+	 * @return true if we are sending this file, false if we are receiving it
+	 */
+	public abstract boolean isSending();
+
+	/**
+	 * @return the SHA-256 digest of the file, or null until all data was
+	 *         transferred. The engines compute it from the data as it passes,
+	 *         so checking it does not need to read the file again.
+	 */
+	public byte[] getDigest() {
+		byte[] result = this.digest;
+		return result == null ? null : result.clone();
+	}
+
+	void setDigest(byte[] digest) {
+		this.digest = digest;
+	}
+
+	/**
+	 * @return the SHA-256 of the data fed into {@link #hasher} so far, without
+	 *         ending it, or null if the digest can not be copied
+	 */
+	byte[] peekDigest() {
+		try {
+			return ((MessageDigest) this.hasher.clone()).digest();
+		} catch (CloneNotSupportedException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Feed a range of a file into {@link #hasher}. Only needed for data that
+	 * did not pass the engine, such as the part of a resumed file that was
+	 * transferred in an earlier session.
+	 */
+	void digest(FileChannel channel, long start, long end) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(64 * 1024, Math.max(end - start, 1)));
+		long position = start;
+
+		while (position < end) {
+			buffer.clear();
+
+			if (end - position < buffer.capacity()) {
+				buffer.limit((int) (end - position));
+			}
+
+			int read = channel.read(buffer, position);
+
+			if (read < 0) {
+				throw new IOException("File shorter than expected");
+			}
+
+			this.hasher.update(buffer.array(), 0, read);
+			position += read;
+		}
+	}
+
+	/**
+	 * @return the performance figures of this transfer
+	 */
+	public FileTransferMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	void setState(FileTransferState state) {
+		this.state = state;
+	}
+
+	void setTransferred(long transferred) {
+		this.transferred = transferred;
+	}
+
+	/**
+	 * @return the key identifying the transfer in the maps of the engines
+	 */
+	static long key(int friendnumber, int filenumber) {
+		return ((long) friendnumber << 32) | (filenumber & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @return the accept data asking for a compressed transfer
+	 */
+	static byte[] deflateAccept() {
+		return DEFLATE_ACCEPT.clone();
+	}
+
+	/**
+	 * @return true if the accept data asks for a compressed transfer
+	 */
+	static boolean isDeflateAccept(byte[] data) {
+		return Arrays.equals(DEFLATE_ACCEPT, data);
+	}
+
+	/**
+	 * Encode a file position the way the core expects it in the data of
+	 * {@link ToxFileControl#TOX_FILECONTROL_RESUME_BROKEN}: 8 bytes in network
+	 * byte order.
+	 */
+	static byte[] encodePosition(long position) {
+		byte[] data = new byte[8];
+
+		for (int i = 7; i >= 0; i--) {
+			data[i] = (byte) position;
+			position >>>= 8;
+		}
+
+		return data;
+	}
+
+	/**
+	 * Encode the position to resume a file at, followed by the SHA-256 of the
+	 * data before it, so the sender can check that the receiver has the same
+	 * data
+	 */
+	static byte[] encodeResume(long position, byte[] digest) {
+		byte[] data = Arrays.copyOf(encodePosition(position), 8 + digest.length);
+		System.arraycopy(digest, 0, data, 8, digest.length);
+		return data;
+	}
+
+	/**
+	 * @return the position encoded by {@link #encodePosition(long)} or
+	 *         {@link #encodeResume(long, byte[])}, or -1 if the data is not a
+	 *         position
+	 */
+	static long decodePosition(byte[] data) {
+		if (data == null || (data.length != 8 && data.length != 8 + 32)) {
+			return -1;
+		}
+
+		long position = 0;
+
+		for (int i = 0; i < 8; i++) {
+			position = (position << 8) | (data[i] & 0xFF);
+		}
+
+		return position;
+	}
+
+	/**
+	 * @return the digest encoded by {@link #encodeResume(long, byte[])}, or
+	 *         null if the data holds a position only
+	 */
+	static byte[] decodeResumeDigest(byte[] data) {
+		if (data == null || data.length != 8 + 32) {
+			return null;
+		}
+
+		return Arrays.copyOfRange(data, 8, data.length);
+	}
+}
@@ -0,0 +1,38 @@
+/* FileTransferListener.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * Listener for state changes of {@link FileTransfer}s. Called on the tox
+ * thread, or on the thread that caused the change; must not block.
+ */
+public interface FileTransferListener {
+
+	/**
+	 * Called after the state of a transfer changed
+	 *
+	 * @param transfer
+	 *            the transfer
+	 * @param previous
+	 *            the state before the change
+	 */
+	void stateChanged(FileTransfer transfer, FileTransferState previous);
+}
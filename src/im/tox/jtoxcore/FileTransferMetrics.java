@@ -0,0 +1,258 @@
+/* FileTransferMetrics.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * Performance figures of a single {@link FileTransfer}, or of all transfers of
+ * a file engine. Everything is derived from the send results and the file
+ * callbacks the engines see anyway; nothing is polled from the core.
+ * <p/>
+ * The metrics of a transfer forward everything they record to the metrics of
+ * their engine, so the engine metrics add up all transfers it ever ran.
+ */
+public final class FileTransferMetrics {
+
+	/**
+	 * Length of the windows the current rate is measured over
+	 */
+	private static final long RATE_WINDOW = 1000L * 1000 * 1000;
+
+	private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+	private final FileTransferMetrics parent;
+	private final long created = System.nanoTime();
+
+	private long bytes;
+	private long windowStart = this.created;
+	private long windowBytes;
+	private double rate;
+
+	private long refusedChunks;
+	private long blockedNanos;
+	private long blockedSince = -1;
+
+	private long acceptSum;
+	private int acceptCount;
+
+	private long controlSent = -1;
+	private long controlSum;
+	private int controlCount;
+
+	/**
+	 * @param parent
+	 *            the metrics to forward everything to, or null
+	 */
+	FileTransferMetrics(FileTransferMetrics parent) {
+		this.parent = parent;
+	}
+
+	/**
+	 * @return the number of bytes sent or received
+	 */
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * @return the current rate in bytes per second, averaged over the last
+	 *         few seconds
+	 */
+	public synchronized long getBytesPerSecond() {
+		long elapsed = System.nanoTime() - this.windowStart;
+
+		if (elapsed < RATE_WINDOW) {
+			return (long) this.rate;
+		}
+
+		// Nothing was recorded for a while, so the last rate is outdated
+		double sample = this.windowBytes * 1e9 / elapsed;
+		return (long) (elapsed < 2 * RATE_WINDOW ? (this.rate + sample) / 2 : sample);
+	}
+
+	/**
+	 * @return the number of chunks the core refused because its send queue
+	 *         was full
+	 */
+	public synchronized long getRefusedChunks() {
+		return this.refusedChunks;
+	}
+
+	/**
+	 * @return the time in milliseconds between a refused chunk and the next
+	 *         chunk the core took, summed up. For engine metrics, this is the
+	 *         sum over the blocked periods of all transfers that already
+	 *         ended.
+	 */
+	public synchronized long getBlockedTime() {
+		long blocked = this.blockedNanos;
+
+		if (this.blockedSince >= 0) {
+			blocked += System.nanoTime() - this.blockedSince;
+		}
+
+		return blocked / NANOS_PER_MILLI;
+	}
+
+	/**
+	 * @return the average time in milliseconds between offering a file and
+	 *         its acceptance, or -1 if no file was accepted yet
+	 */
+	public synchronized long getAcceptLatency() {
+		return this.acceptCount == 0 ? -1 : this.acceptSum / this.acceptCount / NANOS_PER_MILLI;
+	}
+
+	/**
+	 * @return the average time in milliseconds between sending a control
+	 *         message that the friend has to answer, and receiving the
+	 *         answer, or -1 if none was answered yet
+	 */
+	public synchronized long getControlLatency() {
+		return this.controlCount == 0 ? -1 : this.controlSum / this.controlCount / NANOS_PER_MILLI;
+	}
+
+	/**
+	 * Record transferred bytes. Ends a blocked period.
+	 */
+	void transferred(long now, long count) {
+		synchronized (this) {
+			this.bytes += count;
+			this.windowBytes += count;
+			long elapsed = now - this.windowStart;
+
+			if (elapsed >= RATE_WINDOW) {
+				double sample = this.windowBytes * 1e9 / elapsed;
+				this.rate = this.rate == 0 ? sample : (this.rate + sample) / 2;
+				this.windowStart = now;
+				this.windowBytes = 0;
+			}
+		}
+
+		idle(now);
+
+		if (this.parent != null) {
+			this.parent.transferred(now, count);
+		}
+	}
+
+	/**
+	 * Record a chunk refused by the core. Starts a blocked period.
+	 */
+	void refused(long now) {
+		synchronized (this) {
+			this.refusedChunks++;
+
+			// Engine metrics only add up the blocked periods of their transfers
+			if (this.parent != null && this.blockedSince < 0) {
+				this.blockedSince = now;
+			}
+		}
+
+		if (this.parent != null) {
+			this.parent.refused(now);
+		}
+	}
+
+	/**
+	 * End the current blocked period, because the transfer sent data or does
+	 * not try to send anymore
+	 */
+	void idle(long now) {
+		long blocked;
+
+		synchronized (this) {
+			if (this.blockedSince < 0) {
+				return;
+			}
+
+			blocked = now - this.blockedSince;
+			this.blockedNanos += blocked;
+			this.blockedSince = -1;
+		}
+
+		if (this.parent != null) {
+			this.parent.addBlocked(blocked);
+		}
+	}
+
+	/**
+	 * Record that the offer of the transfer was accepted
+	 */
+	void accepted(long now) {
+		addAccept(now - this.created);
+	}
+
+	/**
+	 * Record sending a control message the friend has to answer
+	 */
+	synchronized void controlSent(long now) {
+		this.controlSent = now;
+	}
+
+	/**
+	 * Record the answer to the last control message sent
+	 */
+	void controlAnswered(long now) {
+		long latency;
+
+		synchronized (this) {
+			if (this.controlSent < 0) {
+				return;
+			}
+
+			latency = now - this.controlSent;
+			this.controlSent = -1;
+		}
+
+		addControl(latency);
+	}
+
+	private void addBlocked(long nanos) {
+		synchronized (this) {
+			this.blockedNanos += nanos;
+		}
+
+		if (this.parent != null) {
+			this.parent.addBlocked(nanos);
+		}
+	}
+
+	private void addAccept(long nanos) {
+		synchronized (this) {
+			this.acceptSum += nanos;
+			this.acceptCount++;
+		}
+
+		if (this.parent != null) {
+			this.parent.addAccept(nanos);
+		}
+	}
+
+	private void addControl(long nanos) {
+		synchronized (this) {
+			this.controlSum += nanos;
+			this.controlCount++;
+		}
+
+		if (this.parent != null) {
+			this.parent.addControl(nanos);
+		}
+	}
+}
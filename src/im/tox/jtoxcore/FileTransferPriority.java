@@ -0,0 +1,40 @@
+/* FileTransferPriority.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * Priority classes of outgoing file transfers. A {@link FileSendEngine} only
+ * sends data of a lower class when no transfer of a higher class can send.
+ */
+public enum FileTransferPriority {
+	/**
+	 * Small, interactive transfers such as avatars or pasted images
+	 */
+	HIGH,
+	/**
+	 * The default class
+	 */
+	NORMAL,
+	/**
+	 * Large transfers that may take as long as they need
+	 */
+	BULK
+}
@@ -0,0 +1,71 @@
+/* FileTransferState.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * States of a {@link FileTransfer}
+ */
+public enum FileTransferState {
+	/**
+	 * Offered, waiting for the receiver to accept
+	 */
+	PENDING,
+	/**
+	 * Data is being transferred
+	 */
+	TRANSFERRING,
+	/**
+	 * Paused by us
+	 */
+	PAUSED_BY_US,
+	/**
+	 * Paused by the friend
+	 */
+	PAUSED_BY_FRIEND,
+	/**
+	 * The friend went offline. The transfer continues where it stopped once
+	 * the receiver asks to resume it.
+	 */
+	BROKEN,
+	/**
+	 * All data was sent, waiting for the receiver to confirm
+	 */
+	FINISHING,
+	/**
+	 * Completed successfully
+	 */
+	FINISHED,
+	/**
+	 * Cancelled by either side
+	 */
+	KILLED,
+	/**
+	 * Aborted because of a local error
+	 */
+	FAILED;
+
+	/**
+	 * @return true if no more state changes can happen
+	 */
+	public boolean isDone() {
+		return this == FINISHED || this == KILLED || this == FAILED;
+	}
+}
@@ -0,0 +1,87 @@
+/* FriendChangeListener.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * Optional interface for {@link FriendList} implementations that maintain
+ * secondary indices over the fields of their friends.
+ * <p/>
+ * If the FriendList passed to {@link JTox} and the
+ * {@link im.tox.jtoxcore.callbacks.CallbackHandler} implements this interface,
+ * it is notified every time the core changes one of the indexed fields. If you
+ * modify a friend manually, you have to call the matching method yourself.
+ * Additional listeners can be registered with
+ * {@link im.tox.jtoxcore.callbacks.CallbackHandler#registerFriendChangeListener(FriendChangeListener)}.
+ *
+ * @param <F>
+ *            Friend type of the FriendList
+ */
+public interface FriendChangeListener<F extends ToxFriend> {
+
+	/**
+	 * Called after the name of the specified friend has been changed
+	 *
+	 * @param friend
+	 *            the friend whose name changed
+	 */
+	void nameChanged(F friend);
+
+	/**
+	 * Called after the {@link ToxUserStatus} of the specified friend has been
+	 * changed
+	 *
+	 * @param friend
+	 *            the friend whose status changed
+	 */
+	void statusChanged(F friend);
+
+	/**
+	 * Called after the specified friend went online or offline
+	 *
+	 * @param friend
+	 *            the friend whose connection status changed
+	 */
+	void connectionStatusChanged(F friend);
+
+	/**
+	 * Called after the client id of the specified friend has been set
+	 *
+	 * @param friend
+	 *            the friend whose client id changed
+	 */
+	void idChanged(F friend);
+
+	/**
+	 * Called after the status message of the specified friend has been changed
+	 *
+	 * @param friend
+	 *            the friend whose status message changed
+	 */
+	void statusMessageChanged(F friend);
+
+	/**
+	 * Called after the specified friend started or stopped typing
+	 *
+	 * @param friend
+	 *            the friend whose typing status changed
+	 */
+	void typingChanged(F friend);
+}
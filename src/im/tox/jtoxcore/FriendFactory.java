@@ -0,0 +1,40 @@
+/* FriendFactory.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * Factory used by the {@link FriendList} implementations shipped with
+ * jToxcore to create instances of the application's own friend type.
+ *
+ * @param <F>
+ *            Friend type created by this factory
+ */
+public interface FriendFactory<F extends ToxFriend> {
+
+	/**
+	 * Create a new friend with the specified friendnumber
+	 *
+	 * @param friendnumber
+	 *            the friendnumber of the new friend
+	 * @return the newly created friend. Must not be null.
+	 */
+	F createFriend(int friendnumber);
+}
@@ -0,0 +1,46 @@
+/* FriendField.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * Fields of a {@link ToxFriend} that are fetched from the core. Used to mark
+ * single fields as stale, see {@link JTox#markDirty(int, FriendField)}.
+ */
+public enum FriendField {
+	ID,
+	NAME,
+	STATUS_MESSAGE,
+	USER_STATUS,
+	CONNECTION_STATUS,
+	TYPING;
+
+	/**
+	 * @return the bit representing this field in a field mask
+	 */
+	int mask() {
+		return 1 << ordinal();
+	}
+
+	/**
+	 * Mask containing all fields
+	 */
+	static final int ALL = (1 << values().length) - 1;
+}
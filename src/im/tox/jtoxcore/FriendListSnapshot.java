@@ -0,0 +1,241 @@
+/* FriendListSnapshot.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Immutable, versioned view of a {@link SnapshotFriendList}. All friends
+ * returned by one snapshot reflect the same point in time, so results of
+ * several queries on the same snapshot are consistent with each other.
+ * <p/>
+ * Snapshots form a persistent structure: publishing a change to one friend
+ * copies only the chunk containing that friend and the chunk table, and all
+ * other chunks are shared with the previous version.
+ *
+ * @param <F>
+ *            Friend type of the list this snapshot was taken from
+ */
+public final class FriendListSnapshot<F extends ToxFriend> {
+
+	private static final int CHUNK_BITS = 6;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final long version;
+	private final Object[][] chunks;
+	private final int size;
+	private final int onlineCount;
+
+	/**
+	 * Create the empty snapshot
+	 */
+	FriendListSnapshot() {
+		this(0, new Object[0][], 0, 0);
+	}
+
+	private FriendListSnapshot(long version, Object[][] chunks, int size, int onlineCount) {
+		this.version = version;
+		this.chunks = chunks;
+		this.size = size;
+		this.onlineCount = onlineCount;
+	}
+
+	/**
+	 * @return the version of this snapshot. Every published change increases
+	 *         the version by one.
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * @return the number of friends in this snapshot
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return the number of online friends in this snapshot
+	 */
+	public int getOnlineCount() {
+		return this.onlineCount;
+	}
+
+	/**
+	 * Retrieve a friend by its number
+	 *
+	 * @param friendnumber
+	 *            the number to look for
+	 * @return the friend, or null if no such friend exists
+	 */
+	@SuppressWarnings("unchecked")
+	public FriendSnapshot<F> get(int friendnumber) {
+		int chunk = friendnumber >>> CHUNK_BITS;
+
+		if (friendnumber < 0 || chunk >= this.chunks.length || this.chunks[chunk] == null) {
+			return null;
+		}
+
+		return (FriendSnapshot<F>) this.chunks[chunk][friendnumber & CHUNK_MASK];
+	}
+
+	/**
+	 * Retrieve a friend by its client id
+	 *
+	 * @param id
+	 *            the id to look for
+	 * @return the friend, or null if no such friend exists
+	 */
+	public FriendSnapshot<F> getById(final String id) {
+		List<FriendSnapshot<F>> result = select(new Filter<F>() {
+			@Override
+			boolean accept(FriendSnapshot<F> friend) {
+				return id.equals(friend.getId());
+			}
+		});
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	/**
+	 * @see FriendList#getByName(String, boolean)
+	 */
+	public List<FriendSnapshot<F>> getByName(final String name, final boolean ignorecase) {
+		return select(new Filter<F>() {
+			@Override
+			boolean accept(FriendSnapshot<F> friend) {
+				return ignorecase ? name.equalsIgnoreCase(friend.getName()) : name.equals(friend.getName());
+			}
+		});
+	}
+
+	/**
+	 * @see FriendList#searchFriend(String)
+	 */
+	public List<FriendSnapshot<F>> searchFriend(String partial) {
+		final String lower = partial.toLowerCase(Locale.ROOT);
+		return select(new Filter<F>() {
+			@Override
+			boolean accept(FriendSnapshot<F> friend) {
+				return friend.getName() != null && friend.getName().toLowerCase(Locale.ROOT).contains(lower);
+			}
+		});
+	}
+
+	/**
+	 * @see FriendList#getByStatus(ToxUserStatus)
+	 */
+	public List<FriendSnapshot<F>> getByStatus(final ToxUserStatus status) {
+		return select(new Filter<F>() {
+			@Override
+			boolean accept(FriendSnapshot<F> friend) {
+				return friend.isOnline() && friend.getStatus() == status;
+			}
+		});
+	}
+
+	/**
+	 * @see FriendList#getOnlineFriends()
+	 */
+	public List<FriendSnapshot<F>> getOnlineFriends() {
+		return select(new Filter<F>() {
+			@Override
+			boolean accept(FriendSnapshot<F> friend) {
+				return friend.isOnline();
+			}
+		});
+	}
+
+	/**
+	 * @see FriendList#getOfflineFriends()
+	 */
+	public List<FriendSnapshot<F>> getOfflineFriends() {
+		return select(new Filter<F>() {
+			@Override
+			boolean accept(FriendSnapshot<F> friend) {
+				return !friend.isOnline();
+			}
+		});
+	}
+
+	/**
+	 * @see FriendList#all()
+	 */
+	public List<FriendSnapshot<F>> all() {
+		return select(new Filter<F>() {
+			@Override
+			boolean accept(FriendSnapshot<F> friend) {
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Create the next version of this snapshot, with the specified friend
+	 * replaced.
+	 *
+	 * @param friendnumber
+	 *            the number of the friend to replace
+	 * @param friend
+	 *            the new state of the friend, or null to remove it
+	 * @return the new snapshot
+	 */
+	FriendListSnapshot<F> with(int friendnumber, FriendSnapshot<F> friend) {
+		int chunk = friendnumber >>> CHUNK_BITS;
+		FriendSnapshot<F> old = get(friendnumber);
+		Object[][] newChunks = new Object[Math.max(this.chunks.length, chunk + 1)][];
+		System.arraycopy(this.chunks, 0, newChunks, 0, this.chunks.length);
+		newChunks[chunk] = this.chunks.length > chunk && this.chunks[chunk] != null ? this.chunks[chunk].clone()
+						   : new Object[CHUNK_SIZE];
+		newChunks[chunk][friendnumber & CHUNK_MASK] = friend;
+
+		int newSize = this.size + (friend != null ? 1 : 0) - (old != null ? 1 : 0);
+		int newOnline = this.onlineCount + (friend != null && friend.isOnline() ? 1 : 0)
+						- (old != null && old.isOnline() ? 1 : 0);
+		return new FriendListSnapshot<F>(this.version + 1, newChunks, newSize, newOnline);
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<FriendSnapshot<F>> select(Filter<F> filter) {
+		List<FriendSnapshot<F>> result = new ArrayList<FriendSnapshot<F>>();
+
+		for (Object[] chunk : this.chunks) {
+			if (chunk == null) {
+				continue;
+			}
+
+			for (Object entry : chunk) {
+				if (entry != null && filter.accept((FriendSnapshot<F>) entry)) {
+					result.add((FriendSnapshot<F>) entry);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	private abstract static class Filter<F extends ToxFriend> {
+		abstract boolean accept(FriendSnapshot<F> friend);
+	}
+}
@@ -0,0 +1,59 @@
+/* FriendRequest.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * A friend request waiting in a {@link FriendRequestIntake}
+ */
+public final class FriendRequest {
+
+	private final String publicKey;
+	private final String message;
+	private final long received;
+
+	FriendRequest(String publicKey, String message, long received) {
+		this.publicKey = publicKey;
+		this.message = message;
+		this.received = received;
+	}
+
+	/**
+	 * @return the public key of the sender
+	 */
+	public String getPublicKey() {
+		return this.publicKey;
+	}
+
+	/**
+	 * @return the message sent with the request, might be <code>null</code>
+	 */
+	public String getMessage() {
+		return this.message;
+	}
+
+	/**
+	 * @return the time the request was received, as returned by
+	 *         {@link System#currentTimeMillis()}
+	 */
+	public long getReceived() {
+		return this.received;
+	}
+}
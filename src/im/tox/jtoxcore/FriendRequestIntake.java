@@ -0,0 +1,255 @@
+/* FriendRequestIntake.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import im.tox.jtoxcore.callbacks.CallbackHandler;
+import im.tox.jtoxcore.callbacks.OnFriendRequestCallback;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Buffers incoming friend requests, and accepts them in batches on the tox
+ * thread, so a flood of requests can not starve the tox loop.
+ * <p/>
+ * The callback only does constant work per request:
+ * <ul>
+ * <li>requests from a key that is already queued are counted as duplicates
+ * and dropped</li>
+ * <li>requests from a key that sent a request less than the minimum interval
+ * ago are counted as rate limited and dropped</li>
+ * <li>requests arriving while the queue is full are counted as dropped</li>
+ * </ul>
+ * On every tick, at most <code>batchSize</code> requests are passed to the
+ * {@link FriendRequestPolicy} in a single call, and the accepted ones are
+ * confirmed while holding the instance lock once for the whole batch.
+ *
+ * @param <F>
+ *            Friend type of the JTox instance
+ */
+public class FriendRequestIntake<F extends ToxFriend> implements ToxTask, OnFriendRequestCallback {
+
+	/**
+	 * Number of keys remembered for rate limiting
+	 */
+	private static final int MAX_TRACKED_KEYS = 4096;
+
+	private final JTox<F> tox;
+	private final CallbackHandler<F> handler;
+	private final FriendRequestPolicy policy;
+	private final int capacity;
+	private final int batchSize;
+	private final long minIntervalMillis;
+
+	private final ArrayDeque<FriendRequest> queue = new ArrayDeque<FriendRequest>();
+	private final Set<String> queuedKeys = new HashSet<String>();
+	private final Map<String, Long> lastSeen = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_TRACKED_KEYS;
+		}
+	};
+
+	private long received;
+	private long duplicates;
+	private long rateLimited;
+	private long dropped;
+	private long accepted;
+	private long rejected;
+	private long failed;
+
+	/**
+	 * Create a new intake, and register it with the given instance and
+	 * callback handler
+	 *
+	 * @param tox
+	 *            the instance to confirm requests with
+	 * @param handler
+	 *            the callback handler of the instance
+	 * @param policy
+	 *            the policy deciding which requests to accept
+	 * @param capacity
+	 *            the maximum number of queued requests
+	 * @param batchSize
+	 *            the maximum number of requests handled per tick
+	 * @param minIntervalMillis
+	 *            minimum time between two requests from the same key, in
+	 *            milliseconds
+	 */
+	public FriendRequestIntake(JTox<F> tox, CallbackHandler<F> handler, FriendRequestPolicy policy, int capacity,
+							   int batchSize, long minIntervalMillis) {
+		this.tox = tox;
+		this.handler = handler;
+		this.policy = policy;
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		this.minIntervalMillis = minIntervalMillis;
+		tox.registerTask(this);
+		handler.registerOnFriendRequestCallback(this);
+	}
+
+	/**
+	 * Unregister this intake from its instance and callback handler. Queued
+	 * requests are not handled anymore.
+	 */
+	public void close() {
+		this.tox.unregisterTask(this);
+		this.handler.unregisterOnFriendRequestCallback(this);
+	}
+
+	@Override
+	public synchronized void execute(String publicKey, String message) {
+		long now = System.currentTimeMillis();
+		this.received++;
+
+		if (this.queuedKeys.contains(publicKey)) {
+			this.duplicates++;
+			return;
+		}
+
+		Long last = this.lastSeen.put(publicKey, now);
+
+		if (last != null && now - last < this.minIntervalMillis) {
+			this.rateLimited++;
+			return;
+		}
+
+		if (this.queue.size() >= this.capacity) {
+			this.dropped++;
+			return;
+		}
+
+		this.queue.add(new FriendRequest(publicKey, message, now));
+		this.queuedKeys.add(publicKey);
+	}
+
+	@Override
+	public void tick() {
+		List<FriendRequest> batch;
+
+		synchronized (this) {
+			if (this.queue.isEmpty()) {
+				return;
+			}
+
+			int size = Math.min(this.batchSize, this.queue.size());
+			batch = new ArrayList<FriendRequest>(size);
+
+			for (int i = 0; i < size; i++) {
+				FriendRequest request = this.queue.poll();
+				this.queuedKeys.remove(request.getPublicKey());
+				batch.add(request);
+			}
+		}
+
+		List<FriendRequest> acceptedRequests = this.policy.accept(batch);
+		int acceptedCount = 0;
+		int rejectedCount = batch.size() - acceptedRequests.size();
+		int failedCount = 0;
+		this.tox.getLock().lock();
+
+		try {
+			for (FriendRequest request : acceptedRequests) {
+				try {
+					this.tox.confirmRequest(request.getPublicKey());
+					acceptedCount++;
+				} catch (ToxException e) {
+					failedCount++;
+				} catch (FriendExistsException e) {
+					failedCount++;
+				}
+			}
+		} finally {
+			this.tox.getLock().unlock();
+		}
+
+		synchronized (this) {
+			this.accepted += acceptedCount;
+			this.rejected += rejectedCount;
+			this.failed += failedCount;
+		}
+	}
+
+	/**
+	 * @return the number of requests waiting to be handled
+	 */
+	public synchronized int getQueuedCount() {
+		return this.queue.size();
+	}
+
+	/**
+	 * @return the number of requests received
+	 */
+	public synchronized long getReceivedCount() {
+		return this.received;
+	}
+
+	/**
+	 * @return the number of requests dropped because a request from the same
+	 *         key was already queued
+	 */
+	public synchronized long getDuplicateCount() {
+		return this.duplicates;
+	}
+
+	/**
+	 * @return the number of requests dropped because the same key sent a
+	 *         request shortly before
+	 */
+	public synchronized long getRateLimitedCount() {
+		return this.rateLimited;
+	}
+
+	/**
+	 * @return the number of requests dropped because the queue was full
+	 */
+	public synchronized long getDroppedCount() {
+		return this.dropped;
+	}
+
+	/**
+	 * @return the number of requests accepted and confirmed
+	 */
+	public synchronized long getAcceptedCount() {
+		return this.accepted;
+	}
+
+	/**
+	 * @return the number of requests rejected by the policy
+	 */
+	public synchronized long getRejectedCount() {
+		return this.rejected;
+	}
+
+	/**
+	 * @return the number of accepted requests that could not be confirmed
+	 */
+	public synchronized long getFailedCount() {
+		return this.failed;
+	}
+}
@@ -0,0 +1,42 @@
+/* FriendRequestPolicy.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.util.List;
+
+/**
+ * Decides which friend requests a {@link FriendRequestIntake} accepts
+ */
+public interface FriendRequestPolicy {
+
+	/**
+	 * Called on the tox thread once per tick with the batch of queued
+	 * requests, in the order they were received. The instance is not locked
+	 * while the policy runs, but it should not block the tox thread either.
+	 *
+	 * @param requests
+	 *            the batch of requests, owned by the caller and only valid
+	 *            during the call
+	 * @return the requests to accept, a subset of <code>requests</code>. All
+	 *         other requests of the batch are rejected.
+	 */
+	List<FriendRequest> accept(List<FriendRequest> requests);
+}
@@ -0,0 +1,133 @@
+/* FriendSnapshot.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * Immutable copy of the state of a friend at the time it was taken. Instances
+ * are handed out by {@link FriendListSnapshot} and can be read from any thread
+ * without synchronization.
+ * <p/>
+ * All setters throw {@link UnsupportedOperationException}.
+ *
+ * @param <F>
+ *            Friend type of the live friend this snapshot was taken from
+ */
+public final class FriendSnapshot<F extends ToxFriend> implements ToxFriend {
+
+	private final F friend;
+	private final int friendnumber;
+	private final String id;
+	private final String name;
+	private final String statusMessage;
+	private final ToxUserStatus status;
+	private final boolean online;
+	private final boolean typing;
+
+	/**
+	 * Take a snapshot of the specified friend
+	 *
+	 * @param friend
+	 *            the friend to copy
+	 */
+	public FriendSnapshot(F friend) {
+		this.friend = friend;
+		this.friendnumber = friend.getFriendnumber();
+		this.id = friend.getId();
+		this.name = friend.getName();
+		this.statusMessage = friend.getStatusMessage();
+		this.status = friend.getStatus();
+		this.online = friend.isOnline();
+		this.typing = friend.isTyping();
+	}
+
+	/**
+	 * @return the live friend this snapshot was taken from. Its state may have
+	 *         changed since.
+	 */
+	public F getFriend() {
+		return this.friend;
+	}
+
+	@Override
+	public String getId() {
+		return this.id;
+	}
+
+	@Override
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public String getStatusMessage() {
+		return this.statusMessage;
+	}
+
+	@Override
+	public ToxUserStatus getStatus() {
+		return this.status;
+	}
+
+	@Override
+	public boolean isOnline() {
+		return this.online;
+	}
+
+	@Override
+	public int getFriendnumber() {
+		return this.friendnumber;
+	}
+
+	@Override
+	public boolean isTyping() {
+		return this.typing;
+	}
+
+	@Override
+	public void setId(String id) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void setName(String name) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void setStatusMessage(String statusMessage) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void setStatus(ToxUserStatus status) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void setOnline(boolean online) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void setTyping(boolean typing) {
+		throw new UnsupportedOperationException();
+	}
+}
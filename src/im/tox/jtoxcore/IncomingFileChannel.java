@@ -0,0 +1,156 @@
+/* IncomingFileChannel.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the data of an incoming transfer, handed out to a
+ * {@link FileStreamPolicy}. Received chunks are buffered until they are read.
+ * When the buffer fills up, the engine pauses the transfer, and resumes it
+ * once enough data was read.
+ * <p/>
+ * In blocking mode, the default, reads wait for data. In non-blocking mode,
+ * reads return 0 if no data is buffered. Reads return -1 once the sender
+ * finished the file and all data was read. Closing the channel earlier
+ * cancels the transfer.
+ */
+public final class IncomingFileChannel implements ReadableByteChannel {
+
+	private final FileReceiveEngine<?> engine;
+	private final IncomingFileTransfer transfer;
+	private volatile boolean blocking = true;
+	private volatile boolean open = true;
+
+	IncomingFileChannel(FileReceiveEngine<?> engine, IncomingFileTransfer transfer) {
+		this.engine = engine;
+		this.transfer = transfer;
+	}
+
+	/**
+	 * @return the transfer this channel reads from
+	 */
+	public IncomingFileTransfer getTransfer() {
+		return this.transfer;
+	}
+
+	/**
+	 * @param blocking
+	 *            whether reads wait for data
+	 */
+	public void configureBlocking(boolean blocking) {
+		this.blocking = blocking;
+	}
+
+	/**
+	 * @return true if reads wait for data
+	 */
+	public boolean isBlocking() {
+		return this.blocking;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		return read(dst, this.blocking);
+	}
+
+	private int read(ByteBuffer dst, boolean block) throws IOException {
+		if (!this.open) {
+			throw new ClosedChannelException();
+		}
+
+		int read = this.transfer.pipe.read(dst, block);
+
+		if (read > 0) {
+			this.engine.drained(this.transfer);
+		}
+
+		return read;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	/**
+	 * Close the channel. If the transfer is not finished yet, it is
+	 * cancelled.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!this.open) {
+			return;
+		}
+
+		this.open = false;
+
+		try {
+			this.engine.cancel(this.transfer);
+		} catch (ToxException e) {
+			throw new IOException("Could not cancel the transfer: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return a stream reading from this channel. Its reads always block,
+	 *         regardless of the mode of the channel.
+	 */
+	public InputStream getInputStream() {
+		return new InputStream() {
+			private final byte[] single = new byte[1];
+
+			@Override
+			public int read() throws IOException {
+				int read;
+
+				do {
+					read = read(this.single, 0, 1);
+				} while (read == 0);
+
+				return read < 0 ? -1 : this.single[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+
+				return IncomingFileChannel.this.read(ByteBuffer.wrap(b, off, len), true);
+			}
+
+			@Override
+			public int available() throws IOException {
+				return (int) Math.min(Integer.MAX_VALUE, IncomingFileChannel.this.transfer.pipe.buffered());
+			}
+
+			@Override
+			public void close() throws IOException {
+				IncomingFileChannel.this.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,123 @@
+/* IncomingFileTransfer.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+/**
+ * A file we are receiving, managed by a {@link FileReceiveEngine}
+ */
+public final class IncomingFileTransfer extends FileTransfer {
+
+	private final File target;
+
+	RandomAccessFile file;
+
+	/**
+	 * Buffer read by an {@link IncomingFileChannel}, or null if the data is
+	 * written to {@link #file}
+	 */
+	TransferPipe pipe;
+
+	/**
+	 * Set while the engine paused the transfer because {@link #pipe} is full
+	 */
+	boolean throttled;
+
+	/**
+	 * The currently mapped part of the file
+	 */
+	MappedByteBuffer window;
+
+	/**
+	 * File offset of the start of the current window
+	 */
+	long windowStart;
+
+	/**
+	 * Progress journal, or null if the engine does not keep journals
+	 */
+	TransferJournal journal;
+
+	/**
+	 * Checksum of the data received since the last checkpoint
+	 */
+	final CRC32 checksum = new CRC32();
+
+	/**
+	 * File offset of the last checkpoint
+	 */
+	long checkpointed;
+
+	/**
+	 * Offset the offer was accepted at, for a file received partly in an
+	 * earlier session
+	 */
+	long resumedFrom;
+
+	/**
+	 * Copy of the last chunk from a direct buffer, for the checksum or the
+	 * {@link #inflater}
+	 */
+	byte[] scratch;
+
+	/**
+	 * Inflates the chunks if we asked the sender to compress the file,
+	 * otherwise null
+	 */
+	Inflater inflater;
+
+	/**
+	 * Output of the {@link #inflater}
+	 */
+	ByteBuffer inflated;
+
+	IncomingFileTransfer(int friendnumber, int filenumber, String filename, long size, File target,
+						 FileTransferMetrics engineMetrics) {
+		super(friendnumber, filenumber, filename, size, FileTransferState.PENDING, engineMetrics);
+		this.target = target;
+	}
+
+	/**
+	 * @return the file the data is written to, or null if the file is
+	 *         received as a stream
+	 */
+	public File getTarget() {
+		return this.target;
+	}
+
+	@Override
+	public boolean isSending() {
+		return false;
+	}
+
+	/**
+	 * @return true if the sender compresses the file
+	 */
+	public boolean isCompressed() {
+		return this.inflater != null;
+	}
+}
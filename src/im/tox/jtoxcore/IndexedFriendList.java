@@ -0,0 +1,522 @@
+/* IndexedFriendList.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * {@link FriendList} implementation for large friend lists. Friends are stored
+ * in an array indexed by their friendnumber, and names are kept in a
+ * case-folded hash index and a trigram index. Both indices are updated
+ * incrementally through {@link FriendChangeListener#nameChanged(ToxFriend)},
+ * so {@link #getByName(String, boolean)} and {@link #searchFriend(String)} do
+ * not have to look at every friend.
+ * <p/>
+ * Connection state and {@link ToxUserStatus} are tracked in one BitSet per
+ * state, so {@link #getOnlineFriends()}, {@link #getOfflineFriends()} and
+ * {@link #getByStatus(ToxUserStatus)} only visit the friends they return, and
+ * the matching count methods run in constant time.
+ * <p/>
+ * Queries shorter than three characters cannot use the trigram index and fall
+ * back to a scan over the case-folded names.
+ * <p/>
+ * All methods are synchronized on the list instance.
+ *
+ * @param <F>
+ *            Friend type to use with this list
+ */
+public class IndexedFriendList<F extends ToxFriend> implements FriendList<F>, FriendChangeListener<F> {
+
+	private static final int GRAM_LENGTH = 3;
+
+	private static final byte NO_STATUS = -1;
+
+	private final FriendFactory<F> factory;
+
+	private Object[] friends;
+	private String[] foldedNames;
+	private byte[] statuses;
+	private int size;
+
+	private final BitSet online;
+	private final BitSet offline;
+
+	/**
+	 * One set per {@link ToxUserStatus} ordinal, containing only online friends
+	 */
+	private final BitSet[] onlineByStatus;
+	private final int[] onlineByStatusCount;
+	private int onlineCount;
+
+	private final Map<String, IntSet> nameIndex;
+	private final Map<Long, IntSet> gramIndex;
+
+	/**
+	 * Create a new, empty list
+	 *
+	 * @param factory
+	 *            the factory used to create new friends
+	 */
+	public IndexedFriendList(FriendFactory<F> factory) {
+		this.factory = factory;
+		this.friends = new Object[16];
+		this.foldedNames = new String[16];
+		this.statuses = new byte[16];
+		this.online = new BitSet();
+		this.offline = new BitSet();
+		this.onlineByStatus = new BitSet[ToxUserStatus.values().length];
+		this.onlineByStatusCount = new int[this.onlineByStatus.length];
+
+		for (int i = 0; i < this.onlineByStatus.length; i++) {
+			this.onlineByStatus[i] = new BitSet();
+		}
+
+		this.nameIndex = new HashMap<String, IntSet>();
+		this.gramIndex = new HashMap<Long, IntSet>();
+	}
+
+	@Override
+	public synchronized F getByFriendNumber(int friendnumber) {
+		return get(friendnumber);
+	}
+
+	@Override
+	public synchronized F getById(String id) {
+		for (int i = 0; i < this.friends.length; i++) {
+			F friend = get(i);
+
+			if (friend != null && id.equals(friend.getId())) {
+				return friend;
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	public synchronized List<F> getByName(String name, boolean ignorecase) {
+		List<F> result = new ArrayList<F>();
+		IntSet candidates = this.nameIndex.get(fold(name));
+
+		if (candidates == null) {
+			return result;
+		}
+
+		for (int i = 0; i < candidates.size(); i++) {
+			F friend = get(candidates.get(i));
+
+			if (ignorecase || name.equals(friend.getName())) {
+				result.add(friend);
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public synchronized List<F> searchFriend(String partial) {
+		String folded = fold(partial);
+
+		if (folded.length() < GRAM_LENGTH) {
+			return scan(folded);
+		}
+
+		IntSet[] postings = new IntSet[folded.length() - GRAM_LENGTH + 1];
+
+		for (int i = 0; i < postings.length; i++) {
+			postings[i] = this.gramIndex.get(gram(folded, i));
+
+			if (postings[i] == null) {
+				return new ArrayList<F>();
+			}
+		}
+
+		// Walk the shortest posting list and probe the others
+		int shortest = 0;
+
+		for (int i = 1; i < postings.length; i++) {
+			if (postings[i].size() < postings[shortest].size()) {
+				shortest = i;
+			}
+		}
+
+		List<F> result = new ArrayList<F>();
+		IntSet candidates = postings[shortest];
+
+		outer:
+		for (int i = 0; i < candidates.size(); i++) {
+			int friendnumber = candidates.get(i);
+
+			for (IntSet posting : postings) {
+				if (!posting.contains(friendnumber)) {
+					continue outer;
+				}
+			}
+
+			// All trigrams present does not imply they are adjacent
+			if (this.foldedNames[friendnumber].contains(folded)) {
+				result.add(get(friendnumber));
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public synchronized List<F> getByStatus(ToxUserStatus status) {
+		return collect(this.onlineByStatus[status.ordinal()], this.onlineByStatusCount[status.ordinal()]);
+	}
+
+	@Override
+	public synchronized List<F> getOnlineFriends() {
+		return collect(this.online, this.onlineCount);
+	}
+
+	@Override
+	public synchronized List<F> getOfflineFriends() {
+		return collect(this.offline, this.size - this.onlineCount);
+	}
+
+	@Override
+	public synchronized List<F> all() {
+		List<F> result = new ArrayList<F>(this.size);
+
+		for (int i = 0; i < this.friends.length; i++) {
+			F friend = get(i);
+
+			if (friend != null) {
+				result.add(friend);
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public synchronized F addFriend(int friendnumber) throws FriendExistsException {
+		if (get(friendnumber) != null) {
+			throw new FriendExistsException(friendnumber);
+		}
+
+		return insert(friendnumber);
+	}
+
+	@Override
+	public synchronized F addFriendIfNotExists(int friendnumber) {
+		F friend = get(friendnumber);
+
+		if (friend != null) {
+			return friend;
+		}
+
+		return insert(friendnumber);
+	}
+
+	@Override
+	public synchronized void removeFriend(int friendnumber) {
+		if (get(friendnumber) == null) {
+			return;
+		}
+
+		unindex(friendnumber);
+		setPresence(friendnumber, false, NO_STATUS);
+		this.offline.clear(friendnumber);
+		this.friends[friendnumber] = null;
+		this.size--;
+	}
+
+	@Override
+	public synchronized void nameChanged(F friend) {
+		int friendnumber = friend.getFriendnumber();
+
+		if (get(friendnumber) != friend) {
+			return;
+		}
+
+		String folded = fold(friend.getName());
+
+		if (folded.equals(this.foldedNames[friendnumber])) {
+			return;
+		}
+
+		unindex(friendnumber);
+		index(friendnumber, folded);
+	}
+
+	@Override
+	public synchronized void statusChanged(F friend) {
+		int friendnumber = friend.getFriendnumber();
+
+		if (get(friendnumber) == friend) {
+			setPresence(friendnumber, this.online.get(friendnumber), statusOf(friend));
+		}
+	}
+
+	@Override
+	public synchronized void connectionStatusChanged(F friend) {
+		int friendnumber = friend.getFriendnumber();
+
+		if (get(friendnumber) == friend) {
+			setPresence(friendnumber, friend.isOnline(), this.statuses[friendnumber]);
+		}
+	}
+
+	@Override
+	public void idChanged(F friend) {
+		// Not indexed
+	}
+
+	@Override
+	public void statusMessageChanged(F friend) {
+		// Not indexed
+	}
+
+	@Override
+	public void typingChanged(F friend) {
+		// Not indexed
+	}
+
+	/**
+	 * @return the number of friends in this list
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return the number of online friends
+	 */
+	public synchronized int getOnlineCount() {
+		return this.onlineCount;
+	}
+
+	/**
+	 * @return the number of offline friends
+	 */
+	public synchronized int getOfflineCount() {
+		return this.size - this.onlineCount;
+	}
+
+	/**
+	 * Get the number of friends that are currently online and have the
+	 * specified status.
+	 *
+	 * @param status
+	 *            the status to count
+	 * @return the number of online friends with that status
+	 */
+	public synchronized int getStatusCount(ToxUserStatus status) {
+		return this.onlineByStatusCount[status.ordinal()];
+	}
+
+	private F insert(int friendnumber) {
+		if (friendnumber >= this.friends.length) {
+			int capacity = Math.max(friendnumber + 1, this.friends.length * 2);
+			this.friends = Arrays.copyOf(this.friends, capacity);
+			this.foldedNames = Arrays.copyOf(this.foldedNames, capacity);
+			this.statuses = Arrays.copyOf(this.statuses, capacity);
+		}
+
+		F friend = this.factory.createFriend(friendnumber);
+		this.friends[friendnumber] = friend;
+		this.size++;
+		index(friendnumber, fold(friend.getName()));
+		this.statuses[friendnumber] = NO_STATUS;
+		this.offline.set(friendnumber);
+		setPresence(friendnumber, friend.isOnline(), statusOf(friend));
+		return friend;
+	}
+
+	/**
+	 * Move a friend between the connection and status sets
+	 */
+	private void setPresence(int friendnumber, boolean isOnline, byte status) {
+		boolean wasOnline = this.online.get(friendnumber);
+		byte oldStatus = this.statuses[friendnumber];
+
+		if (wasOnline && oldStatus != NO_STATUS) {
+			this.onlineByStatus[oldStatus].clear(friendnumber);
+			this.onlineByStatusCount[oldStatus]--;
+		}
+
+		if (isOnline && status != NO_STATUS) {
+			this.onlineByStatus[status].set(friendnumber);
+			this.onlineByStatusCount[status]++;
+		}
+
+		if (wasOnline != isOnline) {
+			this.online.set(friendnumber, isOnline);
+			this.offline.set(friendnumber, !isOnline);
+			this.onlineCount += isOnline ? 1 : -1;
+		}
+
+		this.statuses[friendnumber] = status;
+	}
+
+	private void index(int friendnumber, String folded) {
+		this.foldedNames[friendnumber] = folded;
+		IntSet names = this.nameIndex.get(folded);
+
+		if (names == null) {
+			names = new IntSet();
+			this.nameIndex.put(folded, names);
+		}
+
+		names.add(friendnumber);
+
+		for (int i = 0; i + GRAM_LENGTH <= folded.length(); i++) {
+			Long key = gram(folded, i);
+			IntSet posting = this.gramIndex.get(key);
+
+			if (posting == null) {
+				posting = new IntSet();
+				this.gramIndex.put(key, posting);
+			}
+
+			posting.add(friendnumber);
+		}
+	}
+
+	private void unindex(int friendnumber) {
+		String folded = this.foldedNames[friendnumber];
+
+		if (folded == null) {
+			return;
+		}
+
+		this.foldedNames[friendnumber] = null;
+		IntSet names = this.nameIndex.get(folded);
+
+		if (names != null && names.remove(friendnumber) && names.size() == 0) {
+			this.nameIndex.remove(folded);
+		}
+
+		for (int i = 0; i + GRAM_LENGTH <= folded.length(); i++) {
+			Long key = gram(folded, i);
+			IntSet posting = this.gramIndex.get(key);
+
+			if (posting != null && posting.remove(friendnumber) && posting.size() == 0) {
+				this.gramIndex.remove(key);
+			}
+		}
+	}
+
+	private List<F> scan(String folded) {
+		List<F> result = new ArrayList<F>();
+
+		for (int i = 0; i < this.friends.length; i++) {
+			if (this.friends[i] != null && this.foldedNames[i].contains(folded)) {
+				result.add(get(i));
+			}
+		}
+
+		return result;
+	}
+
+	private List<F> collect(BitSet set, int count) {
+		List<F> result = new ArrayList<F>(count);
+
+		for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+			result.add(get(i));
+		}
+
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private F get(int friendnumber) {
+		if (friendnumber < 0 || friendnumber >= this.friends.length) {
+			return null;
+		}
+
+		return (F) this.friends[friendnumber];
+	}
+
+	private static byte statusOf(ToxFriend friend) {
+		ToxUserStatus status = friend.getStatus();
+		return status == null ? NO_STATUS : (byte) status.ordinal();
+	}
+
+	private static String fold(String name) {
+		return name == null ? "" : name.toLowerCase(Locale.ROOT);
+	}
+
+	private static Long gram(String folded, int offset) {
+		return Long.valueOf(((long) folded.charAt(offset) << 32) | ((long) folded.charAt(offset + 1) << 16)
+							| folded.charAt(offset + 2));
+	}
+
+	/**
+	 * Sorted set of friendnumbers, used as posting list
+	 */
+	private static final class IntSet {
+		private int[] values = new int[4];
+		private int size;
+
+		int size() {
+			return this.size;
+		}
+
+		int get(int index) {
+			return this.values[index];
+		}
+
+		boolean contains(int value) {
+			return Arrays.binarySearch(this.values, 0, this.size, value) >= 0;
+		}
+
+		void add(int value) {
+			int position = Arrays.binarySearch(this.values, 0, this.size, value);
+
+			if (position >= 0) {
+				return;
+			}
+
+			position = -position - 1;
+
+			if (this.size == this.values.length) {
+				this.values = Arrays.copyOf(this.values, this.size * 2);
+			}
+
+			System.arraycopy(this.values, position, this.values, position + 1, this.size - position);
+			this.values[position] = value;
+			this.size++;
+		}
+
+		boolean remove(int value) {
+			int position = Arrays.binarySearch(this.values, 0, this.size, value);
+
+			if (position < 0) {
+				return false;
+			}
+
+			System.arraycopy(this.values, position + 1, this.values, position, this.size - position - 1);
+			this.size--;
+			return true;
+		}
+	}
+}
@@ -23,8 +23,11 @@ package im.tox.jtoxcore;
 
 import java.io.UnsupportedEncodingException;
 import java.net.UnknownHostException;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.ReentrantLock;
 
 import im.tox.jtoxcore.callbacks.CallbackHandler;
@@ -51,6 +54,13 @@ public class JTox<F extends ToxFriend> {
 	 */
 	public static final int TOX_MAX_NICKNAME_LENGTH = 128;
 
+	/**
+	 * Maximum length of a single message in Bytes. Non-ASCII characters take
+	 * multiple Bytes. Longer messages can be sent with
+	 * {@link #sendMessageFragmented(ToxFriend, String)}.
+	 */
+	public static final int TOX_MAX_MESSAGE_LENGTH = 1368;
+
 	static {
 		System.loadLibrary("jtoxcore");
 	}
@@ -68,6 +78,23 @@ public class JTox<F extends ToxFriend> {
 	private CallbackHandler<F> handler;
 	private FriendList<F> friendList;
 
+	/**
+	 * Friend fields that may be out of date with the core
+	 */
+	private final DirtyFriendTracker<F> dirtyTracker;
+
+	/**
+	 * Tasks run after every call to {@link #doTox()}
+	 */
+	private final List<ToxTask> tasks = new CopyOnWriteArrayList<ToxTask>();
+
+	/**
+	 * Number of audio channels we send to each friend we are in a call with,
+	 * as given to the last call, answer or settings change. Guarded by
+	 * {@link #lock}.
+	 */
+	private final Map<Integer, Integer> sendChannels = new HashMap<Integer, Integer>();
+
 	/**
 	 * This field contains the lock used for thread safety
 	 */
@@ -100,6 +127,9 @@ public class JTox<F extends ToxFriend> {
 	public JTox(FriendList<F> friendList, CallbackHandler<F> handler, ToxOptions toxOptions) throws ToxException {
 		this.friendList = friendList;
 		this.handler = handler;
+		this.dirtyTracker = new DirtyFriendTracker<F>();
+		handler.registerFriendChangeListener(this.dirtyTracker);
+
 		long pointer = tox_new(toxOptions);
 
 		if (pointer == 0) {
@@ -213,17 +243,21 @@ public class JTox<F extends ToxFriend> {
 	}
 
 	/**
-	 * Native call to tox_set_status_message
+	 * Native call to tox_set_status_message, reading the status message directly
+	 * from a direct buffer
 	 *
 	 * @param messengerPointer
 	 *            pointer to the internal messenger struct
 	 * @param message
-	 *            our new status message
+	 *            the direct buffer containing our new status message
+	 * @param offset
+	 *            the offset of the status message in the buffer
 	 * @param length
 	 *            the length of the new status message in bytes
 	 * @return false on success, true on failure
 	 */
-	private native boolean tox_set_status_message(long messengerPointer, byte[] message, int length);
+	private native boolean tox_set_status_message_direct(long messengerPointer, ByteBuffer message, int offset,
+			int length);
 
 	/**
 	 * Sets our status message
@@ -235,9 +269,9 @@ public class JTox<F extends ToxFriend> {
 	 *             another error occurred
 	 */
 	public void setStatusMessage(String message) throws ToxException {
-		byte[] messageArray = getStringBytes(message);
+		ByteBuffer encoded = Utf8Codec.encodeDirect(message);
 
-		if (messageArray.length >= TOX_MAX_STATUSMESSAGE_LENGTH) {
+		if (encoded == null || encoded.remaining() >= TOX_MAX_STATUSMESSAGE_LENGTH) {
 			throw new ToxException(ToxError.TOX_TOOLONG);
 		}
 
@@ -248,7 +282,8 @@ public class JTox<F extends ToxFriend> {
 		try {
 			checkPointer();
 
-			error = tox_set_status_message(this.messengerPointer, messageArray, messageArray.length);
+			error = tox_set_status_message_direct(this.messengerPointer, encoded, encoded.position(),
+												  encoded.remaining());
 		} finally {
 			this.lock.unlock();
 		}
@@ -294,17 +329,20 @@ public class JTox<F extends ToxFriend> {
 	}
 
 	/**
-	 * Native call to tox_set_name
+	 * Native call to tox_set_name, reading the name directly from a direct
+	 * buffer
 	 *
 	 * @param messengerPointer
 	 *            pointer to the internal messenger struct
 	 * @param newname
-	 *            the new name
+	 *            the direct buffer containing the new name
+	 * @param offset
+	 *            the offset of the new name in the buffer
 	 * @param length
 	 *            length of the new name in byte
 	 * @return false on success, true on failure
 	 */
-	private native boolean tox_set_name(long messengerPointer, byte[] newname, int length);
+	private native boolean tox_set_name_direct(long messengerPointer, ByteBuffer newname, int offset, int length);
 
 	/**
 	 * Sets our nickname
@@ -318,9 +356,9 @@ public class JTox<F extends ToxFriend> {
 	 *             error occurred
 	 */
 	public void setName(String newname) throws ToxException {
-		byte[] newnameArray = getStringBytes(newname);
+		ByteBuffer encoded = Utf8Codec.encodeDirect(newname);
 
-		if (newnameArray.length >= TOX_MAX_NICKNAME_LENGTH) {
+		if (encoded == null || encoded.remaining() >= TOX_MAX_NICKNAME_LENGTH) {
 			throw new ToxException(ToxError.TOX_TOOLONG);
 		}
 
@@ -331,7 +369,7 @@ public class JTox<F extends ToxFriend> {
 		try {
 			checkPointer();
 
-			error = tox_set_name(this.messengerPointer, newnameArray, newnameArray.length);
+			error = tox_set_name_direct(this.messengerPointer, encoded, encoded.position(), encoded.remaining());
 		} finally {
 			this.lock.unlock();
 		}
@@ -474,6 +512,10 @@ public class JTox<F extends ToxFriend> {
 		if (errcode >= 0) {
 			F friend = this.friendList.addFriend(errcode);
 			friend.setId(address);
+			this.handler.fireFriendChanged(friend, FriendField.ID);
+
+			// After notifying, which marks the id as up to date
+			this.dirtyTracker.mark(errcode, FriendField.ALL);
 			return friend;
 		}
 
@@ -516,6 +558,7 @@ public class JTox<F extends ToxFriend> {
 		}
 
 		this.friendList.removeFriend(friendnumber);
+		this.dirtyTracker.take(friendnumber);
 	}
 
 	/**
@@ -548,21 +591,165 @@ public class JTox<F extends ToxFriend> {
 	 *             if the instance has been killed or the message was not sent
 	 */
 	public int sendMessage(F friend, String message) throws ToxException {
-		byte[] messageArray = getStringBytes(message);
-		int result;
+		ByteBuffer encoded = Utf8Codec.encodeDirect(message);
+
+		// Too long for a single message, the core refuses it anyway
+		if (encoded == null) {
+			throw new ToxException(ToxError.TOX_SEND_FAILED);
+		}
+
+		int result = sendMessage(friend.getFriendnumber(), encoded);
+
+		if (result == 0) {
+			throw new ToxException(ToxError.TOX_SEND_FAILED);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Native call to tox_send_message, reading the message directly from a
+	 * direct buffer
+	 *
+	 * @param messengerPointer
+	 *            pointer to the internal messenger struct
+	 * @param friendnumber
+	 *            the number of the friend
+	 * @param message
+	 *            the direct buffer containing the message
+	 * @param offset
+	 *            the offset of the message in the buffer
+	 * @param length
+	 *            length of the message in bytes
+	 * @return the message ID on success, 0 on failure
+	 */
+	private native int tox_send_message_direct(long messengerPointer, int friendnumber, ByteBuffer message, int offset,
+			int length);
+
+	/**
+	 * Sends a UTF-8 encoded message to the specified friend. The message
+	 * consists of the remaining bytes of the buffer; the buffer's position is
+	 * not changed. Direct buffers are passed to the core without copying.
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 * @param message
+	 *            the buffer containing the message
+	 * @return the message ID, or 0 if the message was not sent
+	 * @throws ToxException
+	 *             if the instance has been killed
+	 */
+	public int sendMessage(int friendnumber, ByteBuffer message) throws ToxException {
+		if (!message.isDirect()) {
+			byte[] payload = new byte[message.remaining()];
+			message.duplicate().get(payload);
+			return sendMessageBytes(friendnumber, payload);
+		}
 
 		this.lock.lock();
 
 		try {
 			checkPointer();
 
-			result = tox_send_message(this.messengerPointer, friend.getFriendnumber(), messageArray,
-									  messageArray.length);
+			return tox_send_message_direct(this.messengerPointer, friendnumber, message, message.position(),
+										   message.remaining());
 		} finally {
 			this.lock.unlock();
 		}
+	}
 
-		if (result == 0) {
+	/**
+	 * Sends an already encoded message to the specified friend.
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 * @param payload
+	 *            the UTF-8 encoded message
+	 * @return the message ID, or 0 if the message was not sent
+	 * @throws ToxException
+	 *             if the instance has been killed
+	 */
+	int sendMessageBytes(int friendnumber, byte[] payload) throws ToxException {
+		this.lock.lock();
+
+		try {
+			checkPointer();
+
+			return tox_send_message(this.messengerPointer, friendnumber, payload, payload.length);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Native call to tox_send_message for consecutive fragments of one message
+	 *
+	 * @param messengerPointer
+	 *            pointer to the internal messenger struct
+	 * @param friendnumber
+	 *            the number of the friend
+	 * @param message
+	 *            the whole message
+	 * @param ends
+	 *            the end offset of each fragment. Each fragment starts at the
+	 *            end of the previous one.
+	 * @return the message ID of each fragment, 0 for each fragment that was not
+	 *         sent
+	 */
+	private native int[] tox_send_message_fragments(long messengerPointer, int friendnumber, byte[] message, int[] ends);
+
+	/**
+	 * Sends a message of any length to the specified friend. The message is
+	 * encoded once and split into fragments of at most
+	 * {@link #TOX_MAX_MESSAGE_LENGTH} bytes, which are sent as consecutive
+	 * messages. Fragments never split a character, and are cut after
+	 * whitespace where possible.
+	 *
+	 * @param friend
+	 *            the friend
+	 * @param message
+	 *            the message
+	 * @return the message IDs of the fragments, in order
+	 * @throws ToxException
+	 *             if the instance has been killed or the message was not sent
+	 * @see #sendMessageFragmented(int, byte[])
+	 */
+	public int[] sendMessageFragmented(F friend, String message) throws ToxException {
+		return sendMessageFragmented(friend.getFriendnumber(), getStringBytes(message));
+	}
+
+	/**
+	 * Sends a UTF-8 encoded message of any length to the specified friend,
+	 * split into fragments of at most {@link #TOX_MAX_MESSAGE_LENGTH} bytes.
+	 * The fragments are slices of the given array; it is not copied.
+	 * <p/>
+	 * Sending stops at the first fragment that could not be sent. The IDs of
+	 * that fragment and all following fragments are 0.
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 * @param payload
+	 *            the UTF-8 encoded message
+	 * @return the message IDs of the fragments, in order
+	 * @throws ToxException
+	 *             if the instance has been killed or the first fragment was not
+	 *             sent
+	 */
+	public int[] sendMessageFragmented(int friendnumber, byte[] payload) throws ToxException {
+		int[] ends = fragmentMessage(payload, TOX_MAX_MESSAGE_LENGTH);
+		int[] result;
+
+		this.lock.lock();
+
+		try {
+			checkPointer();
+
+			result = tox_send_message_fragments(this.messengerPointer, friendnumber, payload, ends);
+		} finally {
+			this.lock.unlock();
+		}
+
+		if (result == null || result.length == 0 || result[0] == 0) {
 			throw new ToxException(ToxError.TOX_SEND_FAILED);
 		}
 
@@ -570,19 +757,141 @@ public class JTox<F extends ToxFriend> {
 	}
 
 	/**
-	 * Native call to tox_send_action
+	 * Split a UTF-8 encoded message into fragments of at most
+	 * <code>maxLength</code> bytes. A fragment never ends inside a multi-byte
+	 * character. If the second half of a fragment contains whitespace, the
+	 * fragment ends after the last whitespace character.
+	 *
+	 * @param message
+	 *            the UTF-8 encoded message
+	 * @param maxLength
+	 *            maximum length of a fragment in bytes
+	 * @return the end offset of each fragment
+	 */
+	static int[] fragmentMessage(byte[] message, int maxLength) {
+		int[] ends = new int[message.length / maxLength + 1];
+		int count = 0;
+		int start = 0;
+
+		do {
+			int end = start + maxLength;
+
+			if (end >= message.length) {
+				end = message.length;
+			} else {
+				while (end > start && (message[end] & 0xC0) == 0x80) {
+					end--;
+				}
+
+				if (end == start) {
+					// Not valid UTF-8, cut anywhere
+					end = start + maxLength;
+				}
+
+				for (int i = end - 1; i >= start + maxLength / 2; i--) {
+					if (message[i] == ' ' || message[i] == '\n' || message[i] == '\t') {
+						end = i + 1;
+						break;
+					}
+				}
+			}
+
+			if (count == ends.length) {
+				ends = Arrays.copyOf(ends, count * 2);
+			}
+
+			ends[count++] = end;
+			start = end;
+		} while (start < message.length);
+
+		return Arrays.copyOf(ends, count);
+	}
+
+	/**
+	 * Native call to tox_send_message for several friends
+	 *
+	 * @param messengerPointer
+	 *            pointer to the internal messenger struct
+	 * @param friendnumbers
+	 *            the numbers of the friends
+	 * @param message
+	 *            the message
+	 * @param length
+	 *            length of the message in bytes
+	 * @return the message IDs, 0 for each friend the message could not be sent
+	 *         to
+	 */
+	private native int[] tox_send_message_to_many(long messengerPointer, int[] friendnumbers, byte[] message, int length);
+
+	/**
+	 * Sends the same message to several friends. The message is encoded once,
+	 * and all messages are sent in a single native call while holding the lock.
+	 * A failure to send to one friend does not stop the others.
+	 *
+	 * @param friendnumbers
+	 *            the numbers of the friends
+	 * @param payload
+	 *            the UTF-8 encoded message, see {@link #getStringBytes(String)}
+	 * @return the message IDs, in the order of <code>friendnumbers</code>. An
+	 *         ID of 0 means the message could not be sent to that friend.
+	 * @throws ToxException
+	 *             if the instance has been killed
+	 */
+	public int[] sendMessageToMany(int[] friendnumbers, byte[] payload) throws ToxException {
+		int[] result;
+
+		this.lock.lock();
+
+		try {
+			checkPointer();
+
+			result = tox_send_message_to_many(this.messengerPointer, friendnumbers, payload, payload.length);
+		} finally {
+			this.lock.unlock();
+		}
+
+		if (result == null) {
+			throw new ToxException(ToxError.TOX_UNKNOWN);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Sends the same message to several friends.
+	 *
+	 * @param friendnumbers
+	 *            the numbers of the friends
+	 * @param message
+	 *            the message
+	 * @return the message IDs, in the order of <code>friendnumbers</code>. An
+	 *         ID of 0 means the message could not be sent to that friend.
+	 * @throws ToxException
+	 *             if the instance has been killed
+	 * @see #sendMessageToMany(int[], byte[])
+	 */
+	public int[] sendMessageToMany(int[] friendnumbers, String message) throws ToxException {
+		return sendMessageToMany(friendnumbers, getStringBytes(message));
+	}
+
+	/**
+	 * Native call to tox_send_action, reading the action directly from a direct
+	 * buffer
 	 *
 	 * @param messengerPointer
 	 *            pointer to the internal messenger struct
 	 * @param friendnumber
 	 *            the number of the friend
 	 * @param action
-	 *            the action to send
+	 *            the direct buffer containing the action to send
+	 * @param offset
+	 *            the offset of the action in the buffer
 	 * @param length
 	 *            length of the action in bytes
-	 * @return false on success, true on failure
+	 * @return the message ID on success, 0 on failure
 	 */
-	private native boolean tox_send_action(long messengerPointer, int friendnumber, byte[] action, int length);
+	private native int tox_send_action_direct(long messengerPointer, int friendnumber, ByteBuffer action, int offset,
+			int length);
 
 	/**
 	 * Sends an IRC-like /me-action to a friend
@@ -595,20 +904,27 @@ public class JTox<F extends ToxFriend> {
 	 *             if the instance has been killed or the send failed
 	 */
 	public void sendAction(F friend, String action) throws ToxException {
-		byte[] actionArray = getStringBytes(action);
-		boolean error;
+		ByteBuffer encoded = Utf8Codec.encodeDirect(action);
+
+		// Too long for a single action, the core refuses it anyway
+		if (encoded == null) {
+			throw new ToxException(ToxError.TOX_UNKNOWN);
+		}
+
+		int result;
 
 		this.lock.lock();
 
 		try {
 			checkPointer();
 
-			error = tox_send_action(this.messengerPointer, friend.getFriendnumber(), actionArray, actionArray.length);
+			result = tox_send_action_direct(this.messengerPointer, friend.getFriendnumber(), encoded, encoded.position(),
+											encoded.remaining());
 		} finally {
 			this.lock.unlock();
 		}
 
-		if (error) {
+		if (result == 0) {
 			throw new ToxException(ToxError.TOX_UNKNOWN);
 		}
 	}
@@ -672,6 +988,40 @@ public class JTox<F extends ToxFriend> {
 		} finally {
 			this.lock.unlock();
 		}
+
+		for (ToxTask task : this.tasks) {
+			task.tick();
+		}
+	}
+
+	/**
+	 * @return the lock guarding all native calls of this instance. Helpers that
+	 *         need to record the result of a native call before any callback
+	 *         can observe it hold this lock around the call.
+	 */
+	ReentrantLock getLock() {
+		return this.lock;
+	}
+
+	/**
+	 * Register a task to be run after every call to {@link #doTox()}, on the
+	 * thread calling it.
+	 *
+	 * @param task
+	 *            the task to register
+	 */
+	public void registerTask(ToxTask task) {
+		this.tasks.add(task);
+	}
+
+	/**
+	 * Remove the specified task
+	 *
+	 * @param task
+	 *            the task to remove
+	 */
+	public void unregisterTask(ToxTask task) {
+		this.tasks.remove(task);
 	}
 
 	private native int tox_do_interval(long messengerPointer);
@@ -902,6 +1252,114 @@ public class JTox<F extends ToxFriend> {
 		}
 	}
 
+	/**
+	 * Mark a field of the specified friend as stale, so that it is fetched
+	 * from the core on the next call to {@link #refreshDirty()}. Fields that
+	 * are delivered by callbacks, or fetched with one of the refresh methods,
+	 * are marked as up to date again automatically.
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 * @param field
+	 *            the stale field
+	 */
+	public void markDirty(int friendnumber, FriendField field) {
+		this.dirtyTracker.mark(friendnumber, field.mask());
+	}
+
+	/**
+	 * Mark all fields of the specified friend as stale. If the friend is not
+	 * in the friend list yet, it is added on the next call to
+	 * {@link #refreshDirty()}.
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 */
+	public void markDirty(int friendnumber) {
+		this.dirtyTracker.mark(friendnumber, FriendField.ALL);
+	}
+
+	/**
+	 * @return the number of friends with stale fields
+	 */
+	public int getDirtyCount() {
+		return this.dirtyTracker.dirtyCount();
+	}
+
+	/**
+	 * Fetch only those friend fields from the core that have been marked as
+	 * stale, either by {@link #markDirty(int, FriendField)}, by adding a
+	 * friend, or by a friend coming online. Unlike {@link #refreshList()},
+	 * the number of native calls is proportional to the number of changes
+	 * instead of the number of friends.
+	 * <p/>
+	 * Friends that no longer exist in the core are skipped. If fetching a
+	 * field of a friend fails, the remaining fields of that friend are
+	 * skipped as well, and the friends after it are still refreshed.
+	 *
+	 * @return the number of fields that were fetched
+	 * @throws ToxException
+	 *             if the instance was killed
+	 */
+	public int refreshDirty() throws ToxException {
+		int refreshed = 0;
+
+		for (int i = this.dirtyTracker.nextDirty(0); i >= 0; i = this.dirtyTracker.nextDirty(i + 1)) {
+			int fields = this.dirtyTracker.take(i);
+
+			if (!toxFriendExists(i)) {
+				continue;
+			}
+
+			try {
+				refreshed += refreshFields(i, fields);
+			} catch (ToxException e) {
+				if (e.getError() == ToxError.TOX_KILLED_INSTANCE) {
+					throw e;
+				}
+			}
+		}
+
+		return refreshed;
+	}
+
+	private int refreshFields(int friendnumber, int fields) throws ToxException {
+		int refreshed = 0;
+		this.friendList.addFriendIfNotExists(friendnumber);
+
+		if ((fields & FriendField.ID.mask()) != 0) {
+			refreshClientId(friendnumber);
+			refreshed++;
+		}
+
+		if ((fields & FriendField.NAME.mask()) != 0) {
+			refreshFriendName(friendnumber);
+			refreshed++;
+		}
+
+		if ((fields & FriendField.STATUS_MESSAGE.mask()) != 0) {
+			refreshStatusMessage(friendnumber);
+			refreshed++;
+		}
+
+		if ((fields & FriendField.USER_STATUS.mask()) != 0) {
+			refreshUserStatus(friendnumber);
+			refreshed++;
+		}
+
+		if ((fields & FriendField.CONNECTION_STATUS.mask()) != 0) {
+			refreshFriendConnectionStatus(friendnumber);
+			refreshed++;
+		}
+
+		if ((fields & FriendField.TYPING.mask()) != 0) {
+			refreshTypingStatus(friendnumber);
+			refreshed++;
+		}
+
+		return refreshed;
+	}
+
 	/**
 	 * Native call to tox_get_friendlist
 	 *
@@ -974,7 +1432,12 @@ public class JTox<F extends ToxFriend> {
 			throw new ToxException(ToxError.TOX_UNKNOWN);
 		}
 
-		this.friendList.getByFriendNumber(friendnumber).setId(result);
+		F friend = this.friendList.getByFriendNumber(friendnumber);
+		friend.setId(result);
+
+		this.dirtyTracker.clear(friendnumber, FriendField.ID.mask());
+
+		this.handler.fireFriendChanged(friend, FriendField.ID);
 	}
 
 	/**
@@ -1011,11 +1474,15 @@ public class JTox<F extends ToxFriend> {
 		}
 
 		F friend = this.friendList.getByFriendNumber(friendnumber);
+		boolean online = result != 0;
+		boolean changed = friend.isOnline() != online;
+		friend.setOnline(online);
 
-		if (result == 0) {
-			friend.setOnline(false);
-		} else {
-			friend.setOnline(true);
+		this.dirtyTracker.clear(friendnumber, FriendField.CONNECTION_STATUS.mask());
+
+		// Coming online marks the other fields as stale, so only notify on changes
+		if (changed) {
+			this.handler.fireFriendChanged(friend, FriendField.CONNECTION_STATUS);
 		}
 	}
 
@@ -1087,7 +1554,12 @@ public class JTox<F extends ToxFriend> {
 			throw new ToxException(ToxError.TOX_UNKNOWN);
 		}
 
-		this.friendList.getByFriendNumber(friendnumber).setName(getByteString(name));
+		F friend = this.friendList.getByFriendNumber(friendnumber);
+		friend.setName(getByteString(name));
+
+		this.dirtyTracker.clear(friendnumber, FriendField.NAME.mask());
+
+		this.handler.fireFriendChanged(friend, FriendField.NAME);
 	}
 
 	/**
@@ -1127,7 +1599,12 @@ public class JTox<F extends ToxFriend> {
 			throw new ToxException(ToxError.TOX_UNKNOWN);
 		}
 
-		this.friendList.getByFriendNumber(friendnumber).setStatusMessage(getByteString(status));
+		F friend = this.friendList.getByFriendNumber(friendnumber);
+		friend.setStatusMessage(getByteString(status));
+
+		this.dirtyTracker.clear(friendnumber, FriendField.STATUS_MESSAGE.mask());
+
+		this.handler.fireFriendChanged(friend, FriendField.STATUS_MESSAGE);
 	}
 
 	/**
@@ -1162,7 +1639,12 @@ public class JTox<F extends ToxFriend> {
 			this.lock.unlock();
 		}
 
-		this.friendList.getByFriendNumber(friendnumber).setStatus(status);
+		F friend = this.friendList.getByFriendNumber(friendnumber);
+		friend.setStatus(status);
+
+		this.dirtyTracker.clear(friendnumber, FriendField.USER_STATUS.mask());
+
+		this.handler.fireFriendChanged(friend, FriendField.USER_STATUS);
 	}
 
 	/**
@@ -1190,7 +1672,12 @@ public class JTox<F extends ToxFriend> {
 			this.lock.unlock();
 		}
 
-		this.friendList.getByFriendNumber(friendnumber).setTyping(result);
+		F friend = this.friendList.getByFriendNumber(friendnumber);
+		friend.setTyping(result);
+
+		this.dirtyTracker.clear(friendnumber, FriendField.TYPING.mask());
+
+		this.handler.fireFriendChanged(friend, FriendField.TYPING);
 	}
 
 	/****** GROUP CHAT FUNCTIONS ******/
@@ -1340,7 +1827,7 @@ public class JTox<F extends ToxFriend> {
 	 */
 	public int newFileSender(int friendnumber, long filesize, String filename) throws ToxException {
 		int result;
-		byte[] _filename = filename.getBytes(Charset.forName("UTF-8"));
+		byte[] _filename = getStringBytes(filename);
 		this.lock.lock();
 
 		try {
@@ -1416,6 +1903,40 @@ public class JTox<F extends ToxFriend> {
 		return result;
 	}
 
+	private native int tox_file_send_data_direct(long messengerPointer, int friendnumber, int filenumber,
+			ByteBuffer data, int offset, int length);
+
+	/**
+	 * Send file data from a buffer. The data consists of the remaining bytes
+	 * of the buffer; the buffer's position is not changed. Direct buffers are
+	 * passed to the core without copying.
+	 * @param friendnumber
+	 * @param filenumber
+	 * @param data
+	 * @return 0 on success, -1 on failure, usually because the send queue is full
+	 * @throws ToxException
+	 */
+	public int fileSendData(int friendnumber, int filenumber, ByteBuffer data) throws ToxException {
+		if (!data.isDirect()) {
+			byte[] array = new byte[data.remaining()];
+			data.duplicate().get(array);
+			return fileSendData(friendnumber, filenumber, array);
+		}
+
+		int result;
+		this.lock.lock();
+
+		try {
+			checkPointer();
+			result = tox_file_send_data_direct(this.messengerPointer, friendnumber, filenumber, data, data.position(),
+											   data.remaining());
+		} finally {
+			this.lock.unlock();
+		}
+
+		return result;
+	}
+
 	private native int tox_file_data_size(long messengerPointer, int friendnumber);
 
 	/**
@@ -1530,7 +2051,7 @@ public class JTox<F extends ToxFriend> {
 	 * @return a byte array
 	 */
 	public static byte[] getStringBytes(String in) {
-		return (in).getBytes(Charset.forName("UTF-8"));
+		return Utf8Codec.encode(in);
 	}
 
 	/**
@@ -1541,7 +2062,7 @@ public class JTox<F extends ToxFriend> {
 	 * @return an UTF-8 String based on the given byte array
 	 */
 	public static String getByteString(byte[] in) {
-	    return new String(in, Charset.forName("UTF-8"));
+		return Utf8Codec.decode(in);
 	}
 
 	/**
@@ -1608,6 +2129,10 @@ public class JTox<F extends ToxFriend> {
 		try {
 			checkPointer();
 			ret = toxav_call(this.avPointer, user, csettings, ringingSeconds);
+
+			if (ret == 0) {
+				this.sendChannels.put(user, csettings.audio_channels);
+			}
 		} finally {
 			this.lock.unlock();
 		}
@@ -1667,6 +2192,10 @@ public class JTox<F extends ToxFriend> {
 		try {
 			checkPointer();
 			ret = toxav_answer(this.avPointer, callIndex, csettings);
+
+			if (ret == 0) {
+				recordSendChannels(callIndex, csettings);
+			}
 		} finally {
 			this.lock.unlock();
 		}
@@ -1762,6 +2291,10 @@ public class JTox<F extends ToxFriend> {
 		try {
 			checkPointer();
 			ret = toxav_change_settings(this.avPointer, callIndex, csettings);
+
+			if (ret == 0) {
+				recordSendChannels(callIndex, csettings);
+			}
 		} finally {
 			this.lock.unlock();
 		}
@@ -1769,6 +2302,30 @@ public class JTox<F extends ToxFriend> {
 		return ret;
 	}
 
+	/**
+	 * Remember the number of audio channels we send in the specified call.
+	 * Must be called with the lock held.
+	 */
+	private void recordSendChannels(int callIndex, ToxCodecSettings csettings) {
+		int peer = toxav_get_peer_id(this.avPointer, callIndex, 0);
+
+		if (peer >= 0) {
+			this.sendChannels.put(peer, csettings.audio_channels);
+		}
+	}
+
+	/**
+	 * Must be called with the lock held.
+	 *
+	 * @return the number of audio channels we send in the specified call, or
+	 *         0 if the call is unknown
+	 */
+	private int getSendChannels(int callIndex) {
+		int peer = toxav_get_peer_id(this.avPointer, callIndex, 0);
+		Integer channels = peer < 0 ? null : this.sendChannels.get(peer);
+		return channels == null ? 0 : channels;
+	}
+
 	/**
 	* Terminate transmission. Note that transmission will be terminated without informing remote peer.
 	*
@@ -1978,28 +2535,63 @@ public class JTox<F extends ToxFriend> {
 	* @param av Handler
     * @param call_index call index
 	* @param dest_max Max dest size
-	* @param frame The frame
-	* @param frame_size The frame size
+	* @param frame The frame (16 bit signed pcm)
+	* @param frame_size The frame size in samples per channel
+	* @param channels The number of channels the frame is encoded with
 	* @return byte array on success, else null
 	*/
-	private native byte[] toxav_prepare_audio_frame (long avPointer, int call_index, int dest_max, int[] frame, int frame_size);
+	private native byte[] toxav_prepare_audio_frame (long avPointer, int call_index, int dest_max, short[] frame, int frame_size,
+			int channels);
 
 	/**
 	 * Encode audio frame
 	 * @param callIndex
 	 * @param destMax
-	 * @param data
+	 * @param data samples in the range of 16 bit signed pcm
 	 * @param frameSize
 	 * @return The encoded audio frame
 	 * @throws ToxException
+	 * @deprecated the samples are 16 bit, and are narrowed to a short[] first.
+	 *             Use {@link #avPrepareAudioFrame(int, int, short[], int)}.
 	 */
+	@Deprecated
 	public byte[] avPrepareAudioFrame(int callIndex, int destMax, int[] data, int frameSize) throws ToxException {
+		short[] samples = new short[data.length];
+
+		for (int i = 0; i < data.length; i++) {
+			samples[i] = (short) data[i];
+		}
+
+		return avPrepareAudioFrame(callIndex, destMax, samples, frameSize);
+	}
+
+	/**
+	 * Encode audio frame
+	 * @param callIndex
+	 * @param destMax the maximum size of the encoded frame
+	 * @param data 16 bit signed pcm, interleaved if there is more than one channel
+	 * @param frameSize the number of samples per channel
+	 * @return The encoded audio frame, or null on failure or if the call is
+	 *         unknown
+	 * @throws ToxException
+	 */
+	public byte[] avPrepareAudioFrame(int callIndex, int destMax, short[] data, int frameSize) throws ToxException {
 		this.lock.lock();
 		byte[] ret;
 
 		try {
 			checkPointer();
-			ret = toxav_prepare_audio_frame(this.avPointer, callIndex, destMax, data, frameSize);
+			int channels = getSendChannels(callIndex);
+
+			if (channels <= 0) {
+				return null;
+			}
+
+			if ((long) frameSize * channels > data.length) {
+				throw new IllegalArgumentException("Array holds less than frameSize samples per channel");
+			}
+
+			ret = toxav_prepare_audio_frame(this.avPointer, callIndex, destMax, data, frameSize, channels);
 		} finally {
 			this.lock.unlock();
 		}
@@ -2007,6 +2599,59 @@ public class JTox<F extends ToxFriend> {
 		return ret;
 	}
 
+	private native int toxav_prepare_audio_frame_direct(long avPointer, int call_index, ShortBuffer frame,
+			int frame_offset, int frame_size, int channels, ByteBuffer dest, int dest_offset, int dest_max);
+
+	/**
+	 * Encode audio frame straight from a direct buffer, into a direct buffer.
+	 * The samples start at the position of the pcm buffer, whose position is
+	 * not changed. The encoded frame is written at the position of the
+	 * destination buffer, up to its limit, and its position is moved past the
+	 * frame.
+	 * @param callIndex
+	 * @param pcm direct buffer in native byte order holding 16 bit signed pcm,
+	 *            interleaved if there is more than one channel, such as a view
+	 *            of an {@link AudioFrame} or of an audio capture buffer
+	 * @param frameSize the number of samples per channel
+	 * @param dest direct buffer to write the encoded frame to
+	 * @return the size of the encoded frame, or a negative value on failure or
+	 *         if the call is unknown
+	 * @throws ToxException
+	 */
+	public int avPrepareAudioFrame(int callIndex, ShortBuffer pcm, int frameSize, ByteBuffer dest)
+	throws ToxException {
+		if (!pcm.isDirect() || pcm.order() != ByteOrder.nativeOrder() || !dest.isDirect()) {
+			throw new IllegalArgumentException("Buffers must be direct, and the samples in native byte order");
+		}
+
+		int ret;
+		this.lock.lock();
+
+		try {
+			checkPointer();
+			int channels = getSendChannels(callIndex);
+
+			if (channels <= 0) {
+				return -1;
+			}
+
+			if ((long) frameSize * channels > pcm.remaining()) {
+				throw new IllegalArgumentException("Buffer holds less than frameSize samples per channel");
+			}
+
+			ret = toxav_prepare_audio_frame_direct(this.avPointer, callIndex, pcm, pcm.position(), frameSize, channels,
+												   dest, dest.position(), dest.remaining());
+		} finally {
+			this.lock.unlock();
+		}
+
+		if (ret > 0) {
+			dest.position(dest.position() + ret);
+		}
+
+		return ret;
+	}
+
 	/**
 	* Get peer transmission type. It can either be audio or video.
 	*
@@ -0,0 +1,160 @@
+/* LongObjectMap.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * Hash map from primitive long keys to objects, using open addressing with
+ * linear probing. Avoids boxing the keys and allocating an entry per mapping.
+ * Not thread safe.
+ *
+ * @param <V>
+ *            the value type
+ */
+final class LongObjectMap<V> {
+
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size;
+
+	/**
+	 * Create a new, empty map
+	 */
+	LongObjectMap() {
+		this.keys = new long[16];
+		this.values = new Object[16];
+		this.mask = 15;
+	}
+
+	/**
+	 * @return the number of mappings in this map
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return the value mapped to the given key, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	V get(long key) {
+		for (int i = index(key);; i = (i + 1) & this.mask) {
+			if (this.values[i] == null) {
+				return null;
+			}
+
+			if (this.keys[i] == key) {
+				return (V) this.values[i];
+			}
+		}
+	}
+
+	/**
+	 * Map the given key to the given value, replacing any previous mapping
+	 *
+	 * @param value
+	 *            the value, must not be null
+	 */
+	void put(long key, V value) {
+		if ((this.size + 1) * 4 > this.values.length * 3) {
+			resize(this.values.length * 2);
+		}
+
+		int i = index(key);
+
+		while (this.values[i] != null) {
+			if (this.keys[i] == key) {
+				this.values[i] = value;
+				return;
+			}
+
+			i = (i + 1) & this.mask;
+		}
+
+		this.keys[i] = key;
+		this.values[i] = value;
+		this.size++;
+	}
+
+	/**
+	 * Remove the mapping for the given key
+	 *
+	 * @return the removed value, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(long key) {
+		int i = index(key);
+
+		while (this.values[i] != null && this.keys[i] != key) {
+			i = (i + 1) & this.mask;
+		}
+
+		V removed = (V) this.values[i];
+
+		if (removed == null) {
+			return null;
+		}
+
+		// Shift following entries of the cluster back, so no tombstone is
+		// needed
+		int hole = i;
+
+		for (int j = (i + 1) & this.mask; this.values[j] != null; j = (j + 1) & this.mask) {
+			int home = index(this.keys[j]);
+
+			if (((j - home) & this.mask) >= ((j - hole) & this.mask)) {
+				this.keys[hole] = this.keys[j];
+				this.values[hole] = this.values[j];
+				hole = j;
+			}
+		}
+
+		this.values[hole] = null;
+		this.size--;
+		return removed;
+	}
+
+	private int index(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & this.mask;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = this.keys;
+		Object[] oldValues = this.values;
+		this.keys = new long[capacity];
+		this.values = new Object[capacity];
+		this.mask = capacity - 1;
+
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int j = index(oldKeys[i]);
+
+				while (this.values[j] != null) {
+					j = (j + 1) & this.mask;
+				}
+
+				this.keys[j] = oldKeys[i];
+				this.values[j] = oldValues[i];
+			}
+		}
+	}
+}
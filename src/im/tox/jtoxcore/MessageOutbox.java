@@ -0,0 +1,338 @@
+/* MessageOutbox.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import im.tox.jtoxcore.callbacks.CallbackHandler;
+import im.tox.jtoxcore.callbacks.OnConnectionStatusCallback;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Queues outgoing messages per friend, and sends them as fast as the core and
+ * a per-friend rate limit allow.
+ * <p/>
+ * Messages that the core refuses, because its send queue is full or the friend
+ * is offline, stay at the head of the queue. Queues of online friends are
+ * retried with exponential backoff. Queues of offline friends are not retried
+ * until the friend comes online again, at which point they are flushed
+ * immediately. Queues of friends that are no longer in the friend list are
+ * dropped.
+ * <p/>
+ * The rate limit is a token bucket: every friend may send up to
+ * <code>burst</code> messages at once, and regains
+ * <code>messagesPerSecond</code> messages per second.
+ *
+ * @param <F>
+ *            Friend type of the JTox instance
+ */
+public class MessageOutbox<F extends ToxFriend> implements ToxTask, OnConnectionStatusCallback<F> {
+
+	private static final long MIN_BACKOFF_NANOS = 100L * 1000 * 1000;
+	private static final long MAX_BACKOFF_NANOS = 10L * 1000 * 1000 * 1000;
+
+	private final JTox<F> tox;
+	private final CallbackHandler<F> handler;
+	private final double messagesPerSecond;
+	private final int burst;
+	private final int capacity;
+
+	private final Map<Integer, Box> boxes = new HashMap<Integer, Box>();
+	private final Set<Box> pending = new LinkedHashSet<Box>();
+	private int queued;
+
+	/**
+	 * Create a new outbox, and register it with the given instance and
+	 * callback handler
+	 *
+	 * @param tox
+	 *            the instance to send messages with
+	 * @param handler
+	 *            the callback handler of the instance
+	 * @param messagesPerSecond
+	 *            the number of messages per second that may be sent to each
+	 *            friend
+	 * @param burst
+	 *            the number of messages that may be sent to a friend at once
+	 * @param capacity
+	 *            the maximum number of queued messages per friend
+	 */
+	public MessageOutbox(JTox<F> tox, CallbackHandler<F> handler, double messagesPerSecond, int burst, int capacity) {
+		this.tox = tox;
+		this.handler = handler;
+		this.messagesPerSecond = messagesPerSecond;
+		this.burst = burst;
+		this.capacity = capacity;
+		tox.registerTask(this);
+		handler.registerOnConnectionStatusCallback(this);
+	}
+
+	/**
+	 * Unregister this outbox from its instance and callback handler. Queued
+	 * messages are not sent anymore.
+	 */
+	public void close() {
+		this.tox.unregisterTask(this);
+		this.handler.unregisterOnConnectionStatusCallback(this);
+	}
+
+	/**
+	 * Queue a message for the specified friend. Messages longer than
+	 * {@link JTox#TOX_MAX_MESSAGE_LENGTH} are split like
+	 * {@link JTox#sendMessageFragmented(int, byte[])} does.
+	 *
+	 * @param friend
+	 *            the friend
+	 * @param message
+	 *            the message
+	 * @return true if the message was queued, false if the friend's queue is
+	 *         full, or the friend is not in the friend list
+	 * @throws IllegalArgumentException
+	 *             if the message is empty
+	 */
+	public boolean enqueue(F friend, String message) {
+		return enqueue(friend.getFriendnumber(), JTox.getStringBytes(message));
+	}
+
+	/**
+	 * Queue a UTF-8 encoded message for the specified friend.
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 * @param payload
+	 *            the UTF-8 encoded message
+	 * @return true if the message was queued, false if the friend's queue is
+	 *         full, or the friend is not in the friend list
+	 * @throws IllegalArgumentException
+	 *             if the payload is empty
+	 * @see #enqueue(ToxFriend, String)
+	 */
+	public synchronized boolean enqueue(int friendnumber, byte[] payload) {
+		if (payload.length == 0) {
+			throw new IllegalArgumentException("payload must not be empty");
+		}
+
+		F friend = this.tox.getFriendList().getByFriendNumber(friendnumber);
+
+		if (friend == null) {
+			return false;
+		}
+
+		int[] ends = JTox.fragmentMessage(payload, JTox.TOX_MAX_MESSAGE_LENGTH);
+		Box box = this.boxes.get(friendnumber);
+
+		if (box == null) {
+			box = new Box(friendnumber, this.burst);
+			box.offline = !friend.isOnline();
+			this.boxes.put(friendnumber, box);
+		}
+
+		if (box.queue.size() + ends.length > this.capacity) {
+			return false;
+		}
+
+		if (ends.length == 1) {
+			box.queue.add(payload);
+		} else {
+			int start = 0;
+
+			for (int end : ends) {
+				box.queue.add(Arrays.copyOfRange(payload, start, end));
+				start = end;
+			}
+		}
+
+		this.queued += ends.length;
+		this.pending.add(box);
+		return true;
+	}
+
+	/**
+	 * @param friendnumber
+	 *            the friend's number
+	 * @return the number of messages queued for the specified friend
+	 */
+	public synchronized int getQueueDepth(int friendnumber) {
+		Box box = this.boxes.get(friendnumber);
+		return box == null ? 0 : box.queue.size();
+	}
+
+	/**
+	 * @return the number of messages queued for all friends
+	 */
+	public synchronized int getQueuedCount() {
+		return this.queued;
+	}
+
+	/**
+	 * Drop all messages queued for the specified friend
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 */
+	public synchronized void clear(int friendnumber) {
+		Box box = this.boxes.remove(friendnumber);
+
+		if (box != null) {
+			this.queued -= box.queue.size();
+			this.pending.remove(box);
+		}
+	}
+
+	@Override
+	public void tick() {
+		Box[] boxes;
+
+		synchronized (this) {
+			boxes = this.pending.toArray(new Box[this.pending.size()]);
+		}
+
+		for (Box box : boxes) {
+			flush(box);
+		}
+	}
+
+	@Override
+	public void execute(F friend, boolean online) {
+		Box box;
+
+		synchronized (this) {
+			box = this.boxes.get(friend.getFriendnumber());
+
+			if (box == null) {
+				return;
+			}
+
+			box.offline = !online;
+			box.failures = 0;
+		}
+
+		if (online) {
+			flush(box);
+		}
+	}
+
+	/**
+	 * Send as many messages from the given box as the core and the rate limit
+	 * allow. The outbox is not locked while the core is sending.
+	 */
+	private void flush(Box box) {
+		while (true) {
+			byte[] payload;
+
+			synchronized (this) {
+				box.refill(System.nanoTime(), this.messagesPerSecond, this.burst);
+
+				if (box.queue.isEmpty()) {
+					this.pending.remove(box);
+					return;
+				}
+
+				if (box.offline) {
+					dropIfDeleted(box);
+					return;
+				}
+
+				if (box.tokens < 1 || (box.failures > 0 && System.nanoTime() - box.retryAt < 0)) {
+					return;
+				}
+
+				payload = box.queue.peek();
+			}
+
+			int id;
+
+			try {
+				id = this.tox.sendMessageBytes(box.friendnumber, payload);
+			} catch (ToxException e) {
+				id = 0;
+			}
+
+			synchronized (this) {
+				if (id == 0) {
+					refused(box);
+					return;
+				}
+
+				box.failures = 0;
+
+				if (box.queue.peek() == payload) {
+					box.queue.poll();
+					this.queued--;
+				}
+
+				box.tokens--;
+			}
+		}
+	}
+
+	/**
+	 * Handle a message at the head of the given box that the core refused.
+	 * Must be called with the outbox locked.
+	 */
+	private void refused(Box box) {
+		F friend = this.tox.getFriendList().getByFriendNumber(box.friendnumber);
+
+		if (friend == null) {
+			dropIfDeleted(box);
+		} else if (!friend.isOnline()) {
+			box.offline = true;
+		} else {
+			box.retryAt = System.nanoTime() + Math.min(MIN_BACKOFF_NANOS << Math.min(box.failures, 16), MAX_BACKOFF_NANOS);
+			box.failures++;
+		}
+	}
+
+	/**
+	 * Drop the given box if its friend is no longer in the friend list, as
+	 * nothing in it can be sent anymore. Must be called with the outbox locked.
+	 */
+	private void dropIfDeleted(Box box) {
+		if (this.boxes.get(box.friendnumber) == box
+				&& this.tox.getFriendList().getByFriendNumber(box.friendnumber) == null) {
+			clear(box.friendnumber);
+		}
+	}
+
+	private static final class Box {
+		final int friendnumber;
+		final ArrayDeque<byte[]> queue = new ArrayDeque<byte[]>();
+		double tokens;
+		long lastRefill = System.nanoTime();
+		boolean offline;
+		int failures;
+		long retryAt;
+
+		Box(int friendnumber, int burst) {
+			this.friendnumber = friendnumber;
+			this.tokens = burst;
+		}
+
+		void refill(long now, double messagesPerSecond, int burst) {
+			this.tokens = Math.min(burst, this.tokens + (now - this.lastRefill) * messagesPerSecond / 1e9);
+			this.lastRefill = now;
+		}
+	}
+}
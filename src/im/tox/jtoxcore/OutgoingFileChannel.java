@@ -0,0 +1,151 @@
+/* OutgoingFileChannel.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes the data of an outgoing transfer, created by
+ * {@link FileSendEngine#openChannel(int, long, String)}. Data written to the
+ * channel is buffered, and handed to the core by the engine like the data of
+ * any other transfer.
+ * <p/>
+ * In blocking mode, the default, writes wait while the buffer is full. In
+ * non-blocking mode, writes return the number of bytes that fit, which may be
+ * 0. Exactly the announced number of bytes must be written; closing the
+ * channel earlier cancels the transfer.
+ */
+public final class OutgoingFileChannel implements WritableByteChannel {
+
+	private final FileSendEngine<?> engine;
+	private final OutgoingFileTransfer transfer;
+	private volatile boolean blocking = true;
+	private volatile boolean open = true;
+
+	OutgoingFileChannel(FileSendEngine<?> engine, OutgoingFileTransfer transfer) {
+		this.engine = engine;
+		this.transfer = transfer;
+	}
+
+	/**
+	 * @return the transfer this channel writes to
+	 */
+	public OutgoingFileTransfer getTransfer() {
+		return this.transfer;
+	}
+
+	/**
+	 * @param blocking
+	 *            whether writes wait for space in the buffer
+	 */
+	public void configureBlocking(boolean blocking) {
+		this.blocking = blocking;
+	}
+
+	/**
+	 * @return true if writes wait for space in the buffer
+	 */
+	public boolean isBlocking() {
+		return this.blocking;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return write(src, this.blocking);
+	}
+
+	private int write(ByteBuffer src, boolean block) throws IOException {
+		if (!this.open) {
+			throw new ClosedChannelException();
+		}
+
+		TransferPipe pipe = this.transfer.pipe;
+
+		if (src.remaining() > this.transfer.getSize() - pipe.written()) {
+			throw new IOException("Data exceeds the announced size of " + this.transfer.getSize() + " bytes");
+		}
+
+		int written = pipe.write(src, block);
+
+		if (pipe.written() == this.transfer.getSize()) {
+			pipe.close();
+		}
+
+		return written;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	/**
+	 * Close the channel. If less than the announced size was written, the
+	 * transfer is cancelled.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!this.open) {
+			return;
+		}
+
+		this.open = false;
+		TransferPipe pipe = this.transfer.pipe;
+
+		if (pipe.written() < this.transfer.getSize()) {
+			try {
+				this.engine.cancel(this.transfer);
+			} catch (ToxException e) {
+				throw new IOException("Could not cancel the transfer: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return a stream writing to this channel. Its writes always block,
+	 *         regardless of the mode of the channel.
+	 */
+	public OutputStream getOutputStream() {
+		return new OutputStream() {
+			private final byte[] single = new byte[1];
+
+			@Override
+			public void write(int b) throws IOException {
+				this.single[0] = (byte) b;
+				write(this.single, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				OutgoingFileChannel.this.write(ByteBuffer.wrap(b, off, len), true);
+			}
+
+			@Override
+			public void close() throws IOException {
+				OutgoingFileChannel.this.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,194 @@
+/* OutgoingFileTransfer.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+/**
+ * A file we are sending, managed by a {@link FileSendEngine}
+ */
+public final class OutgoingFileTransfer extends FileTransfer {
+
+	/**
+	 * The channel the data is read from, or null if it is read from
+	 * {@link #pipe}
+	 */
+	final FileChannel channel;
+	final boolean closeChannel;
+
+	/**
+	 * Buffer filled by an {@link OutgoingFileChannel}, or null
+	 */
+	TransferPipe pipe;
+
+	/**
+	 * The broadcast whose mapping the data is sent from, or null
+	 */
+	FileBroadcast broadcast;
+
+	/**
+	 * File offset of the next read from the channel
+	 */
+	long readPosition;
+
+	/**
+	 * Data read from the channel, but not sent yet. Null while the transfer
+	 * does not hold a pooled buffer. For a broadcast, this is a view of the
+	 * shared mapping instead.
+	 */
+	ByteBuffer block;
+
+	/**
+	 * Set when the whole file has been read
+	 */
+	boolean eof;
+
+	/**
+	 * Set while the engine is sending chunks of this transfer
+	 */
+	boolean pumping;
+
+	/**
+	 * Bytes this transfer may still send in the current scheduling round
+	 */
+	long deficit;
+
+	/**
+	 * File offset the receiver asked to continue from, or -1
+	 */
+	long seekTo = -1;
+
+	/**
+	 * Bytes the core does not count as sent, because the receiver already had
+	 * them when it accepted the file
+	 */
+	long skipped;
+
+	/**
+	 * File offset up to which the data was fed into the digest
+	 */
+	long digestPosition;
+
+	/**
+	 * SHA-256 of the data before {@link #skipped}, as the receiver has it, or
+	 * null once checked
+	 */
+	byte[] resumeDigest;
+
+	/**
+	 * Compression level offered to the receiver, or 0 if the offer did not
+	 * announce compression
+	 */
+	int compressionLevel;
+
+	/**
+	 * Compresses the file into {@link #block} once the receiver asked for it,
+	 * otherwise null
+	 */
+	Deflater deflater;
+
+	/**
+	 * Uncompressed data read for the {@link #deflater}
+	 */
+	ByteBuffer input;
+
+	/**
+	 * Output of the {@link #deflater}, before it is copied to {@link #block}
+	 */
+	byte[] output;
+
+	private volatile FileTransferPriority priority = FileTransferPriority.NORMAL;
+	private volatile int weight = 1;
+
+	OutgoingFileTransfer(int friendnumber, int filenumber, String filename, long size, FileChannel channel,
+						 boolean closeChannel, FileTransferMetrics engineMetrics) {
+		super(friendnumber, filenumber, filename, size, FileTransferState.PENDING, engineMetrics);
+		this.channel = channel;
+		this.closeChannel = closeChannel;
+	}
+
+	@Override
+	public boolean isSending() {
+		return true;
+	}
+
+	/**
+	 * @return the broadcast this transfer is part of, or null
+	 */
+	public FileBroadcast getBroadcast() {
+		return this.broadcast;
+	}
+
+	/**
+	 * @return true if the file is sent compressed. This is only known once the
+	 *         receiver accepted the file.
+	 */
+	public boolean isCompressed() {
+		return this.deflater != null;
+	}
+
+	/**
+	 * @return the priority class of this transfer
+	 */
+	public FileTransferPriority getPriority() {
+		return this.priority;
+	}
+
+	/**
+	 * Move this transfer to another priority class. Takes effect on the next
+	 * tick of the engine.
+	 *
+	 * @param priority
+	 *            the new priority class
+	 */
+	public void setPriority(FileTransferPriority priority) {
+		if (priority == null) {
+			throw new IllegalArgumentException("priority must not be null");
+		}
+
+		this.priority = priority;
+	}
+
+	/**
+	 * @return the weight of this transfer within its priority class
+	 */
+	public int getWeight() {
+		return this.weight;
+	}
+
+	/**
+	 * Set the weight of this transfer within its priority class. A transfer
+	 * with weight 2 gets twice the bandwidth of a transfer with weight 1 of the
+	 * same class, as long as both can send. The default weight is 1.
+	 *
+	 * @param weight
+	 *            the new weight, at least 1
+	 */
+	public void setWeight(int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("weight must be at least 1");
+		}
+
+		this.weight = weight;
+	}
+}
@@ -0,0 +1,110 @@
+/* PooledBuffer.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted lease of a buffer from a {@link BufferPool}. A lease
+ * starts with one reference. Every {@link #retain()} adds one, every
+ * {@link #release()} removes one, and the buffer goes back to the pool when
+ * the last reference is released. The buffer must not be used after its
+ * holder released its reference.
+ */
+public final class PooledBuffer {
+
+	private final BufferPool pool;
+	private final ByteBuffer buffer;
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+		this.pool = pool;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Wrap a buffer that does not belong to any pool. Releasing the last
+	 * reference does nothing.
+	 *
+	 * @param buffer
+	 *            the buffer to wrap
+	 * @return the new lease
+	 */
+	public static PooledBuffer wrap(ByteBuffer buffer) {
+		return new PooledBuffer(null, buffer);
+	}
+
+	/**
+	 * @return the leased buffer. Its position and limit frame the data.
+	 *         Holders sharing the lease must not move them; use
+	 *         {@link ByteBuffer#duplicate()} to read at an own position.
+	 */
+	public ByteBuffer buffer() {
+		return this.buffer;
+	}
+
+	/**
+	 * Add a reference, to keep the buffer after the call that handed it out
+	 * returned
+	 *
+	 * @return this lease
+	 */
+	public PooledBuffer retain() {
+		if (this.references.getAndIncrement() <= 0) {
+			this.references.getAndDecrement();
+			throw new IllegalStateException("Buffer was already released");
+		}
+
+		return this;
+	}
+
+	/**
+	 * Remove a reference
+	 *
+	 * @return true if this was the last reference, and the buffer went back
+	 *         to its pool
+	 */
+	public boolean release() {
+		int left = this.references.decrementAndGet();
+
+		if (left < 0) {
+			throw new IllegalStateException("Buffer was already released");
+		}
+
+		if (left > 0) {
+			return false;
+		}
+
+		if (this.pool != null) {
+			this.pool.release(this.buffer);
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return true if more than one holder references the buffer
+	 */
+	public boolean isShared() {
+		return this.references.get() > 1;
+	}
+}
@@ -0,0 +1,71 @@
+/* RateLimiter.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * Token bucket limiting a byte rate. A limiter with a rate of 0 is
+ * unlimited. Not thread safe.
+ */
+final class RateLimiter {
+
+	private long bytesPerSecond;
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+
+	RateLimiter(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.tokens = bytesPerSecond;
+	}
+
+	long getRate() {
+		return this.bytesPerSecond;
+	}
+
+	void setRate(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.tokens = Math.min(this.tokens, bytesPerSecond);
+	}
+
+	/**
+	 * Add the tokens accumulated since the last refill. At most one second
+	 * worth of tokens is kept.
+	 */
+	void refill(long now) {
+		this.tokens = Math.min(this.bytesPerSecond, this.tokens + (now - this.lastRefill) * this.bytesPerSecond / 1e9);
+		this.lastRefill = now;
+	}
+
+	/**
+	 * @return true if the given number of bytes may be sent now
+	 */
+	boolean allows(int bytes) {
+		return this.bytesPerSecond == 0 || this.tokens >= bytes;
+	}
+
+	/**
+	 * Record that the given number of bytes were sent
+	 */
+	void consume(int bytes) {
+		if (this.bytesPerSecond != 0) {
+			this.tokens -= bytes;
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/* SnapshotFriendList.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link FriendList} implementation for applications that read friend state
+ * from many threads. The live friend objects are only modified by the tox
+ * thread. After every change, the list publishes a new immutable
+ * {@link FriendListSnapshot}, which readers obtain through {@link #snapshot()}
+ * without taking any lock.
+ * <p/>
+ * The {@link FriendList} query methods return the live friends, selected from
+ * the current snapshot. Threads other than the tox thread should read the
+ * {@link FriendSnapshot}s of a snapshot instead, because the live friends may
+ * be modified while they are being read.
+ * <p/>
+ * Writers are serialized on an internal lock. Readers never block.
+ *
+ * @param <F>
+ *            Friend type to use with this list
+ */
+public class SnapshotFriendList<F extends ToxFriend> implements FriendList<F>, FriendChangeListener<F> {
+
+	private final FriendFactory<F> factory;
+	private final Object writeLock = new Object();
+	private volatile FriendListSnapshot<F> current;
+
+	/**
+	 * Create a new, empty list
+	 *
+	 * @param factory
+	 *            the factory used to create new friends
+	 */
+	public SnapshotFriendList(FriendFactory<F> factory) {
+		this.factory = factory;
+		this.current = new FriendListSnapshot<F>();
+	}
+
+	/**
+	 * Get the most recently published snapshot of this list. This never
+	 * blocks.
+	 *
+	 * @return the current snapshot
+	 */
+	public FriendListSnapshot<F> snapshot() {
+		return this.current;
+	}
+
+	@Override
+	public F getByFriendNumber(int friendnumber) {
+		return unwrap(this.current.get(friendnumber));
+	}
+
+	@Override
+	public F getById(String id) {
+		return unwrap(this.current.getById(id));
+	}
+
+	@Override
+	public List<F> getByName(String name, boolean ignorecase) {
+		return unwrap(this.current.getByName(name, ignorecase));
+	}
+
+	@Override
+	public List<F> searchFriend(String partial) {
+		return unwrap(this.current.searchFriend(partial));
+	}
+
+	@Override
+	public List<F> getByStatus(ToxUserStatus status) {
+		return unwrap(this.current.getByStatus(status));
+	}
+
+	@Override
+	public List<F> getOnlineFriends() {
+		return unwrap(this.current.getOnlineFriends());
+	}
+
+	@Override
+	public List<F> getOfflineFriends() {
+		return unwrap(this.current.getOfflineFriends());
+	}
+
+	@Override
+	public List<F> all() {
+		return unwrap(this.current.all());
+	}
+
+	@Override
+	public F addFriend(int friendnumber) throws FriendExistsException {
+		synchronized (this.writeLock) {
+			if (this.current.get(friendnumber) != null) {
+				throw new FriendExistsException(friendnumber);
+			}
+
+			return insert(friendnumber);
+		}
+	}
+
+	@Override
+	public F addFriendIfNotExists(int friendnumber) {
+		synchronized (this.writeLock) {
+			FriendSnapshot<F> existing = this.current.get(friendnumber);
+
+			if (existing != null) {
+				return existing.getFriend();
+			}
+
+			return insert(friendnumber);
+		}
+	}
+
+	@Override
+	public void removeFriend(int friendnumber) {
+		synchronized (this.writeLock) {
+			if (this.current.get(friendnumber) != null) {
+				this.current = this.current.with(friendnumber, null);
+			}
+		}
+	}
+
+	@Override
+	public void nameChanged(F friend) {
+		publish(friend);
+	}
+
+	@Override
+	public void statusChanged(F friend) {
+		publish(friend);
+	}
+
+	@Override
+	public void connectionStatusChanged(F friend) {
+		publish(friend);
+	}
+
+	@Override
+	public void idChanged(F friend) {
+		publish(friend);
+	}
+
+	@Override
+	public void statusMessageChanged(F friend) {
+		publish(friend);
+	}
+
+	@Override
+	public void typingChanged(F friend) {
+		publish(friend);
+	}
+
+	/**
+	 * Publish the current state of the specified friend in a new snapshot. Call
+	 * this after modifying a friend manually.
+	 *
+	 * @param friend
+	 *            the friend that was modified
+	 */
+	public void publish(F friend) {
+		synchronized (this.writeLock) {
+			int friendnumber = friend.getFriendnumber();
+			FriendSnapshot<F> existing = this.current.get(friendnumber);
+
+			if (existing != null && existing.getFriend() == friend) {
+				this.current = this.current.with(friendnumber, new FriendSnapshot<F>(friend));
+			}
+		}
+	}
+
+	private F insert(int friendnumber) {
+		F friend = this.factory.createFriend(friendnumber);
+		this.current = this.current.with(friendnumber, new FriendSnapshot<F>(friend));
+		return friend;
+	}
+
+	private F unwrap(FriendSnapshot<F> snapshot) {
+		return snapshot == null ? null : snapshot.getFriend();
+	}
+
+	private List<F> unwrap(List<FriendSnapshot<F>> snapshots) {
+		List<F> result = new ArrayList<F>(snapshots.size());
+
+		for (FriendSnapshot<F> snapshot : snapshots) {
+			result.add(snapshot.getFriend());
+		}
+
+		return result;
+	}
+}
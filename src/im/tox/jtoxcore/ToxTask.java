@@ -0,0 +1,36 @@
+/* ToxTask.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+/**
+ * Periodic work that has to run on the tox thread. Register tasks with
+ * {@link JTox#registerTask(ToxTask)}; they are run after every call to
+ * {@link JTox#doTox()}.
+ * <p/>
+ * Tasks must not block, and must handle their own errors.
+ */
+public interface ToxTask {
+
+	/**
+	 * Do the work that is due now
+	 */
+	void tick();
+}
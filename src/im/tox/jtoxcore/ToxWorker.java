@@ -29,6 +29,9 @@ package im.tox.jtoxcore;
  * When the instance is killed, a call to {@link JTox#doTox()} will result in an
  * exception. This exception will be caught, and the run method will terminate,
  * thus terminating the Thread this Worker is running in.
+ * <p/>
+ * Optionally, the worker also calls {@link JTox#refreshDirty()} at a fixed
+ * interval, to fetch friend fields that have been marked as stale.
  *
  * @author sonOfRa
  */
@@ -36,6 +39,7 @@ public class ToxWorker implements Runnable {
 
 	private JTox<?> instance;
 	private int sleeptime;
+	private long refreshInterval;
 
 	/**
 	 * Creates a new Tox worker runnable with the default frequency of 20Hz
@@ -63,8 +67,27 @@ public class ToxWorker implements Runnable {
 		this.sleeptime = 1000 / frequency >= 20 ? frequency : 20;
 	}
 
+	/**
+	 * Creates a new Tox worker runnable with the given frequency, which also
+	 * refreshes stale friend fields at the given interval.
+	 *
+	 * @param instance
+	 *            the JTox instance to work on
+	 * @param frequency
+	 *            the frequency (in Hz)
+	 * @param refreshInterval
+	 *            the interval between calls to {@link JTox#refreshDirty()} (in
+	 *            milliseconds), or 0 to disable
+	 */
+	public ToxWorker(JTox<?> instance, int frequency, long refreshInterval) {
+		this(instance, frequency);
+		this.refreshInterval = refreshInterval;
+	}
+
 	@Override
 	public void run() {
+		long lastRefresh = System.currentTimeMillis();
+
 		while (true) {
 			try {
 				this.instance.doTox();
@@ -72,6 +95,16 @@ public class ToxWorker implements Runnable {
 				return;
 			}
 
+			if (this.refreshInterval > 0 && System.currentTimeMillis() - lastRefresh >= this.refreshInterval) {
+				lastRefresh = System.currentTimeMillis();
+
+				try {
+					this.instance.refreshDirty();
+				} catch (ToxException e) {
+					// The next doTox call ends the loop if the instance was killed
+				}
+			}
+
 			try {
 				Thread.sleep(this.sleeptime);
 			} catch (InterruptedException e) {
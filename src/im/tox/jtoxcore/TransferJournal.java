@@ -0,0 +1,205 @@
+/* TransferJournal.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the progress of a file we are receiving.
+ * <p/>
+ * The journal starts with a header identifying the transfer by the id of the
+ * sending friend, the filename and the file size. After the header, one record is appended
+ * per checkpoint: the offset up to which the target file was forced to disk,
+ * and the CRC32 of the data between the previous checkpoint and that offset.
+ * A record is only written after the data it covers is on disk, so a torn
+ * last record is simply ignored.
+ */
+final class TransferJournal {
+
+	private static final int MAGIC = 0x4A544A32;
+	private static final int RECORD_SIZE = 12;
+
+	/**
+	 * Number of records checked against the target file before resuming
+	 */
+	private static final int VERIFY_RECORDS = 4;
+
+	private final File file;
+	private final RandomAccessFile journal;
+	private final FileChannel channel;
+	private final long headerSize;
+	private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+	private long end;
+
+	private TransferJournal(File file, RandomAccessFile journal, long headerSize) throws IOException {
+		this.file = file;
+		this.journal = journal;
+		this.channel = journal.getChannel();
+		this.headerSize = headerSize;
+		this.end = this.channel.size();
+	}
+
+	/**
+	 * Open the journal at the given location. An existing journal of a
+	 * different transfer is discarded.
+	 *
+	 * @param file
+	 *            the journal file
+	 * @param friendId
+	 *            the id of the sending friend
+	 * @param filename
+	 *            the name of the file, as offered by the friend
+	 * @param size
+	 *            the size of the file being received
+	 */
+	static TransferJournal open(File file, String friendId, String filename, long size) throws IOException {
+		byte[] id = Utf8Codec.encode(friendId == null ? "" : friendId);
+		byte[] name = Utf8Codec.encode(filename == null ? "" : filename);
+		ByteBuffer header = ByteBuffer.allocate(16 + id.length + name.length);
+		header.putInt(MAGIC).putLong(size).putShort((short) id.length).put(id).putShort((short) name.length).put(name);
+		RandomAccessFile journal = new RandomAccessFile(file, "rw");
+
+		try {
+			byte[] existing = new byte[header.capacity()];
+
+			if (journal.length() < existing.length || journal.read(existing) != existing.length
+					|| !Arrays.equals(existing, header.array())) {
+				journal.setLength(0);
+				journal.seek(0);
+				journal.write(header.array());
+				journal.getChannel().force(false);
+			}
+
+			return new TransferJournal(file, journal, header.capacity());
+		} catch (IOException e) {
+			journal.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Check the last records of the journal against the target file, and
+	 * drop every record from the first one that does not match.
+	 *
+	 * @param data
+	 *            the target file
+	 * @return the offset up to which the target file holds verified data
+	 */
+	long verify(FileChannel data) throws IOException {
+		int records = (int) ((this.end - this.headerSize) / RECORD_SIZE);
+		int kept = records;
+
+		for (int i = records - 1; i >= 0 && records - i <= VERIFY_RECORDS; i--) {
+			long start = i == 0 ? 0 : readOffset(i - 1);
+			long offset = readOffset(i);
+
+			if (offset <= start || offset > data.size() || checksum(data, start, offset) != this.record.getInt(8)) {
+				kept = i;
+			}
+		}
+
+		this.end = this.headerSize + (long) kept * RECORD_SIZE;
+		this.channel.truncate(this.end);
+		return kept == 0 ? 0 : readOffset(kept - 1);
+	}
+
+	/**
+	 * Append a checkpoint. The data up to the offset must already be on disk.
+	 *
+	 * @param offset
+	 *            the end of the checkpointed data
+	 * @param crc
+	 *            the CRC32 of the data since the previous checkpoint
+	 */
+	void append(long offset, int crc) throws IOException {
+		this.record.clear();
+		this.record.putLong(offset).putInt(crc).flip();
+
+		while (this.record.hasRemaining()) {
+			this.end += this.channel.write(this.record, this.end);
+		}
+	}
+
+	void close() {
+		try {
+			this.journal.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+	}
+
+	/**
+	 * Close and remove the journal
+	 */
+	void delete() {
+		close();
+		this.file.delete();
+	}
+
+	/**
+	 * Read the record at the given index into {@link #record}
+	 *
+	 * @return the offset of the record
+	 */
+	private long readOffset(int index) throws IOException {
+		this.record.clear();
+		long position = this.headerSize + (long) index * RECORD_SIZE;
+
+		while (this.record.hasRemaining()) {
+			if (this.channel.read(this.record, position + this.record.position()) < 0) {
+				throw new IOException("Truncated journal");
+			}
+		}
+
+		return this.record.getLong(0);
+	}
+
+	private static int checksum(FileChannel data, long start, long end) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(64 * 1024, end - start));
+		long position = start;
+
+		while (position < end) {
+			buffer.clear();
+
+			if (end - position < buffer.capacity()) {
+				buffer.limit((int) (end - position));
+			}
+
+			int read = data.read(buffer, position);
+
+			if (read < 0) {
+				throw new IOException("Target file shorter than journal");
+			}
+
+			crc.update(buffer.array(), 0, read);
+			position += read;
+		}
+
+		return (int) crc.getValue();
+	}
+}
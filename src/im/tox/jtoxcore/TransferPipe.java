@@ -0,0 +1,214 @@
+/* TransferPipe.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded ring buffer between a thread producing the data of a file transfer
+ * and a thread consuming it. Data is addressed by its offset in the file.
+ * <p/>
+ * The producer appends at the end. The consumer reads at any offset that is
+ * still held by the ring, so a sender can go back to where a receiver asked to
+ * resume. Appending only overwrites data that was read, and is not among the
+ * last retained bytes read.
+ */
+final class TransferPipe {
+
+	private final byte[] ring;
+	private final int retain;
+	private long written;
+	private long consumed;
+	private boolean closed;
+	private String abortReason;
+
+	/**
+	 * @param capacity
+	 *            the size of the ring
+	 * @param retain
+	 *            the number of bytes before the furthest read that are kept
+	 *            for reading again. Must be less than the capacity.
+	 */
+	TransferPipe(int capacity, int retain) {
+		this.ring = new byte[capacity];
+		this.retain = retain;
+	}
+
+	/**
+	 * Append data to the pipe
+	 *
+	 * @param src
+	 *            the data to append
+	 * @param block
+	 *            whether to wait until all data fits
+	 * @return the number of bytes appended. Only less than the remaining data
+	 *         of the buffer if not blocking.
+	 * @throws IOException
+	 *             if the pipe was closed or aborted, or the thread was
+	 *             interrupted while waiting
+	 */
+	synchronized int write(ByteBuffer src, boolean block) throws IOException {
+		int total = 0;
+
+		while (src.hasRemaining()) {
+			checkOpen();
+
+			if (this.closed) {
+				throw new IOException("Pipe closed");
+			}
+
+			long kept = Math.max(0, this.consumed - this.retain);
+			int space = (int) (this.ring.length - (this.written - kept));
+
+			if (space == 0) {
+				if (!block) {
+					break;
+				}
+
+				await();
+				continue;
+			}
+
+			int index = (int) (this.written % this.ring.length);
+			int length = Math.min(Math.min(space, src.remaining()), this.ring.length - index);
+			src.get(this.ring, index, length);
+			this.written += length;
+			total += length;
+			notifyAll();
+		}
+
+		return total;
+	}
+
+	/**
+	 * Read data from the given file offset
+	 *
+	 * @param dst
+	 *            the buffer to read into
+	 * @param position
+	 *            the file offset to read at
+	 * @param block
+	 *            whether to wait until data is available
+	 * @return the number of bytes read, 0 if no data is available and not
+	 *         blocking, or -1 if the pipe was closed and everything was read
+	 * @throws IOException
+	 *             if the data at the offset was overwritten already, the pipe
+	 *             was aborted, or the thread was interrupted while waiting
+	 */
+	synchronized int read(ByteBuffer dst, long position, boolean block) throws IOException {
+		if (position < this.written - this.ring.length) {
+			throw new IOException("Data at " + position + " is not buffered anymore");
+		}
+
+		while (position >= this.written) {
+			checkOpen();
+
+			if (this.closed) {
+				return -1;
+			}
+
+			if (!block) {
+				return 0;
+			}
+
+			await();
+		}
+
+		checkOpen();
+		int total = 0;
+
+		while (dst.hasRemaining() && position + total < this.written) {
+			int index = (int) ((position + total) % this.ring.length);
+			int length = (int) Math.min(Math.min(dst.remaining(), this.written - position - total),
+										this.ring.length - index);
+			dst.put(this.ring, index, length);
+			total += length;
+		}
+
+		if (position + total > this.consumed) {
+			this.consumed = position + total;
+			notifyAll();
+		}
+
+		return total;
+	}
+
+	/**
+	 * Read the data following everything read so far
+	 */
+	synchronized int read(ByteBuffer dst, boolean block) throws IOException {
+		return read(dst, this.consumed, block);
+	}
+
+	/**
+	 * @return the number of bytes written but not read yet
+	 */
+	synchronized long buffered() {
+		return this.written - this.consumed;
+	}
+
+	/**
+	 * @return the number of bytes written so far
+	 */
+	synchronized long written() {
+		return this.written;
+	}
+
+	/**
+	 * Mark the end of the data. Readers get the data still buffered, and then
+	 * the end of stream.
+	 */
+	synchronized void close() {
+		this.closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Fail all current and future reads and writes
+	 *
+	 * @param reason
+	 *            the message of the exceptions thrown
+	 */
+	synchronized void abort(String reason) {
+		if (this.abortReason == null) {
+			this.abortReason = reason;
+		}
+
+		notifyAll();
+	}
+
+	private void checkOpen() throws IOException {
+		if (this.abortReason != null) {
+			throw new IOException(this.abortReason);
+		}
+	}
+
+	private void await() throws InterruptedIOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/* TypingManager.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Sends typing notifications at the rate the typing state changes, instead of
+ * the rate of keystrokes.
+ * <p/>
+ * UIs call {@link #keyPressed(int)} on every keystroke and
+ * {@link #stopTyping(int)} when a message is sent or the input is cleared.
+ * These calls only record the wanted state. On every tick on the tox thread,
+ * friends whose wanted state differs from the state last sent are notified
+ * with {@link JTox#sendIsTyping(int, boolean)}. Typing expires after the idle
+ * timeout without keystrokes.
+ */
+public class TypingManager implements ToxTask {
+
+	private final JTox<?> tox;
+	private final long idleTimeoutNanos;
+
+	private final BitSet wanted = new BitSet();
+	private final BitSet sent = new BitSet();
+	private final BitSet active = new BitSet();
+	private long[] lastKeyPress = new long[16];
+
+	/**
+	 * Create a new typing manager, and register it with the given instance
+	 *
+	 * @param tox
+	 *            the instance to send typing notifications with
+	 * @param idleTimeoutMillis
+	 *            time without keystrokes after which typing stops, in
+	 *            milliseconds
+	 */
+	public TypingManager(JTox<?> tox, long idleTimeoutMillis) {
+		this.tox = tox;
+		this.idleTimeoutNanos = idleTimeoutMillis * 1000 * 1000;
+		tox.registerTask(this);
+	}
+
+	/**
+	 * Unregister this manager from its instance
+	 */
+	public void close() {
+		this.tox.unregisterTask(this);
+	}
+
+	/**
+	 * Record a keystroke in the conversation with the specified friend
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 */
+	public synchronized void keyPressed(int friendnumber) {
+		if (friendnumber >= this.lastKeyPress.length) {
+			this.lastKeyPress = Arrays.copyOf(this.lastKeyPress, Math.max(friendnumber + 1, this.lastKeyPress.length * 2));
+		}
+
+		this.lastKeyPress[friendnumber] = System.nanoTime();
+		this.wanted.set(friendnumber);
+		this.active.set(friendnumber);
+	}
+
+	/**
+	 * Stop typing in the conversation with the specified friend, for example
+	 * because the message was sent
+	 *
+	 * @param friendnumber
+	 *            the friend's number
+	 */
+	public synchronized void stopTyping(int friendnumber) {
+		this.wanted.clear(friendnumber);
+
+		if (this.sent.get(friendnumber)) {
+			this.active.set(friendnumber);
+		}
+	}
+
+	/**
+	 * @param friendnumber
+	 *            the friend's number
+	 * @return whether the friend was last told that we are typing
+	 */
+	public synchronized boolean isTyping(int friendnumber) {
+		return this.sent.get(friendnumber);
+	}
+
+	@Override
+	public void tick() {
+		int[] transitions;
+		int count = 0;
+
+		synchronized (this) {
+			if (this.active.isEmpty()) {
+				return;
+			}
+
+			long now = System.nanoTime();
+			transitions = new int[this.active.cardinality()];
+
+			for (int i = this.active.nextSetBit(0); i >= 0; i = this.active.nextSetBit(i + 1)) {
+				if (this.wanted.get(i) && now - this.lastKeyPress[i] >= this.idleTimeoutNanos) {
+					this.wanted.clear(i);
+				}
+
+				boolean typing = this.wanted.get(i);
+
+				if (typing != this.sent.get(i)) {
+					transitions[count++] = typing ? i : ~i;
+				} else if (!typing) {
+					// Friends that are typing stay active until they expire
+					this.active.clear(i);
+				}
+			}
+		}
+
+		for (int j = 0; j < count; j++) {
+			int friendnumber = transitions[j];
+			boolean typing = friendnumber >= 0;
+
+			if (!typing) {
+				friendnumber = ~friendnumber;
+			}
+
+			try {
+				this.tox.sendIsTyping(friendnumber, typing);
+			} catch (ToxException e) {
+				// Friends stay active, and are retried on the next tick
+				if (this.tox.getFriendList().getByFriendNumber(friendnumber) == null) {
+					forget(friendnumber);
+				}
+
+				continue;
+			}
+
+			synchronized (this) {
+				this.sent.set(friendnumber, typing);
+
+				if (!this.wanted.get(friendnumber) && !typing) {
+					this.active.clear(friendnumber);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop all state of a friend that does not exist anymore
+	 */
+	private synchronized void forget(int friendnumber) {
+		this.wanted.clear(friendnumber);
+		this.sent.clear(friendnumber);
+		this.active.clear(friendnumber);
+	}
+}
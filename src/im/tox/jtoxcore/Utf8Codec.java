@@ -0,0 +1,144 @@
+/* Utf8Codec.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * UTF-8 encoding and decoding with one reusable encoder, decoder and set of
+ * buffers per thread. {@link String#getBytes(Charset)} and
+ * {@link String#String(byte[], Charset)} create a new encoder or decoder on
+ * every call on older runtimes, which is a noticeable share of the garbage a
+ * busy instance produces.
+ * <p/>
+ * Malformed input is replaced, like the String methods do.
+ */
+final class Utf8Codec {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Strings longer than this are converted without the cached buffers, so a
+	 * single large string does not pin a large buffer to the thread forever.
+	 */
+	private static final int MAX_CACHED_LENGTH = 16 * 1024;
+
+	private static final ThreadLocal<Utf8Codec> CODECS = new ThreadLocal<Utf8Codec>() {
+		@Override
+		protected Utf8Codec initialValue() {
+			return new Utf8Codec();
+		}
+	};
+
+	private final CharsetEncoder encoder;
+	private final CharsetDecoder decoder;
+	private final ByteBuffer direct;
+	private ByteBuffer bytes;
+	private CharBuffer chars;
+
+	private Utf8Codec() {
+		this.encoder = UTF8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+					   .onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.decoder = UTF8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					   .onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.direct = ByteBuffer.allocateDirect(JTox.TOX_MAX_MESSAGE_LENGTH);
+		this.bytes = ByteBuffer.allocate(256);
+		this.chars = CharBuffer.allocate(256);
+	}
+
+	/**
+	 * Encode the given String
+	 *
+	 * @return a new array containing the UTF-8 encoded String
+	 */
+	static byte[] encode(String in) {
+		if (in.length() > MAX_CACHED_LENGTH) {
+			return in.getBytes(UTF8);
+		}
+
+		Utf8Codec codec = CODECS.get();
+		int maxBytes = (int) (in.length() * codec.encoder.maxBytesPerChar());
+
+		if (codec.bytes.capacity() < maxBytes) {
+			codec.bytes = ByteBuffer.allocate(maxBytes);
+		}
+
+		ByteBuffer out = codec.bytes;
+		out.clear();
+		codec.encoder.reset();
+		codec.encoder.encode(CharBuffer.wrap(in), out, true);
+		codec.encoder.flush(out);
+		return Arrays.copyOf(out.array(), out.position());
+	}
+
+	/**
+	 * Encode the given String into the direct buffer of the calling thread.
+	 * The buffer is only valid until the next call on the same thread.
+	 *
+	 * @return the buffer, positioned at the start of the encoded String, or
+	 *         null if the encoded String is longer than
+	 *         {@link JTox#TOX_MAX_MESSAGE_LENGTH}
+	 */
+	static ByteBuffer encodeDirect(String in) {
+		Utf8Codec codec = CODECS.get();
+		ByteBuffer out = codec.direct;
+		out.clear();
+		codec.encoder.reset();
+		CoderResult result = codec.encoder.encode(CharBuffer.wrap(in), out, true);
+
+		if (result.isOverflow() || codec.encoder.flush(out).isOverflow()) {
+			return null;
+		}
+
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Decode the given UTF-8 encoded bytes
+	 */
+	static String decode(byte[] in) {
+		if (in.length > MAX_CACHED_LENGTH) {
+			return new String(in, UTF8);
+		}
+
+		Utf8Codec codec = CODECS.get();
+
+		// UTF-8 never decodes to more chars than bytes
+		if (codec.chars.capacity() < in.length) {
+			codec.chars = CharBuffer.allocate(in.length);
+		}
+
+		CharBuffer out = codec.chars;
+		out.clear();
+		codec.decoder.reset();
+		codec.decoder.decode(ByteBuffer.wrap(in), out, true);
+		codec.decoder.flush(out);
+		return new String(out.array(), 0, out.position());
+	}
+}
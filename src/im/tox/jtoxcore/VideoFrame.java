@@ -0,0 +1,149 @@
+/* VideoFrame.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A decoded video frame in the Android YV12 layout, held in a pooled direct
+ * buffer: the Y plane of {@link #getHeight()} rows of {@link #getStride()}
+ * bytes, followed by the V and the U plane of half the height, with rows of
+ * {@link #getChromaStride()} bytes.
+ * <p/>
+ * Android defines the chroma plane size as
+ * <code>chromaStride * height / 2</code>, and only allows even heights. For
+ * odd heights, the chroma planes here have <code>(height + 1) / 2</code> rows
+ * instead, so that they still cover the last row of the Y plane. For even
+ * heights both are the same.
+ * <p/>
+ * The frame is only valid until the callback that got it returns; call
+ * {@link #retain()} to keep it, and {@link #release()} once done with it.
+ */
+public final class VideoFrame {
+
+	private final PooledBuffer lease;
+	private final int width;
+	private final int height;
+	private final int stride;
+	private final int chromaStride;
+
+	/**
+	 * Create a frame held in the given lease
+	 *
+	 * @param lease
+	 *            the lease holding the frame data. Its reference is owned by
+	 *            the frame.
+	 * @param width
+	 *            the width in pixels
+	 * @param height
+	 *            the height in pixels
+	 * @param stride
+	 *            the length of a row of the Y plane in bytes
+	 * @param chromaStride
+	 *            the length of a row of the V and U plane in bytes
+	 */
+	public VideoFrame(PooledBuffer lease, int width, int height, int stride, int chromaStride) {
+		this.lease = lease;
+		this.width = width;
+		this.height = height;
+		this.stride = stride;
+		this.chromaStride = chromaStride;
+	}
+
+	/**
+	 * @return the frame data, between the position and the limit of the
+	 *         buffer. Holders sharing the frame must not move them; use
+	 *         {@link ByteBuffer#duplicate()} to read at an own position.
+	 */
+	public ByteBuffer buffer() {
+		return this.lease.buffer();
+	}
+
+	/**
+	 * @return the width of the frame in pixels
+	 */
+	public int getWidth() {
+		return this.width;
+	}
+
+	/**
+	 * @return the height of the frame in pixels
+	 */
+	public int getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * @return the length of a row of the Y plane in bytes
+	 */
+	public int getStride() {
+		return this.stride;
+	}
+
+	/**
+	 * @return the length of a row of the V and U plane in bytes
+	 */
+	public int getChromaStride() {
+		return this.chromaStride;
+	}
+
+	/**
+	 * @return the offset of the V plane from the start of the data
+	 */
+	public int getVOffset() {
+		return this.stride * this.height;
+	}
+
+	/**
+	 * @return the offset of the U plane from the start of the data
+	 */
+	public int getUOffset() {
+		return getVOffset() + this.chromaStride * ((this.height + 1) / 2);
+	}
+
+	/**
+	 * @return the size of the frame data in bytes
+	 */
+	public int getSize() {
+		return getUOffset() + this.chromaStride * ((this.height + 1) / 2);
+	}
+
+	/**
+	 * Add a reference, to keep the frame after the callback that got it
+	 * returned
+	 *
+	 * @return this frame
+	 */
+	public VideoFrame retain() {
+		this.lease.retain();
+		return this;
+	}
+
+	/**
+	 * Remove a reference. The buffer goes back to its pool when the last
+	 * reference is released.
+	 *
+	 * @return true if this was the last reference
+	 */
+	public boolean release() {
+		return this.lease.release();
+	}
+}
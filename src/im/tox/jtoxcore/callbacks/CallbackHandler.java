@@ -21,16 +21,27 @@
 
 package im.tox.jtoxcore.callbacks;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import im.tox.jtoxcore.AudioFrame;
+import im.tox.jtoxcore.BufferPool;
+import im.tox.jtoxcore.FriendChangeListener;
+import im.tox.jtoxcore.FriendField;
 import im.tox.jtoxcore.FriendList;
 import im.tox.jtoxcore.JTox;
+import im.tox.jtoxcore.PooledBuffer;
 import im.tox.jtoxcore.ToxFriend;
 import im.tox.jtoxcore.ToxFileControl;
 import im.tox.jtoxcore.ToxUserStatus;
 import im.tox.jtoxcore.ToxAvCallbackID;
+import im.tox.jtoxcore.VideoFrame;
 
 /**
  * Callback Handler class which contains methods to manage the callbacks for a
@@ -43,6 +54,18 @@ import im.tox.jtoxcore.ToxAvCallbackID;
  */
 public class CallbackHandler<F extends ToxFriend> {
 
+	/**
+	 * Capacity of the buffers file data is delivered in to
+	 * {@link OnFileChunkCallback}s. Larger than any chunk the core hands out.
+	 */
+	private static final int CHUNK_BUFFER_SIZE = 2048;
+
+	/**
+	 * Idle frame buffers kept per call and media type. Enough for a callback
+	 * keeping the last frame while the next one is decoded.
+	 */
+	private static final int FRAME_POOL_SIZE = 4;
+
 	private List<OnActionCallback<F>> onActionCallbacks;
 	private List<OnConnectionStatusCallback<F>> onConnectionStatusCallbacks;
 	private List<OnFriendRequestCallback> onFriendRequestCallbacks;
@@ -54,12 +77,45 @@ public class CallbackHandler<F extends ToxFriend> {
 	private List<OnTypingChangeCallback<F>> onTypingChangeCallbacks;
 	private List<OnFileControlCallback<F>> onFileControlCallbacks;
 	private List<OnFileDataCallback<F>> onFileDataCallbacks;
+	private List<OnFileChunkCallback<F>> onFileChunkCallbacks;
 	private List<OnFileSendRequestCallback<F>> onFileSendRequestCallbacks;
 	private List<OnAvCallbackCallback<F>> onAvCallbackCallbacks;
 	private List<OnVideoDataCallback<F>> onVideoDataCallbacks;
+	private List<OnVideoFrameCallback<F>> onVideoFrameCallbacks;
 	private List<OnAudioDataCallback<F>> onAudioDataCallbacks;
+	private List<OnAudioFrameCallback<F>> onAudioFrameCallbacks;
 
 	private FriendList<F> friendlist;
+	private List<FriendChangeListener<F>> changeListeners;
+
+	private final BufferPool chunkPool = new BufferPool(CHUNK_BUFFER_SIZE, 64);
+
+	/**
+	 * Lease the native side writes the next chunk of file data into, or null
+	 * while no {@link OnFileChunkCallback} is registered
+	 */
+	private PooledBuffer chunk;
+
+	/**
+	 * Buffer of {@link #chunk}, read by the native side
+	 */
+	@SuppressWarnings("unused")
+	private volatile ByteBuffer chunkBuffer;
+
+	/**
+	 * Pools of the buffers video frames are decoded into, by call
+	 */
+	private final Map<Integer, BufferPool> framePools = new HashMap<Integer, BufferPool>();
+
+	/**
+	 * Pools of the buffers audio is decoded into, by call
+	 */
+	private final Map<Integer, BufferPool> audioPools = new HashMap<Integer, BufferPool>();
+
+	/**
+	 * Leases handed to the native side for frames that are being decoded
+	 */
+	private final Map<ByteBuffer, PooledBuffer> pendingFrames = new IdentityHashMap<ByteBuffer, PooledBuffer>();
 
 	/**
 	 * Default constructor for CallbackHandler. Initializes all Lists as
@@ -69,8 +125,15 @@ public class CallbackHandler<F extends ToxFriend> {
 	 *            the friendlist of the jtox instance that this handler is
 	 *            attached to
 	 */
+	@SuppressWarnings("unchecked")
 	public CallbackHandler(FriendList<F> friendlist) {
 		this.friendlist = friendlist;
+		this.changeListeners = new CopyOnWriteArrayList<FriendChangeListener<F>>();
+
+		if (friendlist instanceof FriendChangeListener) {
+			this.changeListeners.add((FriendChangeListener<F>) friendlist);
+		}
+
 		this.onActionCallbacks = Collections.synchronizedList(new ArrayList<OnActionCallback<F>>());
 		this.onConnectionStatusCallbacks = Collections.synchronizedList(new ArrayList<OnConnectionStatusCallback<F>>());
 		this.onFriendRequestCallbacks = Collections.synchronizedList(new ArrayList<OnFriendRequestCallback>());
@@ -82,10 +145,75 @@ public class CallbackHandler<F extends ToxFriend> {
 		this.onTypingChangeCallbacks = Collections.synchronizedList(new ArrayList<OnTypingChangeCallback<F>>());
 		this.onFileControlCallbacks = Collections.synchronizedList(new ArrayList<OnFileControlCallback<F>>());
 		this.onFileDataCallbacks = Collections.synchronizedList(new ArrayList<OnFileDataCallback<F>>());
+		this.onFileChunkCallbacks = Collections.synchronizedList(new ArrayList<OnFileChunkCallback<F>>());
 		this.onFileSendRequestCallbacks = Collections.synchronizedList(new ArrayList<OnFileSendRequestCallback<F>>());
 		this.onAvCallbackCallbacks = Collections.synchronizedList(new ArrayList<OnAvCallbackCallback<F>>());
 		this.onVideoDataCallbacks = Collections.synchronizedList(new ArrayList<OnVideoDataCallback<F>>());
+		this.onVideoFrameCallbacks = Collections.synchronizedList(new ArrayList<OnVideoFrameCallback<F>>());
 		this.onAudioDataCallbacks = Collections.synchronizedList(new ArrayList<OnAudioDataCallback<F>>());
+		this.onAudioFrameCallbacks = Collections.synchronizedList(new ArrayList<OnAudioFrameCallback<F>>());
+	}
+
+	/**
+	 * Add a listener that is notified whenever a callback changes a field of a
+	 * friend. If the friend list implements {@link FriendChangeListener}, it
+	 * is registered automatically.
+	 *
+	 * @param listener
+	 *            the listener to register
+	 */
+	public void registerFriendChangeListener(FriendChangeListener<F> listener) {
+		this.changeListeners.add(listener);
+	}
+
+	/**
+	 * Remove the specified friend change listener
+	 *
+	 * @param listener
+	 *            the listener to remove
+	 */
+	public void unregisterFriendChangeListener(FriendChangeListener<F> listener) {
+		this.changeListeners.remove(listener);
+	}
+
+	/**
+	 * Notify all friend change listeners that a field of the specified friend
+	 * has changed. Used by {@link JTox} when it fetched a field from the core
+	 * instead of receiving it in a callback.
+	 *
+	 * @param friend
+	 *            the friend that changed
+	 * @param field
+	 *            the field that changed
+	 */
+	public void fireFriendChanged(F friend, FriendField field) {
+		for (FriendChangeListener<F> listener : this.changeListeners) {
+			switch (field) {
+				case ID:
+					listener.idChanged(friend);
+					break;
+
+				case NAME:
+					listener.nameChanged(friend);
+					break;
+
+				case STATUS_MESSAGE:
+					listener.statusMessageChanged(friend);
+					break;
+
+				case USER_STATUS:
+					listener.statusChanged(friend);
+					break;
+
+				case CONNECTION_STATUS:
+					listener.connectionStatusChanged(friend);
+					break;
+
+				case TYPING:
+					listener.typingChanged(friend);
+					break;
+			}
+		}
 	}
 
 	/**
@@ -173,6 +301,10 @@ public class CallbackHandler<F extends ToxFriend> {
 		F friend = this.friendlist.getByFriendNumber(friendnumber);
 		friend.setOnline(online);
 
+		for (FriendChangeListener<F> listener : this.changeListeners) {
+			listener.connectionStatusChanged(friend);
+		}
+
 		synchronized (this.onConnectionStatusCallbacks) {
 			for (OnConnectionStatusCallback<F> cb : this.onConnectionStatusCallbacks) {
 				cb.execute(friend, online);
@@ -320,7 +452,7 @@ public class CallbackHandler<F extends ToxFriend> {
 			sending = false;
 		}
 
-		synchronized (this.onMessageCallbacks) {
+		synchronized (this.onFileControlCallbacks) {
 			for (OnFileControlCallback<F> cb : this.onFileControlCallbacks) {
 				cb.execute(friend, sending, file_number, control_type, data);
 			}
@@ -388,11 +520,161 @@ public class CallbackHandler<F extends ToxFriend> {
 	private void onFileData(int friendnumber, int filenumber, byte[] data) {
 		F friend = this.friendlist.getByFriendNumber(friendnumber);
 
-		synchronized (this.onMessageCallbacks) {
+		synchronized (this.onFileDataCallbacks) {
 			for (OnFileDataCallback<F> cb : this.onFileDataCallbacks) {
 				cb.execute(friend, filenumber, data);
 			}
 		}
+
+		// The native side falls back to arrays for chunks that do not fit
+		// into a pooled buffer
+		if (!this.onFileChunkCallbacks.isEmpty()) {
+			dispatchChunk(friend, filenumber, PooledBuffer.wrap(ByteBuffer.wrap(data)), data.length);
+		}
+	}
+
+	/**
+	 * Hook for native API to invoke callback methods. The native side has
+	 * written the chunk to the start of the buffer.
+	 *
+	 * @param friendnumber
+	 *            the friend who sent the data
+	 * @param filenumber
+	 *            the number of the file
+	 * @param buffer
+	 *            the buffer the data was written to
+	 * @param length
+	 *            the length of the data
+	 */
+	@SuppressWarnings("unused")
+	private void onFileChunk(int friendnumber, int filenumber, ByteBuffer buffer, int length) {
+		F friend = this.friendlist.getByFriendNumber(friendnumber);
+
+		if (!this.onFileDataCallbacks.isEmpty()) {
+			byte[] data = new byte[length];
+			ByteBuffer source = buffer.duplicate();
+			source.clear();
+			source.get(data);
+
+			synchronized (this.onFileDataCallbacks) {
+				for (OnFileDataCallback<F> cb : this.onFileDataCallbacks) {
+					cb.execute(friend, filenumber, data);
+				}
+			}
+		}
+
+		synchronized (this.onFileChunkCallbacks) {
+			PooledBuffer lease = this.chunk;
+
+			if (lease == null || lease.buffer() != buffer) {
+				// The chunk callbacks changed while the data was written. The
+				// buffer is not leased anymore, so hand out a copy.
+				ByteBuffer copy = ByteBuffer.allocate(length);
+				ByteBuffer source = buffer.duplicate();
+				source.clear();
+				source.limit(length);
+				copy.put(source);
+				dispatchChunk(friend, filenumber, PooledBuffer.wrap(copy), length);
+				return;
+			}
+
+			dispatchChunk(friend, filenumber, lease, length);
+
+			// A callback kept the buffer, so the next chunk needs a new one
+			if (lease.isShared()) {
+				this.chunk = this.chunkPool.lease();
+				this.chunkBuffer = this.chunk.buffer();
+				lease.release();
+			}
+		}
+	}
+
+	private void dispatchChunk(F friend, int filenumber, PooledBuffer lease, int length) {
+		synchronized (this.onFileChunkCallbacks) {
+			for (OnFileChunkCallback<F> cb : this.onFileChunkCallbacks) {
+				lease.buffer().clear();
+				lease.buffer().limit(length);
+				cb.execute(friend, filenumber, lease);
+			}
+		}
+	}
+
+	/**
+	 * Add the specified callback. While any chunk callback is registered, file
+	 * data is delivered in pooled buffers, and {@link OnFileDataCallback}s get
+	 * a copy.
+	 *
+	 * @param callback
+	 *            callback to add
+	 */
+	public void registerOnFileChunkCallback(OnFileChunkCallback<F> callback) {
+		synchronized (this.onFileChunkCallbacks) {
+			this.onFileChunkCallbacks.add(callback);
+			updateChunkBuffer();
+		}
+	}
+
+	/**
+	 * Remove the specified callback
+	 *
+	 * @param callback
+	 *            callback to remove
+	 */
+	public void unregisterOnFileChunkCallback(OnFileChunkCallback<F> callback) {
+		synchronized (this.onFileChunkCallbacks) {
+			this.onFileChunkCallbacks.remove(callback);
+			updateChunkBuffer();
+		}
+	}
+
+	/**
+	 * Remove all callbacks
+	 */
+	public void clearOnFileChunkCallbacks() {
+		synchronized (this.onFileChunkCallbacks) {
+			this.onFileChunkCallbacks.clear();
+			updateChunkBuffer();
+		}
+	}
+
+	/**
+	 * Add all specified callbacks
+	 *
+	 * @param callbacks
+	 *            callbacks to add
+	 */
+	public <T extends OnFileChunkCallback<F>> void registerOnFileChunkCallbacks(List<T> callbacks) {
+		for (T callback : callbacks) {
+			registerOnFileChunkCallback(callback);
+		}
+	}
+
+	/**
+	 * Set the specified callbacks. This removes all previously set callbacks
+	 *
+	 * @param callbacks
+	 *            callbacks to set
+	 */
+	public <T extends OnFileChunkCallback<F>> void setOnFileChunkCallbacks(List<T> callbacks) {
+		clearOnFileChunkCallbacks();
+		registerOnFileChunkCallbacks(callbacks);
+	}
+
+	/**
+	 * Lease the buffer for the native side while chunk callbacks are
+	 * registered. Must be called while holding the monitor of the chunk
+	 * callback list.
+	 */
+	private void updateChunkBuffer() {
+		if (this.onFileChunkCallbacks.isEmpty()) {
+			// The native side may still be writing into the buffer, so it is
+			// left to the garbage collector instead of the pool
+			this.chunkBuffer = null;
+			this.chunk = null;
+		} else if (this.chunk == null) {
+			this.chunk = this.chunkPool.lease();
+			this.chunkBuffer = this.chunk.buffer();
+		}
 	}
 
 	/**
@@ -456,7 +738,7 @@ public class CallbackHandler<F extends ToxFriend> {
 	private void onFileSendRequest(int friendnumber, int filenumber, long filesize, byte[] filename) {
 		F friend = this.friendlist.getByFriendNumber(friendnumber);
 
-		synchronized (this.onMessageCallbacks) {
+		synchronized (this.onFileSendRequestCallbacks) {
 			for (OnFileSendRequestCallback<F> cb : this.onFileSendRequestCallbacks) {
 				cb.execute(friend, filenumber, filesize, filename);
 			}
@@ -596,6 +878,10 @@ public class CallbackHandler<F extends ToxFriend> {
 		String newnameString = JTox.getByteString(newname);
 		friend.setName(newnameString);
 
+		for (FriendChangeListener<F> listener : this.changeListeners) {
+			listener.nameChanged(friend);
+		}
+
 		synchronized (this.onNameChangeCallbacks) {
 			for (OnNameChangeCallback<F> cb : this.onNameChangeCallbacks) {
 				cb.execute(friend, newnameString);
@@ -736,6 +1022,10 @@ public class CallbackHandler<F extends ToxFriend> {
 		F friend = this.friendlist.getByFriendNumber(friendnumber);
 		friend.setStatusMessage(newStatus);
 
+		for (FriendChangeListener<F> listener : this.changeListeners) {
+			listener.statusMessageChanged(friend);
+		}
+
 		synchronized (this.onStatusMessageCallbacks) {
 			for (OnStatusMessageCallback<F> cb : this.onStatusMessageCallbacks) {
 				cb.execute(friend, newStatus);
@@ -806,6 +1096,10 @@ public class CallbackHandler<F extends ToxFriend> {
 		F friend = this.friendlist.getByFriendNumber(friendnumber);
 		friend.setStatus(status);
 
+		for (FriendChangeListener<F> listener : this.changeListeners) {
+			listener.statusChanged(friend);
+		}
+
 		synchronized (this.onUserStatusCallbacks) {
 			for (OnUserStatusCallback<F> cb : this.onUserStatusCallbacks) {
 				cb.execute(friend, status);
@@ -876,6 +1170,10 @@ public class CallbackHandler<F extends ToxFriend> {
 		F friend = this.friendlist.getByFriendNumber(friendnumber);
 		friend.setTyping(isTyping);
 
+		for (FriendChangeListener<F> listener : this.changeListeners) {
+			listener.typingChanged(friend);
+		}
+
 		synchronized (this.onTypingChangeCallbacks) {
 			for (OnTypingChangeCallback<F> callback : this.onTypingChangeCallbacks) {
 				callback.execute(friend, isTyping);
@@ -941,6 +1239,26 @@ public class CallbackHandler<F extends ToxFriend> {
 				cb.execute(call_id, callback_id);
 			}
 		}
+
+		switch (callback_id) {
+			case ON_CANCEL:
+			case ON_REJECT:
+			case ON_END:
+			case ON_ENDING:
+			case ON_REQUEST_TIMEOUT:
+			case ON_PEER_TIMEOUT:
+				// Frames still held by callbacks are left to the garbage
+				// collector
+				synchronized (this.framePools) {
+					this.framePools.remove(call_id);
+					this.audioPools.remove(call_id);
+				}
+
+				break;
+
+			default:
+				break;
+		}
 	}
 	/**
 	 * Add the specified callback
@@ -986,21 +1304,169 @@ public class CallbackHandler<F extends ToxFriend> {
 		registerOnAvCallbackCallbacks(callbacks);
 	}
 	/**
-	 * Hook for native API to invoke callback methods
+	 * Hook for native API to get the buffer to decode the next frame of a call
+	 * into
 	 *
-	 * @param friendnumber
-	 *            the friend who changed their status
-	 * @param status
-	 *            the new status
+	 * @param call_id
+	 *            the index of the call
+	 * @param size
+	 *            the size of the frame in bytes
+	 * @return a pooled direct buffer of at least the given size, or null if
+	 *         no video callback is registered
 	 */
 	@SuppressWarnings("unused")
-	private void onVideoData(int call_id, byte[] data, int width, int height) {
-		synchronized (this.onVideoDataCallbacks) {
-			for (OnVideoDataCallback<F> cb : this.onVideoDataCallbacks) {
-				cb.execute(call_id, data, width, height);
+	private ByteBuffer videoBuffer(int call_id, int size) {
+		if (this.onVideoFrameCallbacks.isEmpty() && this.onVideoDataCallbacks.isEmpty()) {
+			return null;
+		}
+
+		return leaseFrame(this.framePools, call_id, size);
+	}
+
+	/**
+	 * Lease a buffer from the pool of the given call, and remember it until
+	 * the native side hands it back with the data
+	 */
+	private ByteBuffer leaseFrame(Map<Integer, BufferPool> pools, int call_id, int size) {
+		BufferPool pool;
+
+		// Both maps are guarded by the monitor of framePools
+		synchronized (this.framePools) {
+			pool = pools.get(call_id);
+
+			// Frames only grow when the peer changes the resolution or the
+			// audio settings
+			if (pool == null || pool.getBufferSize() < size) {
+				pool = new BufferPool(size, FRAME_POOL_SIZE);
+				pools.put(call_id, pool);
 			}
 		}
+
+		PooledBuffer lease = pool.lease();
+		lease.buffer().limit(size);
+
+		synchronized (this.pendingFrames) {
+			this.pendingFrames.put(lease.buffer(), lease);
+		}
+
+		return lease.buffer();
+	}
+
+	private PooledBuffer pendingFrame(ByteBuffer buffer) {
+		synchronized (this.pendingFrames) {
+			return this.pendingFrames.remove(buffer);
+		}
+	}
+
+	/**
+	 * Hook for native API to invoke callback methods. The native side has
+	 * written the frame to the buffer returned by
+	 * {@link #videoBuffer(int, int)}.
+	 *
+	 * @param call_id
+	 *            the index of the call
+	 * @param buffer
+	 *            the buffer holding the frame
+	 * @param width
+	 *            the width of the frame, or 0 if the native side could not
+	 *            write to the buffer
+	 * @param height
+	 *            the height of the frame
+	 * @param stride
+	 *            the length of a row of the Y plane
+	 * @param chromaStride
+	 *            the length of a row of the V and U plane
+	 */
+	@SuppressWarnings("unused")
+	private void onVideoFrame(int call_id, ByteBuffer buffer, int width, int height, int stride, int chromaStride) {
+		PooledBuffer lease = pendingFrame(buffer);
+
+		if (lease == null) {
+			return;
+		}
+
+		if (width == 0) {
+			lease.release();
+			return;
+		}
+
+		VideoFrame frame = new VideoFrame(lease, width, height, stride, chromaStride);
+
+		try {
+			if (!this.onVideoDataCallbacks.isEmpty()) {
+				byte[] data = new byte[buffer.remaining()];
+				buffer.duplicate().get(data);
+
+				synchronized (this.onVideoDataCallbacks) {
+					for (OnVideoDataCallback<F> cb : this.onVideoDataCallbacks) {
+						cb.execute(call_id, data, width, height);
+					}
+				}
+			}
+
+			synchronized (this.onVideoFrameCallbacks) {
+				for (OnVideoFrameCallback<F> cb : this.onVideoFrameCallbacks) {
+					buffer.clear();
+					buffer.limit(frame.getSize());
+					cb.execute(call_id, frame);
+				}
+			}
+		} finally {
+			frame.release();
+		}
+	}
+
+	/**
+	 * Add the specified callback. Decoded frames are delivered in pooled
+	 * buffers, and {@link OnVideoDataCallback}s get a copy.
+	 *
+	 * @param callback
+	 *            callback to add
+	 */
+	public void registerOnVideoFrameCallback(OnVideoFrameCallback<F> callback) {
+		this.onVideoFrameCallbacks.add(callback);
+	}
+
+	/**
+	 * Remove the specified callback
+	 *
+	 * @param callback
+	 *            callback to remove
+	 */
+	public void unregisterOnVideoFrameCallback(OnVideoFrameCallback<F> callback) {
+		this.onVideoFrameCallbacks.remove(callback);
+	}
+
+	/**
+	 * Remove all callbacks
+	 */
+	public void clearOnVideoFrameCallbacks() {
+		this.onVideoFrameCallbacks.clear();
+	}
+
+	/**
+	 * Add all specified callbacks
+	 *
+	 * @param callbacks
+	 *            callbacks to add
+	 */
+	public <T extends OnVideoFrameCallback<F>> void registerOnVideoFrameCallbacks(List<T> callbacks) {
+		for (T callback : callbacks) {
+			registerOnVideoFrameCallback(callback);
+		}
+	}
+
+	/**
+	 * Set the specified callbacks. This removes all previously set callbacks
+	 *
+	 * @param callbacks
+	 *            callbacks to set
+	 */
+	public <T extends OnVideoFrameCallback<F>> void setOnVideoFrameCallbacks(List<T> callbacks) {
+		clearOnVideoFrameCallbacks();
+		registerOnVideoFrameCallbacks(callbacks);
 	}
+
 	/**
 	 * Add the specified callback
 	 *
@@ -1045,22 +1511,130 @@ public class CallbackHandler<F extends ToxFriend> {
 		registerOnVideoDataCallbacks(callbacks);
 	}
 	/**
-	 * Hook for native API to invoke callback methods
+	 * Hook for native API to get the buffer to decode the next audio frame of
+	 * a call into
 	 *
-	 * @param friendnumber
-	 *            the friend who changed their status
-	 * @param status
-	 *            the new status
+	 * @param call_id
+	 *            the index of the call
+	 * @param size
+	 *            the size of the samples in bytes
+	 * @return a pooled direct buffer of at least the given size, or null if
+	 *         no audio callback is registered
+	 */
+	@SuppressWarnings("unused")
+	private ByteBuffer audioBuffer(int call_id, int size) {
+		if (this.onAudioFrameCallbacks.isEmpty() && this.onAudioDataCallbacks.isEmpty()) {
+			return null;
+		}
+
+		return leaseFrame(this.audioPools, call_id, size);
+	}
+
+	/**
+	 * Hook for native API to invoke callback methods. The native side has
+	 * written the samples in native byte order to the buffer returned by
+	 * {@link #audioBuffer(int, int)}.
+	 *
+	 * @param call_id
+	 *            the index of the call
+	 * @param buffer
+	 *            the buffer holding the samples
+	 * @param length
+	 *            the length of the samples in bytes, or 0 if the native side
+	 *            could not write to the buffer
 	 */
 	@SuppressWarnings("unused")
-	private void onAudioData(int call_id, byte[] pcm_data) {
+	private void onAudioFrame(int call_id, ByteBuffer buffer, int length) {
+		PooledBuffer lease = pendingFrame(buffer);
+
+		if (lease == null) {
+			return;
+		}
+
+		if (length == 0) {
+			lease.release();
+			return;
+		}
+
+		AudioFrame frame = new AudioFrame(lease);
+
+		try {
+			if (!this.onAudioDataCallbacks.isEmpty()) {
+				byte[] pcm_data = new byte[length];
+				ByteBuffer source = buffer.duplicate();
+				source.clear();
+				source.get(pcm_data);
 
-		synchronized (this.onAudioDataCallbacks) {
-			for (OnAudioDataCallback<F> cb : this.onAudioDataCallbacks) {
-				cb.execute(call_id, pcm_data);
+				synchronized (this.onAudioDataCallbacks) {
+					for (OnAudioDataCallback<F> cb : this.onAudioDataCallbacks) {
+						cb.execute(call_id, pcm_data);
+					}
+				}
 			}
+
+			synchronized (this.onAudioFrameCallbacks) {
+				for (OnAudioFrameCallback<F> cb : this.onAudioFrameCallbacks) {
+					buffer.clear();
+					buffer.limit(length);
+					cb.execute(call_id, frame);
+				}
+			}
+		} finally {
+			frame.release();
 		}
 	}
+
+	/**
+	 * Add the specified callback. Decoded audio is delivered in pooled
+	 * buffers, and {@link OnAudioDataCallback}s get a copy.
+	 *
+	 * @param callback
+	 *            callback to add
+	 */
+	public void registerOnAudioFrameCallback(OnAudioFrameCallback<F> callback) {
+		this.onAudioFrameCallbacks.add(callback);
+	}
+
+	/**
+	 * Remove the specified callback
+	 *
+	 * @param callback
+	 *            callback to remove
+	 */
+	public void unregisterOnAudioFrameCallback(OnAudioFrameCallback<F> callback) {
+		this.onAudioFrameCallbacks.remove(callback);
+	}
+
+	/**
+	 * Remove all callbacks
+	 */
+	public void clearOnAudioFrameCallbacks() {
+		this.onAudioFrameCallbacks.clear();
+	}
+
+	/**
+	 * Add all specified callbacks
+	 *
+	 * @param callbacks
+	 *            callbacks to add
+	 */
+	public <T extends OnAudioFrameCallback<F>> void registerOnAudioFrameCallbacks(List<T> callbacks) {
+		for (T callback : callbacks) {
+			registerOnAudioFrameCallback(callback);
+		}
+	}
+
+	/**
+	 * Set the specified callbacks. This removes all previously set callbacks
+	 *
+	 * @param callbacks
+	 *            callbacks to set
+	 */
+	public <T extends OnAudioFrameCallback<F>> void setOnAudioFrameCallbacks(List<T> callbacks) {
+		clearOnAudioFrameCallbacks();
+		registerOnAudioFrameCallbacks(callbacks);
+	}
+
 	/**
 	 * Add the specified callback
 	 *
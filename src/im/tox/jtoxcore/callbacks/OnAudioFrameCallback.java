@@ -0,0 +1,46 @@
+/* OnAudioFrameCallback.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore.callbacks;
+
+import im.tox.jtoxcore.AudioFrame;
+import im.tox.jtoxcore.ToxFriend;
+
+/**
+ * Receives decoded audio in pooled direct buffers, instead of a new array per
+ * frame like {@link OnAudioDataCallback}. The frame is only valid until the
+ * callback returns; call {@link AudioFrame#retain()} to keep it, and
+ * {@link AudioFrame#release()} once done with it.
+ *
+ * @param <F>
+ *            Friend type of the CallbackHandler
+ */
+public interface OnAudioFrameCallback<F extends ToxFriend> {
+
+	/**
+	 * Method to be executed for each decoded audio frame
+	 *
+	 * @param callId
+	 *            the index of the call
+	 * @param frame
+	 *            the frame
+	 */
+	void execute(int callId, AudioFrame frame);
+}
@@ -0,0 +1,48 @@
+/* OnFileChunkCallback.java
+ *
+ *  Copyright (C) 2014 Tox project All Rights Reserved.
+ *
+ *  This file is part of jToxcore
+ *
+ *  jToxcore is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  jToxcore is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jToxcore.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package im.tox.jtoxcore.callbacks;
+
+import im.tox.jtoxcore.PooledBuffer;
+import im.tox.jtoxcore.ToxFriend;
+
+/**
+ * Receives file data in pooled direct buffers, instead of a new array per
+ * chunk like {@link OnFileDataCallback}. The chunk is only valid until the
+ * callback returns; call {@link PooledBuffer#retain()} to keep it, and
+ * {@link PooledBuffer#release()} once done with it.
+ *
+ * @param <F>
+ *            Friend type of the CallbackHandler
+ */
+public interface OnFileChunkCallback<F extends ToxFriend> {
+
+	/**
+	 * Method to be executed for each chunk of file data received
+	 *
+	 * @param friend
+	 *            the friend sending the file
+	 * @param filenumber
+	 *            the number of the file
+	 * @param chunk
+	 *            the data, between the position and the limit of the buffer
+	 */
+	void execute(F friend, int filenumber, PooledBuffer chunk);
+}